@@ -0,0 +1,278 @@
+package team3543.codegen;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates the JSON codecs for classes marked with @GenerateCodec.
+ *
+ * Each codec is a small final class of static methods that call Jackson's
+ * streaming JsonGenerator and JsonParser directly, one statement per field, so
+ * nothing is looked up by reflection at run time and reading fills in an
+ * existing object, reset to a new object's values first.  The output has to match what ObjectMapper writes, so that
+ * recordings stay readable both ways; that is why it only supports what the
+ * State classes use (public fields of primitive, String, enum or other
+ * @GenerateCodec types) and refuses classes with getters, which Jackson would
+ * also write.
+ *
+ * @author mk
+ */
+@SupportedAnnotationTypes("team3543.codegen.GenerateCodec")
+public class CodecProcessor extends AbstractProcessor {
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        for (Element element : round.getElementsAnnotatedWith(GenerateCodec.class)) {
+            if (element.getKind() != ElementKind.CLASS) {
+                error(element, "@GenerateCodec only goes on classes");
+                continue;
+            }
+            TypeElement type = (TypeElement) element;
+            try {
+                generate(type);
+            } catch (IOException e) {
+                error(type, "Couldn't write the codec: " + e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * DriveLine.State -> DriveLineStateCodec
+     */
+    static String codecName(TypeElement type) {
+        StringBuilder name = new StringBuilder("Codec");
+        for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+            name.insert(0, e.getSimpleName());
+        }
+        return name.toString();
+    }
+
+    String packageName(TypeElement type) {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        return pkg.getQualifiedName().toString();
+    }
+
+    List<VariableElement> fields(TypeElement type) {
+        List<VariableElement> fields = new ArrayList<>();
+        for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+            Set<Modifier> modifiers = field.getModifiers();
+            if (modifiers.contains(Modifier.PUBLIC) && !modifiers.contains(Modifier.STATIC) && !modifiers.contains(Modifier.TRANSIENT)) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    boolean hasGetters(TypeElement type) {
+        for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            String name = method.getSimpleName().toString();
+            if (method.getModifiers().contains(Modifier.PUBLIC) && !method.getModifiers().contains(Modifier.STATIC)
+                    && method.getParameters().isEmpty()
+                    && (name.startsWith("get") && name.length() > 3 || name.startsWith("is") && name.length() > 2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void generate(TypeElement type) throws IOException {
+        if (hasGetters(type)) {
+            error(type, "Jackson would serialize the getters too, so the generated codec wouldn't match; use public fields only");
+            return;
+        }
+        String pkg = packageName(type);
+        String codec = codecName(type);
+        String name = type.getQualifiedName().toString();
+        List<VariableElement> fields = fields(type);
+
+        Writer file = processingEnv.getFiler().createSourceFile(pkg + "." + codec, type).openWriter();
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.println("// Generated by " + getClass().getName() + " from " + name + ".  Do not edit.");
+            out.println("package " + pkg + ";");
+            out.println();
+            out.println("import java.io.IOException;");
+            out.println();
+            out.println("import com.fasterxml.jackson.core.JsonGenerator;");
+            out.println("import com.fasterxml.jackson.core.JsonParseException;");
+            out.println("import com.fasterxml.jackson.core.JsonParser;");
+            out.println("import com.fasterxml.jackson.core.JsonToken;");
+            out.println();
+            out.println("/**");
+            out.println(" * Streaming JSON codec for " + name + ", the same as ObjectMapper would write.");
+            out.println(" */");
+            out.println("final class " + codec + " {");
+            out.println();
+            out.println("    /** What a new object has; only ever read */");
+            out.println("    static final " + name + " DEFAULTS = new " + name + "();");
+            out.println();
+            out.println("    private " + codec + "() { }");
+            out.println();
+            out.println("    static void write(JsonGenerator g, " + name + " value) throws IOException {");
+            out.println("        if (value == null) {");
+            out.println("            g.writeNull();");
+            out.println("            return;");
+            out.println("        }");
+            out.println("        g.writeStartObject();");
+            for (VariableElement field : fields) {
+                out.println("        g.writeFieldName(\"" + field.getSimpleName() + "\");");
+                String write = writeStatement(field);
+                if (write == null) return;
+                out.println("        " + write);
+            }
+            out.println("        g.writeEndObject();");
+            out.println("    }");
+            out.println();
+            out.println("    /**");
+            out.println("     * Read the value the parser is on (or the first one, if it hasn't started) into an");
+            out.println("     * existing object, or a new one if into is null.  Fields that are missing, or");
+            out.println("     * null, get the value a new object has, so nothing is left from the last read.");
+            out.println("     * Unknown fields are skipped.");
+            out.println("     *");
+            out.println("     * @return into, or null for a JSON null");
+            out.println("     */");
+            out.println("    static " + name + " read(JsonParser p, " + name + " into) throws IOException {");
+            out.println("        JsonToken token = p.getCurrentToken() == null ? p.nextToken() : p.getCurrentToken();");
+            out.println("        if (token == JsonToken.VALUE_NULL) {");
+            out.println("            return null;");
+            out.println("        }");
+            out.println("        if (token != JsonToken.START_OBJECT) {");
+            out.println("            throw new JsonParseException(p, \"Expected an object for " + name + "\");");
+            out.println("        }");
+            out.println("        if (into == null) {");
+            out.println("            into = new " + name + "();");
+            out.println("        } else {");
+            out.println("            copy(DEFAULTS, into);");
+            out.println("        }");
+            out.println("        while (p.nextToken() == JsonToken.FIELD_NAME) {");
+            out.println("            String field = p.getCurrentName();");
+            out.println("            token = p.nextToken();");
+            out.println("            switch (field) {");
+            for (VariableElement field : fields) {
+                out.println("            case \"" + field.getSimpleName() + "\":");
+                out.println("                if (token != JsonToken.VALUE_NULL) {");
+                out.println("                    " + readStatement(field));
+                out.println("                }");
+                out.println("                break;");
+            }
+            out.println("            default:");
+            out.println("                p.skipChildren();");
+            out.println("            }");
+            out.println("        }");
+            out.println("        return into;");
+            out.println("    }");
+            out.println();
+            out.println("    /**");
+            out.println("     * Copy one object's fields into another, nested objects and all");
+            out.println("     *");
+            out.println("     * @return into");
+            out.println("     */");
+            out.println("    static " + name + " copy(" + name + " from, " + name + " into) {");
+            for (VariableElement field : fields) {
+                out.println("        " + copyStatement(field));
+            }
+            out.println("        return into;");
+            out.println("    }");
+            out.println("}");
+        }
+    }
+
+    String writeStatement(VariableElement field) {
+        String value = "value." + field.getSimpleName();
+        TypeMirror type = field.asType();
+        switch (type.getKind()) {
+        case DOUBLE:
+        case FLOAT:
+        case INT:
+        case LONG:
+            return "g.writeNumber(" + value + ");";
+        case BOOLEAN:
+            return "g.writeBoolean(" + value + ");";
+        case DECLARED:
+            TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+            if (element.getQualifiedName().contentEquals("java.lang.String")) {
+                return "if (" + value + " == null) g.writeNull(); else g.writeString(" + value + ");";
+            }
+            if (element.getKind() == ElementKind.ENUM) {
+                return "if (" + value + " == null) g.writeNull(); else g.writeString(" + value + ".name());";
+            }
+            if (element.getAnnotation(GenerateCodec.class) != null) {
+                return codecName(element) + ".write(g, " + value + ");";
+            }
+            // fall through
+        default:
+            error(field, "No codec for " + type + "; use a primitive, String, enum or @GenerateCodec class");
+            return null;
+        }
+    }
+
+    String readStatement(VariableElement field) {
+        String target = "into." + field.getSimpleName();
+        TypeMirror type = field.asType();
+        switch (type.getKind()) {
+        case DOUBLE:
+            return target + " = p.getDoubleValue();";
+        case FLOAT:
+            return target + " = p.getFloatValue();";
+        case INT:
+            return target + " = p.getIntValue();";
+        case LONG:
+            return target + " = p.getLongValue();";
+        case BOOLEAN:
+            return target + " = p.getBooleanValue();";
+        default:
+            TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+            if (element.getQualifiedName().contentEquals("java.lang.String")) {
+                return target + " = p.getText();";
+            }
+            if (element.getKind() == ElementKind.ENUM) {
+                return target + " = " + element.getQualifiedName() + ".valueOf(p.getText());";
+            }
+            return target + " = " + codecName(element) + ".read(p, " + target + ");";
+        }
+    }
+
+    String copyStatement(VariableElement field) {
+        String from = "from." + field.getSimpleName(), target = "into." + field.getSimpleName();
+        TypeMirror type = field.asType();
+        if (type.getKind() == TypeKind.DECLARED) {
+            TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+            if (element.getAnnotation(GenerateCodec.class) != null) {
+                // into's own object is reused, so reading doesn't allocate
+                return target + " = " + from + " == null ? null : " + codecName(element) + ".copy(" + from + ", "
+                        + target + " == null ? new " + element.getQualifiedName() + "() : " + target + ");";
+            }
+        }
+        return target + " = " + from + ";";
+    }
+
+    void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
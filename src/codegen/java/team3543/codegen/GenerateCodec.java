@@ -0,0 +1,21 @@
+package team3543.codegen;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Put this on a State class to have a JSON codec generated for it at compile time.
+ *
+ * For DriveLine.State, the CodecProcessor writes DriveLineStateCodec, in the same
+ * package, with write(JsonGenerator, DriveLine.State) and
+ * read(JsonParser, DriveLine.State).  The JSON is exactly what Jackson's ObjectMapper
+ * would write: the public fields, in the order they are declared.
+ *
+ * @author mk
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface GenerateCodec {
+}
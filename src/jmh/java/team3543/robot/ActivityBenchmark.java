@@ -0,0 +1,109 @@
+package team3543.robot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of one loop() of wide and deep trees built from the Activity DSL.
+ *
+ * A "wide" tree is one combinator over (or next to) all the leaves; a "deep"
+ * tree nests the combinator inside itself once per node.  The leaves never
+ * complete, so every tick is a steady-state tick.
+ *
+ * With compiled=true the same tree is run through Activity.compile() first.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss64m")    // deep trees recurse once per node
+public class ActivityBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    int nodes;
+
+    @Param({"each", "queue", "all", "any", "when", "unless", "delay"})
+    String combinator;
+
+    @Param({"wide", "deep"})
+    String shape;
+
+    @Param({"false", "true"})
+    boolean compiled;
+
+    Activity tree;
+
+    @Setup
+    public void setup() {
+        tree = "wide".equals(shape) ? wide(combinator, nodes) : deep(combinator, nodes);
+        if (compiled) {
+            tree = Activity.compile(tree);
+        }
+    }
+
+    @Benchmark
+    public boolean tick() {
+        return tree.loop();
+    }
+
+    /**
+     * A leaf that does a little work and never completes.
+     */
+    static class Leaf implements Activity {
+        int count = 0;
+
+        @Override
+        public boolean loop() {
+            count++;
+            return false;
+        }
+    }
+
+    static final Activity TRUE = () -> true;
+    static final Activity FALSE = () -> false;
+
+    /**
+     * Wrap one activity in the named combinator, in a way that still runs it every tick.
+     */
+    static Activity wrap(String combinator, Activity inner) {
+        switch (combinator) {
+        case "each":    return Activity.each(inner);
+        case "queue":   return Activity.queue(inner);
+        case "all":     return Activity.all(inner);
+        case "any":     return Activity.any(inner);
+        case "when":    return Activity.when(TRUE, inner);
+        case "unless":  return Activity.unless(FALSE, inner);
+        case "delay":   return Activity.delay(0, inner);
+        default:        throw new IllegalArgumentException(combinator);
+        }
+    }
+
+    static Activity wide(String combinator, int nodes) {
+        Activity[] leaves = new Activity[nodes];
+        for (int i = 0; i < nodes; i++) {
+            leaves[i] = new Leaf();
+        }
+        switch (combinator) {
+        case "each":    return Activity.each(leaves);
+        case "queue":   return Activity.queue(leaves);
+        case "all":     return Activity.all(leaves);
+        case "any":     return Activity.any(leaves);
+        default:
+            // the single-child combinators sit side by side in an all()
+            for (int i = 0; i < nodes; i++) {
+                leaves[i] = wrap(combinator, leaves[i]);
+            }
+            return Activity.all(leaves);
+        }
+    }
+
+    static Activity deep(String combinator, int nodes) {
+        Activity tree = new Leaf();
+        for (int i = 1; i < nodes; i++) {
+            tree = wrap(combinator, tree);
+        }
+        return tree;
+    }
+}
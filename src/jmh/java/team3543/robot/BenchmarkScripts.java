@@ -0,0 +1,76 @@
+package team3543.robot;
+
+/**
+ * Fixtures shared by the benchmarks: realistic recordings and a hardware-free robot.
+ */
+final class BenchmarkScripts {
+
+    /** TimedRobot period, in milliseconds */
+    static final int TICK_MILLIS = 20;
+
+    /** 150 s of recording at 50 Hz */
+    static final int MATCH_TICKS = 150 * 1000 / TICK_MILLIS;
+
+    private BenchmarkScripts() { }
+
+    /**
+     * A joystick-like value, quantized the way the driver station reports axes.
+     */
+    static double axis(double value) {
+        return Math.round(Utils.clip(value) * 127) / 127.0;
+    }
+
+    /**
+     * The drive line state a driver might produce at tick i: arcade drive with smoothly
+     * varying sticks, stretches of sitting still, and the occasional shift.
+     */
+    static DriveLine.State driverState(int i) {
+        double t = i * TICK_MILLIS / 1000.0;
+        boolean still = (i / 250) % 4 == 3;    // every 20 s, sit still for 5 s
+        DriveLine.ShiftMode shift = (i / 1000) % 2 == 0 ? DriveLine.ShiftMode.HIGH : DriveLine.ShiftMode.LOW;
+        double magnitude = still ? 0 : axis(0.8 * Math.sin(t / 3));
+        double curve = still ? 0 : axis(0.4 * Math.sin(t * 1.7));
+        return new DriveLine.State(shift, DriveLine.DriveMode.ARCADE, magnitude, curve, true);
+    }
+
+    /**
+     * A recording of the given number of ticks.
+     */
+    static RobotScript autonomous(int ticks) {
+        RobotScript script = new RobotScript();
+        for (int i = 0; i < ticks; i++) {
+            Robot.State state = new Robot.State();
+            state.driveLineState = driverState(i);
+            script.add(state);
+        }
+        return script;
+    }
+
+    /**
+     * Stands in for the Robot, which can't be constructed without the HAL.  It
+     * copies state the same way Robot.getState(), Robot.currentState() and
+     * Robot.setState() do.
+     */
+    static class FakeRobot implements Recordable {
+        DriveLine.State driveLineState = new DriveLine.State();
+        final Robot.State liveState = new Robot.State();
+
+        @Override
+        public Robot.State getState() {
+            Robot.State state = new Robot.State();
+            state.driveLineState = driveLineState.copy();
+            return state;
+        }
+
+        @Override
+        public Robot.State currentState() {
+            liveState.driveLineState = driveLineState;
+            return liveState;
+        }
+
+        @Override
+        public void setState(Robot.State state) {
+            driveLineState = state.driveLineState;
+        }
+    }
+}
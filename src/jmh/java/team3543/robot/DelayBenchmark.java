@@ -0,0 +1,75 @@
+package team3543.robot;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One robot tick with 10,000 pending delays: a delay that polls the clock every
+ * loop, like delay() used to, against delay() on the timing wheel looped by all()
+ * (still looped, but only checks its timer) and on a timeline() (not looped at all).
+ *
+ * The waits are days long, so nothing fires while measuring; this is the cost
+ * of carrying timers that aren't due yet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DelayBenchmark {
+
+    static final long DAY = 24L * 3600 * 1000;
+
+    @Param({"10000"})
+    int delays;
+
+    @Param({"polling", "wheel", "timeline"})
+    String mode;
+
+    VirtualClock clock;
+    TickContext context;
+    Activity plan;
+
+    /**
+     * What delay() did before the timing wheel: compare against the clock every loop.
+     */
+    static Activity pollingDelay(long waitMilliseconds, Activity activity) {
+        return new Activity() {
+            long start = -1;
+
+            @Override
+            public boolean loop() {
+                long now = TickContext.get().now();
+                if (start < 0) {
+                    start = now;
+                }
+                return now - start < waitMilliseconds ? false : activity.loop();
+            }
+        };
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        clock = new VirtualClock();
+        context = TickContext.install(new TickContext(clock));
+        Random random = new Random(3543);
+        Activity[] pending = new Activity[delays];
+        for (int i = 0; i < delays; i++) {
+            long wait = DAY + random.nextInt(1000000);
+            Activity leaf = () -> false;
+            pending[i] = "polling".equals(mode) ? pollingDelay(wait, leaf) : Activity.delay(wait, leaf);
+        }
+        plan = "timeline".equals(mode) ? Activity.timeline(pending) : Activity.all(pending);
+        plan.loop();
+    }
+
+    @Benchmark
+    public boolean tick() {
+        clock.advance(BenchmarkScripts.TICK_MILLIS);
+        context.tick();
+        return plan.loop();
+    }
+}
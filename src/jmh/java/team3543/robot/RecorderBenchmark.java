@@ -0,0 +1,68 @@
+package team3543.robot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Per-tick cost of Recorder.record() and Recorder.playback(), measured over a full
+ * 150 s recording so that list growth is included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecorderBenchmark {
+
+    static final int TICKS = BenchmarkScripts.MATCH_TICKS;
+
+    BenchmarkScripts.FakeRobot robot;
+    Recorder recorder;
+    VirtualClock clock;
+    TickContext ticks;
+    RobotScript match;
+    DriveLine.State[] inputs;
+
+    @Setup
+    public void setup() {
+        clock = new VirtualClock();
+        ticks = TickContext.install(new TickContext(clock));
+        robot = new BenchmarkScripts.FakeRobot();
+        recorder = new Recorder(robot);
+        match = BenchmarkScripts.autonomous(TICKS);
+        inputs = new DriveLine.State[TICKS];
+        for (int i = 0; i < TICKS; i++) {
+            inputs[i] = BenchmarkScripts.driverState(i);
+        }
+        recorder.setScript(match);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TICKS)
+    public RobotScript record() {
+        recorder.resetRecording();
+        recorder.startRecording();
+        for (int i = 0; i < TICKS; i++) {
+            robot.driveLineState = inputs[i];
+            recorder.record();
+            clock.advance(RobotScript.PERIOD_MILLIS);
+            ticks.tick();
+        }
+        return recorder.getScript();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TICKS)
+    public Robot.State playback() {
+        recorder.resetPlayback();
+        recorder.startPlayback();
+        for (int i = 0; i < TICKS; i++) {
+            recorder.playback();
+            clock.advance(RobotScript.PERIOD_MILLIS);
+            ticks.tick();
+        }
+        return robot.getState();
+    }
+}
@@ -0,0 +1,59 @@
+package team3543.robot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * JSON and binary (ScriptCodec) round trips of a realistic 15 s and 150 s recording
+ * (750 and 7,500 Robot.State entries).  The encoded sizes are printed at setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RobotScriptBenchmark {
+
+    @Param({"750", "7500"})
+    int ticks;
+
+    RobotScript script;
+    String json;
+    byte[] binary;
+
+    @Setup
+    public void setup() {
+        script = BenchmarkScripts.autonomous(ticks);
+        json = script.toJSON();
+        binary = script.toBinary();
+        System.out.println(String.format("%d ticks: JSON %d bytes, binary %d bytes",
+                ticks, json.getBytes(java.nio.charset.StandardCharsets.UTF_8).length, binary.length));
+    }
+
+    @Benchmark
+    public String toJSON() {
+        return script.toJSON();
+    }
+
+    @Benchmark
+    public RobotScript fromJSON() {
+        return RobotScript.fromJSON(json);
+    }
+
+    @Benchmark
+    public RobotScript roundTrip() {
+        return RobotScript.fromJSON(script.toJSON());
+    }
+
+    @Benchmark
+    public byte[] toBinary() {
+        return script.toBinary();
+    }
+
+    @Benchmark
+    public RobotScript fromBinary() {
+        return RobotScript.fromBinary(binary);
+    }
+}
@@ -0,0 +1,164 @@
+package team3543.robot;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.*;
+
+import team3543.client.ScriptLoader;
+
+/**
+ * Time to publish a script file from the client, from opening it to the last
+ * chunk being acknowledged, and the peak heap it takes: the old way (read it
+ * all, make a String of JSON, parse, encode, send) against ScriptLoader's (map
+ * or read it once, check it in one pass, send from the buffer).  The old way
+ * didn't check binary scripts at all, so it should win there on time.
+ *
+ * The files are 1, 10 and 100 MB of JSON or binary.  The other end of the link
+ * acknowledges every chunk as it's sent and keeps nothing, so only the client's
+ * heap is counted.  Each invocation starts after a GC, with the heap pools'
+ * peaks reset; peakHeapMegabytes is what they reached.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ScriptLoadBenchmark {
+
+    @Param({"1", "10", "100"})
+    int megabytes;
+
+    @Param({"json", "binary"})
+    String format;
+
+    Path file;
+    ScriptTransfer.Sender sender;
+
+    /**
+     * Acknowledges each chunk the moment it's sent, on the sender's thread
+     */
+    static class AckingLink implements ScriptTransfer.Link {
+        final Map<String, Consumer<byte[]>> listeners = new HashMap<>();
+
+        @Override
+        public void send(String key, byte[] value) {
+            if (key.endsWith(".ack")) {
+                return;
+            }
+            ByteBuffer chunk = ByteBuffer.wrap(value);
+            int id = chunk.getInt(4), seq = chunk.getInt(8), count = chunk.getInt(12);
+            int status = seq + 1 == count ? ScriptTransfer.DONE : ScriptTransfer.RECEIVING;
+            listeners.get(ScriptTransfer.ackKey(OI.RECORD_LOAD_CHANNEL))
+                    .accept(ByteBuffer.allocate(12).putInt(id).putInt(seq + 1).putInt(status).array());
+        }
+
+        @Override
+        public void listen(String key, Consumer<byte[]> listener) {
+            listeners.put(key, listener);
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Heap {
+        public long peakHeapMegabytes;
+
+        @Setup(Level.Invocation)
+        public void reset() {
+            System.gc();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    pool.resetPeakUsage();
+                }
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void measure() {
+            long peak = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peak += pool.getPeakUsage().getUsed();
+                }
+            }
+            peakHeapMegabytes = peak >> 20;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        file = Files.createTempFile("script", "json".equals(format) ? ".json" : ".rscr");
+        long size = (long) megabytes << 20;
+        if ("json".equals(format)) {
+            // what toJSON() writes, a tick at a time so a 100 MB file doesn't need a 100 MB String
+            try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                out.write('[');
+                long written = 1;
+                for (int i = 0; written < size; i++) {
+                    RobotScript tick = new RobotScript();
+                    tick.append(state(i), i * (long) BenchmarkScripts.TICK_MILLIS);
+                    String json = tick.toJSON();
+                    if (i > 0) {
+                        out.write(',');
+                    }
+                    out.write(json, 1, json.length() - 2);
+                    written += json.length() - 1;
+                }
+                out.write(']');
+            }
+        } else {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+                ScriptCodec.Encoder encoder = new ScriptCodec.Encoder(out);
+                for (int i = 0; i % 100000 != 0 || Files.size(file) < size; i++) {
+                    encoder.write(state(i), i * (long) BenchmarkScripts.TICK_MILLIS);
+                    if (i % 100000 == 99999) {
+                        out.flush();
+                    }
+                }
+                encoder.finish();
+            }
+        }
+        sender = new ScriptTransfer.Sender(new AckingLink(), OI.RECORD_LOAD_CHANNEL);
+        System.out.println(String.format("%s: %d bytes", file, Files.size(file)));
+    }
+
+    static Robot.State state(int i) {
+        Robot.State state = new Robot.State();
+        state.driveLineState = BenchmarkScripts.driverState(i);
+        return state;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public ScriptTransfer.Stats copying(Heap heap) throws Exception {
+        byte[] bytes = Files.readAllBytes(file);
+        if ("json".equals(format)) {
+            bytes = RobotScript.fromJSON(new String(bytes, StandardCharsets.UTF_8)).toBinary();
+        }
+        return sender.send(bytes, true);     // binary went unchecked
+    }
+
+    @Benchmark
+    public ScriptTransfer.Stats streaming(Heap heap) throws Exception {
+        return sender.send(ScriptLoader.load(file), true);
+    }
+}
@@ -2,9 +2,23 @@ package team3543.client;
 
 import edu.wpi.first.networktables.*;
 import team3543.robot.OI;
+import team3543.robot.RobotScript;
+import team3543.robot.ScriptTransfer;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Client application.  If started with an argument, loads the playback script and then exits.
@@ -12,13 +26,23 @@ import java.nio.charset.StandardCharsets;
  * If started without an argument, listens for the SAVE channel and writes the last recording to "latest.json"
  * in the current directory.
  *
+ * Scripts go both ways in chunks (see ScriptTransfer), as binary scripts, and
+ * each transfer's size, throughput and ack latency are reported on stderr.
+ * Recordings are written as JSON, or as a binary script if the file name ends
+ * in .rscr; either can be played.
+ *
+ * ARCHIVE runs until it's stopped, keeping every recording the robot sends in
+ * a ScriptArchive directory.  PLAY with a directory sends every script in it,
+ * in name order.  Scripts to play are checked before they're sent, and read
+ * without copying them about (see ScriptLoader).
+ *
  */
 public class PlaybackClient {
-    enum Mode { RECORD, PLAY }
+    enum Mode { RECORD, PLAY, ARCHIVE }
 
     final NetworkTable networkTable;
-    boolean done = false;
-    String recording = null;
+    final ScriptTransfer.Link link;
+    final ScriptTransfer.Sender loader;    // scripts to play, on RECORD_LOAD_CHANNEL
 
     /**
      *
@@ -33,7 +57,7 @@ public class PlaybackClient {
         Mode mode = Mode.RECORD;
         if (args.length > 0) {
             try {
-                mode = Mode.valueOf(args[0]);
+                mode = Mode.valueOf(args[0].toUpperCase());
             }
             catch (Exception ex) {
                 usage();
@@ -43,55 +67,114 @@ public class PlaybackClient {
         PlaybackClient client = new PlaybackClient();
 
         if (mode == Mode.RECORD) {
-            client.record(args.length > 1 ? new FileOutputStream(args[1]) : System.out);
+            client.record(args.length > 1 ? new FileOutputStream(args[1]) : System.out,
+                    args.length > 1 && args[1].endsWith(".rscr"));
+        }
+        else if (mode == Mode.ARCHIVE) {
+            client.archive(new ScriptArchive(Paths.get(args.length > 1 ? args[1] : "recordings")));
+        }
+        else if (args.length > 1 && Files.isDirectory(Paths.get(args[1]))) {
+            client.playAll(Paths.get(args[1]));
+        }
+        else if (args.length > 1) {
+            client.play(Paths.get(args[1]));
         }
         else {
-            client.play(args.length > 1 ? new FileInputStream(args[1]) : System.in);
+            client.play(System.in);
         }
     }
 
     static void usage() {
         System.err.println("Usage:");
         System.err.println("java team3543.client.PlaybackClient rec <filename=robotscript.json>");
-        System.err.println("java team3543.client.PlaybackClient play <filename>");
+        System.err.println("java team3543.client.PlaybackClient play <filename|directory>");
+        System.err.println("java team3543.client.PlaybackClient archive <directory=recordings>");
         System.exit(1);
     }
 
     PlaybackClient() {
-        NetworkTableInstance inst = NetworkTableInstance.getDefault();
+        this(NetworkTableInstance.getDefault());
+        NetworkTableInstance.getDefault().startClientTeam(3543);
+    }
+
+    /**
+     * A client on an instance that's already been started, say one talking to
+     * a server in the same JVM
+     */
+    public PlaybackClient(NetworkTableInstance inst) {
         networkTable = inst.getTable(OI.NETWORK_TABLE);
-        inst.startClientTeam(3543);
+        link = new ScriptTransfer.NetworkTableLink(inst, OI.NETWORK_TABLE);
+        loader = new ScriptTransfer.Sender(link, OI.RECORD_LOAD_CHANNEL);
     }
 
-    void record(OutputStream os) throws IOException {
-        // open a stream for writing
-        // now wait on the network table for an entry change
-        networkTable.addEntryListener(OI.RECORD_SAVE_CHANNEL, (table, key, entry, value, flags) -> {
-            recording = value.getString();
-            done = true;
-        }, EntryListenerFlags.kNew | EntryListenerFlags.kUpdate );
-        while (recording == null && !done) {
+    void record(OutputStream os, boolean binary) throws IOException {
+        // now wait on the network table for a whole recording
+        CountDownLatch received = new CountDownLatch(1);
+        byte[][] recording = new byte[1][];
+        ScriptTransfer.Receiver receiver = new ScriptTransfer.Receiver(link, OI.RECORD_SAVE_CHANNEL, bytes -> {
+            recording[0] = bytes;
+            received.countDown();
+        });
+        try {
+            received.await();
+        } catch (InterruptedException ex) {
+            return;
+        }
+        System.err.println("received: " + receiver.lastStats());
+        os.write(binary ? recording[0] : RobotScript.fromBinary(recording[0]).toJSON().getBytes(StandardCharsets.UTF_8));
+        os.flush();
+    }
+
+    /**
+     * Keep every recording sent, until killed.  The listener only queues them;
+     * they're written here, one at a time.
+     */
+    public void archive(ScriptArchive archive) throws InterruptedException {
+        BlockingQueue<byte[]> recordings = new LinkedBlockingQueue<>();
+        ScriptTransfer.Receiver receiver = new ScriptTransfer.Receiver(link, OI.RECORD_SAVE_CHANNEL, recordings::add);
+        System.err.println("archiving to " + archive.directory + " (" + archive.entries().size() + " recordings so far)");
+        while (true) {
+            byte[] recording = recordings.take();
             try {
-                Thread.sleep(100);
-            } catch (InterruptedException ex) {
-                done = true;
+                ScriptArchive.Entry entry = archive.archive(recording, Instant.now());
+                System.err.println(entry == null ? "already have it" : "archived " + entry);
+                System.err.println("received: " + receiver.lastStats());
+            } catch (IOException | RuntimeException e) {
+                System.err.println("couldn't archive a recording: " + e);
             }
         }
-        if (recording != null) {
-            os.write(recording.getBytes(StandardCharsets.UTF_8));
-            os.flush();
-        }
     }
 
-    void play(InputStream is) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        int len = 4096, bread = 0;
-        byte [] bytes = new byte[len];
-        while (-1 != (bread = is.read(bytes))) {
-            bos.write(bytes,0, bread);
+    /**
+     * Send every script in a directory, one after another
+     */
+    void playAll(Path directory) throws Exception {
+        List<Path> scripts = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.{rscr,json}")) {
+            for (Path file : files) {
+                scripts.add(file);
+            }
         }
-        String json = new String(bos.toByteArray(), StandardCharsets.UTF_8);
-        System.out.println("read: "+json);
-        networkTable.getEntry(OI.RECORD_LOAD_CHANNEL).setString(json);
+        Collections.sort(scripts);
+        for (Path file : scripts) {
+            System.err.println(file + ": " + loader.send(ScriptLoader.load(file), true));
+        }
+    }
+
+    /**
+     * Send one script, checked first (see ScriptLoader)
+     */
+    void play(Path file) throws Exception {
+        play(ScriptLoader.load(file));
+    }
+
+    void play(InputStream is) throws Exception {
+        play(ScriptLoader.load(is));
+    }
+
+    public ScriptTransfer.Stats play(ByteBuffer script) throws Exception {
+        ScriptTransfer.Stats stats = loader.send(script, true);
+        System.err.println("sent: " + stats);
+        return stats;
     }
 }
@@ -0,0 +1,161 @@
+package team3543.client;
+
+import team3543.robot.RobotScript;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A directory of recordings received from the robot, with an index.
+ *
+ * Each recording is a binary script named for when it arrived and its hash,
+ * 20190216-143502-3fa9c2d17b04.rscr, so the same recording sent twice is only
+ * kept once.  It is written to a temporary file, forced to disk and moved into
+ * place in one step, so the directory never has half a recording in it.
+ *
+ * index.tsv has a line per recording, appended as each one is kept:
+ * <pre>
+ * name	received	ticks	duration ms	bytes	sha-256
+ * </pre>
+ *
+ * @author mk
+ */
+public class ScriptArchive {
+
+    public static final String INDEX = "index.tsv";
+    static final DateTimeFormatter STAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneId.systemDefault());
+
+    final Path directory;
+    final Map<String, Entry> byHash = new LinkedHashMap<>();   // in the order they arrived
+
+    public static class Entry {
+        public final String name;
+        public final Instant received;
+        public final int ticks;
+        public final long durationMillis;
+        public final long bytes;
+        public final String hash;
+
+        Entry(String name, Instant received, int ticks, long durationMillis, long bytes, String hash) {
+            this.name = name;
+            this.received = received;
+            this.ticks = ticks;
+            this.durationMillis = durationMillis;
+            this.bytes = bytes;
+            this.hash = hash;
+        }
+
+        String line() {
+            return name + "\t" + received + "\t" + ticks + "\t" + durationMillis + "\t" + bytes + "\t" + hash + "\n";
+        }
+
+        static Entry parse(String line) {
+            String[] fields = line.split("\t");
+            if (fields.length < 6) {
+                throw new IllegalArgumentException("Bad index line: " + line);
+            }
+            return new Entry(fields[0], Instant.parse(fields[1]), Integer.parseInt(fields[2]),
+                    Long.parseLong(fields[3]), Long.parseLong(fields[4]), fields[5]);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d ticks, %.1f s, %d bytes", name, ticks, durationMillis / 1000.0, bytes);
+        }
+    }
+
+    /**
+     * Open (or start) the archive in a directory, reading its index
+     */
+    public ScriptArchive(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        Path index = directory.resolve(INDEX);
+        if (Files.exists(index)) {
+            for (String line : Files.readAllLines(index, StandardCharsets.UTF_8)) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    Entry entry = Entry.parse(line);
+                    // a line for a file that never made it (or was deleted) doesn't count
+                    if (Files.exists(directory.resolve(entry.name))) {
+                        byHash.put(entry.hash, entry);
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Skipping " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Keep a binary script, unless it's already kept
+     *
+     * @return the new entry, or null if it was already there
+     * @throws IllegalArgumentException if it isn't a valid script
+     */
+    public synchronized Entry archive(byte[] script, Instant received) throws IOException {
+        RobotScript decoded = RobotScript.fromBinary(script);
+        String hash = sha256(script);
+        if (byHash.containsKey(hash)) {
+            return null;
+        }
+        String name = STAMP.format(received) + "-" + hash.substring(0, 12) + ".rscr";
+        Path file = directory.resolve(name);
+        Path temporary = Files.createTempFile(directory, ".incoming-", ".tmp");
+        try {
+            write(temporary, ByteBuffer.wrap(script), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        Entry entry = new Entry(name, received, decoded.size(), decoded.duration(), script.length, hash);
+        write(directory.resolve(INDEX), StandardCharsets.UTF_8.encode(entry.line()),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        byHash.put(hash, entry);
+        return entry;
+    }
+
+    static void write(Path path, ByteBuffer bytes, OpenOption... options) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, options)) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(true);
+        }
+    }
+
+    public synchronized List<Entry> entries() {
+        return Collections.unmodifiableList(new ArrayList<>(byHash.values()));
+    }
+
+    public Path path(Entry entry) {
+        return directory.resolve(entry.name);
+    }
+
+    static String sha256(byte[] bytes) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);     // every JVM has SHA-256
+        }
+    }
+}
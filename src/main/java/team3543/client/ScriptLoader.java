@@ -0,0 +1,100 @@
+package team3543.client;
+
+import team3543.robot.MappedScript;
+import team3543.robot.RobotScript;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Gets a script file ready to send to the robot, which takes binary scripts.
+ *
+ * The file is read through a FileChannel, and mapped if it's big, so it's never
+ * copied onto the heap more than once.  A binary script is checked by decoding
+ * it straight from the buffer (CRC and all) and sent as it is; JSON is parsed
+ * as it streams out of the buffer, which checks it, and then encoded.  Either
+ * way it's one pass, and nothing bad is sent.
+ *
+ */
+public class ScriptLoader {
+
+    /** Files at least this big are mapped instead of read */
+    public static final long MAP_THRESHOLD = 1 << 20;
+
+    /**
+     * A checked binary script from a file, JSON or binary
+     *
+     * @throws IOException if it can't be read, or isn't a valid script
+     */
+    public static ByteBuffer load(Path path) throws IOException {
+        return check(path, read(path));
+    }
+
+    /**
+     * The same from a stream, say stdin, which can't be mapped
+     */
+    public static ByteBuffer load(InputStream in) throws IOException {
+        in = new BufferedInputStream(in);
+        in.mark(4);
+        byte[] magic = new byte[4];
+        int n = in.read(magic);
+        in.reset();
+        try {
+            if (n == 4 && isBinary(ByteBuffer.wrap(magic))) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[64 * 1024];
+                for (int read; (read = in.read(buffer)) != -1; ) {
+                    out.write(buffer, 0, read);
+                }
+                byte[] script = out.toByteArray();
+                RobotScript.fromBinary(script);     // just checking
+                return ByteBuffer.wrap(script);
+            }
+            return ByteBuffer.wrap(RobotScript.fromJSON(in).toBinary());
+        } catch (RuntimeException e) {
+            throw new IOException("Not a valid script: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The whole file: mapped if it's big, otherwise read into the heap
+     */
+    static ByteBuffer read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                // keep reading
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    static ByteBuffer check(Path path, ByteBuffer file) throws IOException {
+        try {
+            if (isBinary(file)) {
+                MappedScript.wrap(path, file).verify();
+                return file;
+            }
+            return ByteBuffer.wrap(RobotScript.fromJSON(new MappedScript.BufferInputStream(file.duplicate())).toBinary());
+        } catch (IOException | RuntimeException e) {
+            throw new IOException(path + " is not a valid script: " + e.getMessage(), e);
+        }
+    }
+
+    static boolean isBinary(ByteBuffer buffer) {
+        int at = buffer.position();
+        return buffer.remaining() >= 4 && buffer.get(at) == 'R' && buffer.get(at + 1) == 'S'
+                && buffer.get(at + 2) == 'C' && buffer.get(at + 3) == 'R';
+    }
+}
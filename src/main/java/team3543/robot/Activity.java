@@ -1,6 +1,9 @@
 package team3543.robot;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * The activity interface is at the core of this robot model.
@@ -45,6 +48,17 @@ public interface Activity {
 	 * @return false if the activity is not complete, true if it is
 	 */
 	boolean loop();
+	
+	/**
+	 * Called when an activity is dropped before it completed, for example
+	 * when the sequence it is in is cleared.  Activities holding on to 
+	 * something (background work, a timer) let go of it here.  Combinators
+	 * pass it on to their activities.
+	 * 
+	 * The default does nothing.
+	 */
+	default void cancel() {
+	}
 		
 	/**
 	 * Establishes a last-in-first-out (LIFO) activity stack
@@ -140,13 +154,7 @@ public interface Activity {
 	 * @return
 	 */
 	static Activity always(Activity activity) {
-		return new Activity() {
-			@Override
-			public boolean loop() {
-				activity.loop();
-				return false;
-			}
-		};
+		return new Always(activity);
 	};
 	
 	/**
@@ -160,17 +168,7 @@ public interface Activity {
 	 * @return the value returned by the underlying activity loop, the ONE time it was called
 	 */
 	static Activity once(final Activity subActivity) {
-		return new Activity() {
-			boolean once = false;
-			boolean returnValue = false;
-			public boolean loop() {
-				if (!once) {
-					returnValue = subActivity.loop();
-					once = true;
-				}
-				return returnValue;
-			}
-		};
+		return new Once(subActivity);
 	}
 	
 	/**
@@ -184,13 +182,7 @@ public interface Activity {
 	 * @return false, unless the underlying activity runs and returns true
 	 */
 	static Activity unless(Activity testIsTrue, Activity activityWillRun) {
-		return from(() -> {
-			if (testIsTrue.loop()) {
-				return false;
-			} else {
-				return activityWillRun.loop();
-			}						
-		});
+		return new Unless(testIsTrue, activityWillRun);
 	}
 		
 	/**
@@ -205,16 +197,7 @@ public interface Activity {
 	 * @return false, unless the underlying activity runs and returns true
 	 */
 	static Activity when(Activity testIsTrue, Activity thisActivityWillRun, Activity otherwiseThisActivityWillRun) {
-		return new Activity() {
-			@Override
-			public boolean loop() {
-				if (testIsTrue.loop()) {
-					return thisActivityWillRun.loop();
-				} else {
-					return otherwiseThisActivityWillRun.loop();
-				}
-			}
-		};
+		return new When(testIsTrue, thisActivityWillRun, otherwiseThisActivityWillRun);
 	}	
 		
 	/**
@@ -234,12 +217,7 @@ public interface Activity {
 	 * @return
 	 */
 	static Activity noop() {
-		return new Activity() {
-			@Override
-			public boolean loop() {
-				return false;
-			}			
-		};
+		return new Noop();
 	}
 	
 	/**
@@ -296,38 +274,688 @@ public interface Activity {
 	 * @return
 	 */
 	static Activity any(Activity...activities) {
-		return from(() -> {
-			for (Activity a : activities) {
-				if (a.loop()) {
-					return true;
-				}
-			}
-			return false;
-		});
+		return new Any(activities);
 	}
 	
 	/**
 	 * Return false until waitMilliseconds have passed, then run and return the activity.
 	 * 
+	 * The wait starts the first time the delay is looped, not when it is created,
+	 * and is measured on the TickContext clock.  While waiting, the delay only
+	 * checks whether its timer has fired.
+	 * 
 	 * @param waitMilliseconds
 	 * @param activity
 	 * @return
 	 */
 	static Activity delay(long waitMilliseconds, Activity activity) {
+		return new Delayed(waitMilliseconds, false, false, activity);
+	}
+	
+	/**
+	 * Run an activity once, waitMilliseconds after this is first looped.
+	 * 
+	 * Unlike delay(), the activity is only looped the one time; this is for 
+	 * events like after(2000, claw.openActivity()).
+	 * 
+	 * @param waitMilliseconds
+	 * @param activity
+	 * @return false until the activity has run, then true
+	 */
+	static Activity after(long waitMilliseconds, Activity activity) {
+		return new Delayed(waitMilliseconds, false, true, activity);
+	}
+	
+	/**
+	 * Run an activity once, at a given time since the TickContext was restarted
+	 * (which the robot does at the start of each mode).
+	 * 
+	 * @param millis time since the start of the mode, e.g. 5000 for 5 s into autonomous
+	 * @param activity
+	 * @return false until the activity has run, then true
+	 */
+	static Activity at(long millis, Activity activity) {
+		return new Delayed(millis, true, true, activity);
+	}
+	
+	/**
+	 * Runs activities on a timeline, for plans with lots of timed steps.
+	 * 
+	 * The delay(), after() and at() activities given are not looped at all
+	 * until their time comes; the TimerWheel wakes each one up when it is due.
+	 * Anything else is looped every time, like queue().  A completed activity
+	 * is removed.
+	 * 
+	 * <code>
+	 * timeline(
+	 * 		driveLine.driveStraight(2, 0.5, 0.01),
+	 * 		at(3000, claw.openActivity()),
+	 * 		at(4500, claw.closeActivity())
+	 * )
+	 * </code>
+	 * 
+	 * @param activities
+	 * @return true once every activity has run and completed
+	 */
+	static Timeline timeline(Activity...activities) {
+		return new Timeline(activities);
+	}
+	
+	/**
+	 * Run an activity until it completes or timeoutMilliseconds have passed.
+	 * 
+	 * The time starts the first time this is looped, and is measured on the 
+	 * TickContext clock.
+	 * 
+	 * @param timeoutMilliseconds
+	 * @param activity
+	 * @return true when the activity completes or the time is up
+	 */
+	static Activity timeout(long timeoutMilliseconds, Activity activity) {
+		return timeout(timeoutMilliseconds, activity, () -> true);
+	}
+	
+	/**
+	 * Run an activity until it completes, or if timeoutMilliseconds pass first,
+	 * stop running it and run the other activity instead.
+	 * 
+	 * @param timeoutMilliseconds
+	 * @param activity
+	 * @param otherwise runs (instead of activity) once the time is up
+	 * @return true when the activity completes, or after the time is up, whatever otherwise returns
+	 */
+	static Activity timeout(long timeoutMilliseconds, Activity activity, Activity otherwise) {
+		return new Activity() {
+			long start;
+			boolean started = false;	// clock time can be negative, so no sentinel
+			boolean completed = false;
+			@Override
+			public boolean loop() {
+				long now = TickContext.get().now();
+				if (!started) {
+					start = now;
+					started = true;
+				}
+				if (completed) {
+					return true;
+				}
+				if (now - start >= timeoutMilliseconds) {
+					return otherwise.loop();
+				}
+				completed = activity.loop();
+				return completed;
+			}
+			
+			@Override
+			public void cancel() {
+				activity.cancel();
+				otherwise.cancel();
+			}
+		};
+	}
+	
+	/**
+	 * Run an activity at most once every intervalMilliseconds.
+	 * 
+	 * It runs the first time this is looped, then again once the interval has 
+	 * passed on the TickContext clock.  Useful for things like dashboard updates.
+	 * 
+	 * @param intervalMilliseconds
+	 * @param activity
+	 * @return what the activity returned, if it ran this time, otherwise false
+	 */
+	static Activity rateLimit(long intervalMilliseconds, Activity activity) {
 		return new Activity() {
-			final long start = System.currentTimeMillis();
+			long last = 0;
+			boolean ran = false;
 			@Override
 			public boolean loop() {
-				if (System.currentTimeMillis() - start < waitMilliseconds) {
+				long now = TickContext.get().now();
+				if (ran && now - last < intervalMilliseconds) {
 					return false;
 				}
-				else {
-					return activity.loop();
+				ran = true;
+				last = now;
+				return activity.loop();
+			}
+			
+			@Override
+			public void cancel() {
+				activity.cancel();
+			}
+		};
+	}
+	
+	/**
+	 * Run an activity once every so many robot ticks.
+	 * 
+	 * It runs the first time this is looped, then again once the TickContext
+	 * has counted that many more ticks.
+	 * 
+	 * @param ticks
+	 * @param activity
+	 * @return what the activity returned, if it ran this time, otherwise false
+	 */
+	static Activity every(long ticks, Activity activity) {
+		return new Activity() {
+			long last = 0;
+			boolean ran = false;
+			@Override
+			public boolean loop() {
+				long now = TickContext.get().ticks();
+				if (ran && now - last < ticks) {
+					return false;
 				}
-			}			
+				ran = true;
+				last = now;
+				return activity.loop();
+			}
+			
+			@Override
+			public void cancel() {
+				activity.cancel();
+			}
 		};
 	}
 
+	/**
+	 * Declare the subsystems an activity writes to.
+	 * 
+	 * Each tick, the first activity to loop gets the subsystems it requires,
+	 * and any other activity requiring one of them is skipped that tick (it
+	 * isn't looped, and returns false) until they are free again.  So in a
+	 * sequence the earlier activity wins, and on a stack the top one does.
+	 * 
+	 * <code>
+	 * requires(from(() -> { driveLine.tankDrive(l, r, false); return false; }), driveLine)
+	 * </code>
+	 * 
+	 * @param activity
+	 * @param subsystems
+	 * @return what the activity returned, or false if it was skipped
+	 * @see Arbiter
+	 */
+	static Arbiter.Requires requires(Activity activity, Actuated...subsystems) {
+		return new Arbiter.Requires(activity, subsystems);
+	}
+	
+	/**
+	 * Like all(), but children marked pure() run at the same time, on a 
+	 * ForkJoinPool, while the others run on the robot thread.
+	 * 
+	 * <code>
+	 * parallel(
+	 * 		pure(trajectory.sample()),
+	 * 		pure(fusion.update()),
+	 * 		driveLine.followPath()		// actuates, so always runs here
+	 * )
+	 * </code>
+	 * 
+	 * @param activities
+	 * @return true if every activity returned true this time
+	 * @see Parallel
+	 */
+	static Parallel parallel(Activity...activities) {
+		return new Parallel(activities);
+	}
+	
+	/**
+	 * Mark an activity as pure computation, so parallel() may run it off the
+	 * robot thread.  It must not share anything with the other children.  An
+	 * activity that can reach an Actuated subsystem runs on the robot thread
+	 * anyway.
+	 * 
+	 * @param activity
+	 * @return the same value as activity
+	 */
+	static Activity pure(Activity activity) {
+		return new Parallel.Pure(activity);
+	}
+	
+	/**
+	 * Do some work off the robot loop, then hand the result over.
+	 * 
+	 * The work runs on a background thread, and must not touch subsystems.  
+	 * The loop only checks if it is done, and when it is, calls then with the
+	 * result on the robot thread.  Chain deadline() to give up after a while.
+	 * 
+	 * @param work the slow part, e.g. generating a path
+	 * @param then gets the result, e.g. driveLine::setPath; can be null
+	 * @return true once then has been called
+	 * @see Async
+	 */
+	static <T> Async<T> async(Supplier<T> work, Consumer<? super T> then) {
+		return new Async<>(work, then);
+	}
+	
+	/**
+	 * Wait (without blocking) for a future to complete.
+	 * 
+	 * Cancelling the activity cancels the future.
+	 * 
+	 * @param future
+	 * @return true once the future is done
+	 * @see Async
+	 */
+	static Async<?> future(CompletableFuture<?> future) {
+		return new Async<>(future);
+	}
+
+	/**
+	 * Time an activity.
+	 * 
+	 * Every loop() of the activity is timed with System.nanoTime() and recorded,
+	 * along with whether it completed, in the ActivityStats histogram with the 
+	 * given name.  Recording doesn't allocate, so it is cheap enough to leave on.
+	 * 
+	 * @param name the histogram to record into; activities can share one
+	 * @param activity
+	 * @return the same value as activity
+	 * @see ActivityStats
+	 */
+	static Activity instrumented(String name, Activity activity) {
+		return new Instrumented(name, activity);
+	}
+	
+	/**
+	 * Compile an activity tree into a flat program.
+	 * 
+	 * The combinators in the tree (each/queue/all, stack, when, unless, any, once,
+	 * always and noop) are turned into arrays walked by a single interpreter loop,
+	 * instead of a chain of objects each calling the next one's loop().  noop()
+	 * branches are folded away and nested plain each(each(...)) are flattened.
+	 * Anything else (wrap(), lambdas, your own activities) is called as-is.
+	 * 
+	 * The program returns the same values as the tree, but it takes a snapshot:
+	 * build the tree completely first, then loop the compiled activity instead of
+	 * the tree.  Activities pushed onto a Sequence or Stack afterwards are not seen.
+	 * 
+	 * @param root the tree to compile
+	 * @return an activity that runs the compiled program
+	 */
+	static CompiledActivity compile(Activity root) {
+		return new CompiledActivity(root);
+	}
+
+	/**
+	 * Runs an activity, but always returns false
+	 * 
+	 * @see always()
+	 */
+	public static class Always implements Activity {
+		final Activity activity;
+		
+		Always(Activity activity) {
+			this.activity = activity;
+		}
+		
+		@Override
+		public boolean loop() {
+			activity.loop();
+			return false;
+		}
+		
+		@Override
+		public void cancel() {
+			activity.cancel();
+		}
+	} // Always
+	
+	/**
+	 * Runs an activity once, then keeps returning what it returned
+	 * 
+	 * @see once()
+	 */
+	public static class Once implements Activity {
+		final Activity subActivity;
+		boolean once = false;
+		boolean returnValue = false;
+		
+		Once(Activity subActivity) {
+			this.subActivity = subActivity;
+		}
+		
+		@Override
+		public boolean loop() {
+			if (!once) {
+				returnValue = subActivity.loop();
+				once = true;
+			}
+			return returnValue;
+		}
+		
+		@Override
+		public void cancel() {
+			subActivity.cancel();
+		}
+	} // Once
+	
+	/**
+	 * Runs an activity unless a test activity returns true
+	 * 
+	 * @see unless()
+	 */
+	public static class Unless implements Activity {
+		final Activity testIsTrue;
+		final Activity activityWillRun;
+		
+		Unless(Activity testIsTrue, Activity activityWillRun) {
+			this.testIsTrue = testIsTrue;
+			this.activityWillRun = activityWillRun;
+		}
+		
+		@Override
+		public boolean loop() {
+			if (testIsTrue.loop()) {
+				return false;
+			} else {
+				return activityWillRun.loop();
+			}
+		}
+		
+		@Override
+		public void cancel() {
+			testIsTrue.cancel();
+			activityWillRun.cancel();
+		}
+	} // Unless
+	
+	/**
+	 * Runs one activity or another depending on a test activity
+	 * 
+	 * @see when()
+	 */
+	public static class When implements Activity {
+		final Activity testIsTrue;
+		final Activity thisActivityWillRun;
+		final Activity otherwiseThisActivityWillRun;
+		
+		When(Activity testIsTrue, Activity thisActivityWillRun, Activity otherwiseThisActivityWillRun) {
+			this.testIsTrue = testIsTrue;
+			this.thisActivityWillRun = thisActivityWillRun;
+			this.otherwiseThisActivityWillRun = otherwiseThisActivityWillRun;
+		}
+		
+		@Override
+		public boolean loop() {
+			if (testIsTrue.loop()) {
+				return thisActivityWillRun.loop();
+			} else {
+				return otherwiseThisActivityWillRun.loop();
+			}
+		}
+		
+		@Override
+		public void cancel() {
+			testIsTrue.cancel();
+			thisActivityWillRun.cancel();
+			otherwiseThisActivityWillRun.cancel();
+		}
+	} // When
+	
+	/**
+	 * Does nothing, and returns false
+	 * 
+	 * @see noop()
+	 */
+	public static class Noop implements Activity {
+		@Override
+		public boolean loop() {
+			return false;
+		}
+	} // Noop
+	
+	/**
+	 * Waits on a TimerWheel timer, then runs an activity
+	 * 
+	 * @see delay()
+	 * @see after()
+	 * @see at()
+	 */
+	public static class Delayed implements Activity {
+		final TimerWheel.Timer timer = new TimerWheel.Timer() {
+			@Override
+			protected void expired() {
+				if (timeline != null) {
+					timeline.wake(Delayed.this);
+				}
+			}
+		};
+		final long millis;
+		final boolean fromRestart;	// millis is since TickContext.restart(), not since first loop
+		final boolean runOnce;
+		final Activity activity;
+		boolean scheduled = false;
+		boolean ran = false;
+		TimerWheel wheel = null;	// the one the timer is on, which needn't be the current context's
+		Timeline timeline = null;	// to wake up when the timer fires, if on one
+		
+		Delayed(long millis, boolean fromRestart, boolean runOnce, Activity activity) {
+			this.millis = millis;
+			this.fromRestart = fromRestart;
+			this.runOnce = runOnce;
+			this.activity = activity;
+		}
+		
+		/**
+		 * Start the timer, if it hasn't been started already
+		 */
+		void schedule() {
+			if (!scheduled) {
+				scheduled = true;
+				TickContext context = TickContext.get();
+				long start = fromRestart ? context.epoch : context.now();
+				wheel = context.timers;
+				wheel.schedule(timer, start + millis);
+			}
+		}
+		
+		@Override
+		public boolean loop() {
+			schedule();
+			if (!timer.fired()) {
+				return false;
+			}
+			if (!runOnce) {
+				return activity.loop();
+			}
+			if (!ran) {
+				activity.loop();
+				ran = true;
+			}
+			return true;
+		}
+		
+		@Override
+		public void cancel() {
+			// does nothing if it has already fired
+			if (wheel != null) {
+				wheel.cancel(timer);
+			}
+			activity.cancel();
+		}
+	} // Delayed
+	
+	/**
+	 * Loops only the activities that are due
+	 * 
+	 * @see timeline()
+	 */
+	public static class Timeline implements Activity {
+		final Sequence running = queue();
+		final Delayed[] waiting;
+		int pending = 0;
+		boolean started = false;
+		
+		Timeline(Activity[] activities) {
+			waiting = new Delayed[activities.length];
+			for (Activity a : activities) {
+				if (a instanceof Delayed && ((Delayed) a).timeline == null && !((Delayed) a).scheduled) {
+					((Delayed) a).timeline = this;
+					waiting[pending++] = (Delayed) a;
+				} else {
+					running.push(a);
+				}
+			}
+		}
+		
+		/**
+		 * Called by a delayed activity's timer when it fires
+		 */
+		void wake(Delayed delayed) {
+			pending--;
+			running.push(delayed);
+		}
+		
+		/**
+		 * Number of activities still waiting for their time
+		 */
+		public int pending() {
+			return pending;
+		}
+		
+		@Override
+		public boolean loop() {
+			if (!started) {
+				// start all the timers; any that are already due are woken right away
+				started = true;
+				for (Delayed d : waiting) {
+					if (d != null) d.schedule();
+				}
+			}
+			boolean done = running.loop();
+			return done && pending == 0;
+		}
+		
+		@Override
+		public void cancel() {
+			running.clear();
+			for (Delayed d : waiting) {
+				if (d != null && !d.timer.fired()) d.cancel();
+			}
+			pending = 0;
+		}
+	} // Timeline
+	
+	/**
+	 * Times each loop() of an activity
+	 * 
+	 * @see instrumented()
+	 */
+	public static class Instrumented implements Activity {
+		final Activity activity;
+		final ActivityStats.Histogram histogram;
+		int uses = 0;		// places in a Sequence or Stack it's in, see Instruments
+		
+		Instrumented(String name, Activity activity) {
+			this(ActivityStats.histogram(name), activity);
+		}
+		
+		Instrumented(ActivityStats.Histogram histogram, Activity activity) {
+			this.activity = activity;
+			this.histogram = histogram;
+		}
+		
+		@Override
+		public boolean loop() {
+			long start = System.nanoTime();
+			boolean done = activity.loop();
+			histogram.record(System.nanoTime() - start, done);
+			return done;
+		}
+		
+		@Override
+		public void cancel() {
+			activity.cancel();
+		}
+	} // Instrumented
+	
+	/**
+	 * The instrumented wrappers for a Sequence or Stack.  Each activity is given a
+	 * histogram once, the first time it's seen: "auto[0]", "auto[1]", ...  So an
+	 * activity keeps its histogram however the others move about.  Only the first
+	 * MAX_NAMES get their own; the rest share "auto[+]", so a sequence that's
+	 * given new activities all match doesn't make new histograms all match.
+	 * 
+	 * While an activity is in the Sequence or Stack, pushing it again reuses its
+	 * wrapper instead of allocating a new one.  The wrapper is let go once the
+	 * last of it is taken out (see release()).
+	 */
+	static final class Instruments {
+		static final int MAX_NAMES = 32;
+		
+		final String name;
+		// weak, and a histogram doesn't refer back to the activity, so finished ones can be collected
+		final java.util.Map<Activity, ActivityStats.Histogram> histograms = new java.util.WeakHashMap<>();
+		// only the activities in there now
+		final java.util.Map<Activity, Instrumented> wrapped = new java.util.IdentityHashMap<>();
+		int named = 0;
+		
+		Instruments(String name) {
+			this.name = name;
+		}
+		
+		Activity wrap(Activity activity) {
+			if (activity instanceof Instrumented) {
+				return activity;
+			}
+			Instrumented instrumented = wrapped.get(activity);
+			if (instrumented == null) {
+				ActivityStats.Histogram histogram = histograms.get(activity);
+				if (histogram == null) {
+					histogram = ActivityStats.histogram(named < MAX_NAMES ? name + "[" + named++ + "]" : name + "[+]");
+					histograms.put(activity, histogram);
+				}
+				instrumented = new Instrumented(histogram, activity);
+				wrapped.put(activity, instrumented);
+			}
+			instrumented.uses++;
+			return instrumented;
+		}
+		
+		/**
+		 * Something wrap() returned has been taken out of the Sequence or Stack
+		 */
+		void release(Activity activity) {
+			if (activity instanceof Instrumented) {
+				Instrumented instrumented = (Instrumented) activity;
+				if (--instrumented.uses <= 0 && wrapped.get(instrumented.activity) == instrumented) {
+					wrapped.remove(instrumented.activity);
+				}
+			}
+		}
+	} // Instruments
+	
+	/**
+	 * Runs activities in order until one returns true
+	 * 
+	 * @see any()
+	 */
+	public static class Any implements Activity {
+		final Activity[] activities;
+		
+		Any(Activity[] activities) {
+			this.activities = activities;
+		}
+		
+		@Override
+		public boolean loop() {
+			for (Activity a : activities) {
+				if (a.loop()) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		@Override
+		public void cancel() {
+			for (Activity a : activities) {
+				a.cancel();
+			}
+		}
+	} // Any
+	
 	/**
 	 * Represents a sequence of activities, executed in a particular order
 	 * 
@@ -344,12 +972,16 @@ public interface Activity {
 	 * @author mk
 	 */
 	public static class Sequence implements Activity {
-		java.util.List<Activity> list = new java.util.ArrayList<>();
+		// Backed by a plain array rather than a java.util.List so that loop()
+		// never allocates; the array only grows when activities are pushed.
+		Activity[] list = new Activity[8];
+		int size = 0;
 		boolean removeCompleted = false;
 		boolean stopOnFalse = false;
 		boolean stopOnTrue = false;
 		boolean onListEmpty = true;
 		boolean trueIfAllTrue = false;
+		Instruments instruments = null;
 		
 		/**
 		 * Add an activity to the sequence. 
@@ -358,7 +990,25 @@ public interface Activity {
 		 * @return this sequence, so you can chain method calls
 		 */
 		public Sequence push(Activity...activities) {
-			for (Activity a : activities) list.add(a);
+			for (Activity a : activities) push(a);
+			return this;
+		}
+		
+		/**
+		 * Add a single activity to the sequence.  Unlike the varargs version,
+		 * this does not allocate an array, so it is safe to call every loop.
+		 * 
+		 * @param activity
+		 * @return this sequence, so you can chain method calls
+		 */
+		public Sequence push(Activity activity) {
+			if (instruments != null) {
+				activity = instruments.wrap(activity);
+			}
+			if (size == list.length) {
+				list = java.util.Arrays.copyOf(list, size * 2);
+			}
+			list[size++] = activity;
 			return this;
 		}
 		
@@ -368,7 +1018,7 @@ public interface Activity {
 		 * @return
 		 */
 		public boolean isEmpty() {
-			return list.isEmpty();
+			return size == 0;
 		}
 		
 		/**
@@ -376,7 +1026,7 @@ public interface Activity {
 		 * @return
 		 */
 		public int size() {
-			return list.size();
+			return size;
 		}
 		
 		/**
@@ -389,6 +1039,77 @@ public interface Activity {
 			return push(activities);
 		}
 		
+		/**
+		 * Take an activity out of the sequence, cancelling it
+		 * 
+		 * @param activity
+		 * @return true if it was in the sequence
+		 */
+		public boolean remove(Activity activity) {
+			for (int i = 0; i < size; i++) {
+				if (list[i] == activity || list[i] instanceof Instrumented && ((Instrumented) list[i]).activity == activity) {
+					Activity removed = list[i];
+					System.arraycopy(list, i + 1, list, i, size - i - 1);
+					list[--size] = null;
+					if (instruments != null) {
+						instruments.release(removed);
+					}
+					removed.cancel();
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		/**
+		 * Cancel and remove every activity in the sequence
+		 * 
+		 * @return this sequence, so you can chain method calls
+		 */
+		public Sequence clear() {
+			// empty it first, in case cancelling something pushes onto it
+			Activity[] removed = java.util.Arrays.copyOf(list, size);
+			while (size > 0) {
+				list[--size] = null;
+			}
+			for (Activity a : removed) {
+				if (instruments != null) {
+					instruments.release(a);
+				}
+				a.cancel();
+			}
+			return this;
+		}
+		
+		/**
+		 * Cancel every activity in the sequence, leaving them in it
+		 */
+		@Override
+		public void cancel() {
+			for (int i = 0; i < size; i++) {
+				list[i].cancel();
+			}
+		}
+		
+		/**
+		 * Time every activity in the sequence.
+		 * 
+		 * Each activity, including ones pushed later, is wrapped with instrumented(),
+		 * using a histogram named after this sequence and the order activities 
+		 * were first given to it, like "auto[2]".  An activity pushed again keeps 
+		 * its name, and re-queueing it from inside the loop doesn't allocate.
+		 * 
+		 * @param name
+		 * @return this sequence, so you can chain method calls
+		 */
+		public Sequence instrument(String name) {
+			this.instruments = new Instruments(name);
+			for (int i = 0; i < size; i++) {
+				list[i] = instruments.wrap(list[i]);
+			}
+			return this;
+		}
+		
 		/**
 		 * Remove completed activities or not (default FALSE)
 		 * 
@@ -447,34 +1168,47 @@ public interface Activity {
 		/**
 		 * Loop. 
 		 * 
+		 * Completed activities are removed by compacting the array in place, 
+		 * so a steady-state call allocates nothing.
+		 * 
 		 * @return onListEmpty when list is empty, otherwise false
 		 */
 		@Override
 		public boolean loop() {
-			boolean done = false;
-			boolean allDone = true;
-			int ctr = 0, len = list.size();
-			if (list.isEmpty()) {
+			if (size == 0) {
 				return onListEmpty;
 			}
-			java.util.List<Activity> toRemove = new java.util.ArrayList<>();
-			for (Activity activity : list) {
+			boolean done = false;
+			boolean allDone = true;
+			boolean stopped = false;
+			int len = size, i = 0, kept = 0;
+			while (i < len) {
+				Activity activity = list[i++];
 				done = activity.loop();
 				allDone &= done;
-				// if the activity is done and removeCompleted is set, remove it
-				if (done) {
-					if (removeCompleted) toRemove.add(activity);
-					if (stopOnTrue) break;
-				} 
-				else { // if the activity is not done and we're stopping on first false, stop the loop
-					if (stopOnFalse) break;
+				// if the activity is done and removeCompleted is set, drop it, otherwise keep it
+				if (!(done && removeCompleted)) {
+					list[kept++] = activity;
+				} else if (instruments != null) {
+					instruments.release(activity);
+				}
+				// stop early on the first true or false, if asked to
+				if (done ? stopOnTrue : stopOnFalse) {
+					stopped = true;
+					break;
 				}
-				ctr++;
 			}
-			for (Activity a : toRemove) list.remove(a);			
+			// shift down anything we didn't visit (or that was pushed while looping)
+			while (i < size) {
+				list[kept++] = list[i++];
+			}
+			// clear the vacated slots so removed activities can be collected
+			while (size > kept) {
+				list[--size] = null;
+			}
 			// if we visited each item in the list and trueIfAllTrue is set,
 			// return the ANDed value of all the activity responses.  Otherwise return false.
-			return (ctr == len && trueIfAllTrue) ? allDone : false;
+			return (!stopped && trueIfAllTrue) ? allDone : false;
 		}
 	} // Sequence
 	
@@ -489,28 +1223,105 @@ public interface Activity {
 	 * @author mk
 	 */
 	public static class Stack implements Activity {
-		java.util.Stack<Activity> stack = new java.util.Stack<>();
+		// An unsynchronized, array-backed stack; java.util.Stack is a synchronized Vector
+		Activity[] stack = new Activity[8];
+		int top = 0;
+		Instruments instruments = null;
 		
 		public Stack push(Activity activity) {
-			stack.push(activity);
+			if (instruments != null) {
+				activity = instruments.wrap(activity);
+			}
+			if (top == stack.length) {
+				stack = java.util.Arrays.copyOf(stack, top * 2);
+			}
+			stack[top++] = activity;
+			return this;
+		}
+		
+		/**
+		 * Time every activity on the stack.
+		 * 
+		 * Like Sequence.instrument(): "macro[0]" is the first activity the stack 
+		 * was given (the bottom, if they were all there to start with).
+		 * 
+		 * @param name
+		 * @return this stack, so you can chain method calls
+		 */
+		public Stack instrument(String name) {
+			this.instruments = new Instruments(name);
+			for (int i = 0; i < top; i++) {
+				stack[i] = instruments.wrap(stack[i]);
+			}
 			return this;
 		}
 		
 		public Activity pop() {
-			return stack.pop();
+			Activity activity = peek();
+			stack[--top] = null;
+			if (instruments != null) {
+				instruments.release(activity);
+			}
+			return activity;
 		}
 		
 		public Activity peek() {
-			return stack.peek();
+			if (top == 0) {
+				throw new java.util.EmptyStackException();
+			}
+			return stack[top - 1];
+		}
+		
+		/**
+		 * Check if the stack is empty
+		 * 
+		 * @return
+		 */
+		public boolean isEmpty() {
+			return top == 0;
+		}
+		
+		/**
+		 * Return number of activities on the stack
+		 * @return
+		 */
+		public int size() {
+			return top;
+		}
+		
+		/**
+		 * Cancel and remove every activity on the stack, top first
+		 * 
+		 * @return this stack, so you can chain method calls
+		 */
+		public Stack clear() {
+			while (top > 0) {
+				pop().cancel();
+			}
+			return this;
+		}
+		
+		/**
+		 * Cancel every activity on the stack, top first, leaving them on it
+		 */
+		@Override
+		public void cancel() {
+			for (int i = top - 1; i >= 0; i--) {
+				stack[i].cancel();
+			}
 		}
 		
 		@Override
 		public boolean loop() {
 			boolean done = false;
-			while (!stack.empty()) {
-				done = stack.peek().loop();
+			while (top > 0) {
+				done = stack[top - 1].loop();
 				if (done) {
-					stack.pop();
+					Activity finished = stack[--top];
+					stack[top] = null;
+					if (instruments != null) {
+						instruments.release(finished);
+					}
 				} else {
 					// break on first stack item not done
 					break;
@@ -0,0 +1,223 @@
+package team3543.robot;
+
+import java.util.function.LongSupplier;
+
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+/**
+ * Runs activities by priority, within a time budget per tick.
+ *
+ * Each activity is scheduled with a priority and an expected cost in
+ * nanoseconds.  Every loop() runs them highest priority first.  CRITICAL ones
+ * (driving, stopping) always run.  Anything else only runs if its expected
+ * cost still fits in what is left of the budget; otherwise it is deferred to a
+ * later tick.  So when a tick runs long, telemetry and bookkeeping give way to
+ * drive control, instead of competing with it.
+ *
+ * The expected cost starts at the estimate given, and then follows what the
+ * activity actually takes (a moving average), so estimates don't have to be
+ * exact.  An activity deferred ageAfter() ticks in a row runs anyway, so
+ * nothing starves.  Like queue(), an activity is removed once it returns true.
+ *
+ * loop() doesn't allocate.  Call publish() (at a low priority, say) to see how
+ * much was deferred on the SmartDashboard.
+ *
+ * <code>
+ * new ActivityScheduler("Teleop", 15000000)
+ * 		.schedule("OI", Priority.CRITICAL, 500000, wrap(oi::loop))
+ * 		.schedule("Stats", Priority.LOW, 1000000, ActivityStats.publisher(50));
+ * </code>
+ *
+ * @author mk
+ */
+public class ActivityScheduler implements Activity {
+
+	public enum Priority { CRITICAL, HIGH, NORMAL, LOW }
+
+	/** By default, something deferred this many ticks in a row runs regardless */
+	public static final int DEFAULT_AGE_AFTER = 10;
+
+	final String name;
+	final long budgetNanos;
+	Entry[] entries = new Entry[8];
+	int size = 0;
+	int ageAfter = DEFAULT_AGE_AFTER;
+	LongSupplier nanoTime = System::nanoTime;	// tests drive this by hand
+
+	long ticks = 0;
+	long ticksWithDeferrals = 0;	// ticks where something was deferred
+	long overBudget = 0;			// ticks that went over the budget anyway
+	long deferrals = 0;				// activities deferred, over all ticks
+
+	/**
+	 * A scheduled activity, with its priority, expected cost and counters
+	 */
+	public static class Entry {
+		final String name;
+		final Priority priority;
+		final Activity activity;
+		final ActivityStats.Histogram histogram;
+		long expectedNanos;
+		int deferredInARow = 0;
+		long deferrals = 0;
+		long runs = 0;
+
+		Entry(String scheduler, String name, Priority priority, long expectedNanos, Activity activity) {
+			this.name = name;
+			this.priority = priority;
+			this.expectedNanos = expectedNanos;
+			this.activity = activity;
+			// the same names turn up in each mode's scheduler; keep their timings apart
+			this.histogram = ActivityStats.histogram(scheduler + "/" + name);
+		}
+
+		public long expectedNanos() {
+			return expectedNanos;
+		}
+
+		public long deferrals() {
+			return deferrals;
+		}
+
+		public long runs() {
+			return runs;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s (%s): expected=%dus runs=%d deferred=%d",
+					name, priority, expectedNanos / 1000, runs, deferrals);
+		}
+	}
+
+	/**
+	 * @param name shown on the dashboard
+	 * @param budgetNanos time each loop() may take, not counting CRITICAL activities that overrun it
+	 */
+	public ActivityScheduler(String name, long budgetNanos) {
+		this.name = name;
+		this.budgetNanos = budgetNanos;
+	}
+
+	/**
+	 * Add an activity.  It runs after everything already scheduled at the same priority.
+	 *
+	 * @param name names its dashboard line, and its histogram in ActivityStats ("Teleop/OI")
+	 * @param priority
+	 * @param expectedNanos a first guess at how long a loop() takes
+	 * @param activity
+	 * @return this scheduler, so you can chain method calls
+	 */
+	public ActivityScheduler schedule(String name, Priority priority, long expectedNanos, Activity activity) {
+		if (size == entries.length) {
+			entries = java.util.Arrays.copyOf(entries, size * 2);
+		}
+		int i = size++;
+		while (i > 0 && entries[i - 1].priority.compareTo(priority) > 0) {
+			entries[i] = entries[i - 1];
+			i--;
+		}
+		entries[i] = new Entry(this.name, name, priority, expectedNanos, activity);
+		return this;
+	}
+
+	/**
+	 * Run something deferred this many ticks in a row even if it doesn't fit
+	 *
+	 * @return this scheduler, so you can chain method calls
+	 */
+	public ActivityScheduler ageAfter(int ticks) {
+		this.ageAfter = ticks;
+		return this;
+	}
+
+	/**
+	 * The scheduled activity with the given name, or null
+	 */
+	public Entry entry(String name) {
+		for (int i = 0; i < size; i++) {
+			if (entries[i].name.equals(name)) return entries[i];
+		}
+		return null;
+	}
+
+	public long deferrals() {
+		return deferrals;
+	}
+
+	public long ticksWithDeferrals() {
+		return ticksWithDeferrals;
+	}
+
+	public long overBudget() {
+		return overBudget;
+	}
+
+	/**
+	 * Loop.
+	 *
+	 * @return true if everything scheduled has completed
+	 */
+	@Override
+	public boolean loop() {
+		ticks++;
+		long start = nanoTime.getAsLong();
+		long now = start;
+		boolean deferred = false;
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			Entry entry = entries[i];
+			entries[kept++] = entry;
+			if (entry.priority != Priority.CRITICAL
+					&& now - start + entry.expectedNanos > budgetNanos
+					&& entry.deferredInARow < ageAfter) {
+				entry.deferredInARow++;
+				entry.deferrals++;
+				deferrals++;
+				deferred = true;
+				continue;
+			}
+			entry.deferredInARow = 0;
+			boolean done = entry.activity.loop();
+			long end = nanoTime.getAsLong();
+			long took = end - now;
+			now = end;
+			entry.runs++;
+			entry.histogram.record(took, done);
+			// an exponential moving average, weight 1/8
+			entry.expectedNanos += (took - entry.expectedNanos) / 8;
+			if (done) {
+				kept--;
+			}
+		}
+		while (size > kept) {
+			entries[--size] = null;
+		}
+		if (deferred) ticksWithDeferrals++;
+		if (now - start > budgetNanos) overBudget++;
+		return size == 0;
+	}
+
+	/**
+	 * Cancel every scheduled activity
+	 */
+	@Override
+	public void cancel() {
+		for (int i = 0; i < size; i++) {
+			entries[i].activity.cancel();
+		}
+	}
+
+	/**
+	 * Publish the deferral counters to the SmartDashboard, one line per activity.
+	 */
+	public void publish() {
+		String[] lines = new String[size];
+		for (int i = 0; i < size; i++) {
+			lines[i] = entries[i].toString();
+		}
+		SmartDashboard.putStringArray(name + " schedule", lines);
+		SmartDashboard.putNumber(name + " deferred ticks", ticksWithDeferrals);
+		SmartDashboard.putNumber(name + " over budget", overBudget);
+	}
+}
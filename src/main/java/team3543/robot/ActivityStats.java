@@ -0,0 +1,238 @@
+package team3543.robot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+/**
+ * Timing statistics for instrumented activities.
+ *
+ * Every instrumented activity records how long each loop() took into a named,
+ * fixed-size histogram.  Recording never allocates, so it is safe in the 20 ms
+ * loop; taking a snapshot or publishing to the dashboard does, so do that at a
+ * low rate (see publisher()).
+ *
+ * Histograms are created when activities are built, not while they run, and
+ * should only be touched from the robot thread.
+ *
+ * @see Activity#instrumented(String, Activity)
+ * @author mk
+ */
+public class ActivityStats {
+
+	public static final String DASHBOARD_KEY = "Activity Stats";
+
+	/** How many of the heaviest activities the publisher shows */
+	public static final int PUBLISH_TOP = 10;
+
+	static final Map<String, Histogram> HISTOGRAMS = new LinkedHashMap<>();
+
+	/** Times the whole robot loop, and counts overruns of the 20 ms period */
+	public static final Histogram LOOP = histogram("Robot loop", 20000000L);
+
+	/**
+	 * Get (or create) the histogram with the given name.
+	 *
+	 * Activities instrumented with the same name share one histogram.
+	 */
+	public static Histogram histogram(String name) {
+		return histogram(name, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Get (or create) the histogram with the given name, counting calls slower than budgetNanos as overruns.
+	 */
+	public static Histogram histogram(String name, long budgetNanos) {
+		Histogram histogram = HISTOGRAMS.get(name);
+		if (histogram == null) {
+			histogram = new Histogram(name, budgetNanos);
+			HISTOGRAMS.put(name, histogram);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Snapshot every histogram, heaviest (most total time) first.
+	 */
+	public static List<Snapshot> snapshot() {
+		List<Snapshot> snapshots = new ArrayList<>();
+		for (Histogram histogram : HISTOGRAMS.values()) {
+			snapshots.add(histogram.snapshot());
+		}
+		Collections.sort(snapshots, (a, b) -> Long.compare(b.totalNanos, a.totalNanos));
+		return snapshots;
+	}
+
+	/**
+	 * Clear all the histograms (but keep them registered)
+	 */
+	public static void reset() {
+		for (Histogram histogram : HISTOGRAMS.values()) {
+			histogram.reset();
+		}
+	}
+
+	/**
+	 * An activity that publishes the heaviest activities to the SmartDashboard
+	 * every so many loops.  It never completes.
+	 *
+	 * @param everyLoops publish once per this many calls to loop()
+	 */
+	public static Activity publisher(int everyLoops) {
+		return new Activity() {
+			int loops = 0;
+
+			@Override
+			public boolean loop() {
+				if (++loops >= everyLoops) {
+					loops = 0;
+					publish();
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Publish the heaviest activities to the SmartDashboard, one line each.
+	 */
+	public static void publish() {
+		List<Snapshot> snapshots = snapshot();
+		int count = Math.min(PUBLISH_TOP, snapshots.size());
+		String[] lines = new String[count];
+		for (int i = 0; i < count; i++) {
+			lines[i] = snapshots.get(i).toString();
+		}
+		SmartDashboard.putStringArray(DASHBOARD_KEY, lines);
+		SmartDashboard.putNumber("Loop overruns", LOOP.overruns);
+	}
+
+	/**
+	 * A fixed-bucket histogram of durations in nanoseconds.
+	 *
+	 * Buckets are log-linear: each power of two is split into SUB_BUCKETS equal
+	 * buckets, so a percentile is accurate to within 1/SUB_BUCKETS of its value.
+	 */
+	public static class Histogram {
+		static final int SUB_BITS = 2;
+		static final int SUB_BUCKETS = 1 << SUB_BITS;
+		static final int BUCKETS = 64 * SUB_BUCKETS;
+
+		final String name;
+		final long budgetNanos;
+		final long[] counts = new long[BUCKETS];
+		long calls = 0;
+		long completions = 0;
+		long overruns = 0;
+		long totalNanos = 0;
+		long maxNanos = 0;
+
+		Histogram(String name, long budgetNanos) {
+			this.name = name;
+			this.budgetNanos = budgetNanos;
+		}
+
+		/**
+		 * Record one call that took the given number of nanoseconds.
+		 */
+		public void record(long nanos) {
+			if (nanos < 0) nanos = 0;
+			counts[bucket(nanos)]++;
+			calls++;
+			totalNanos += nanos;
+			if (nanos > maxNanos) maxNanos = nanos;
+			if (nanos > budgetNanos) overruns++;
+		}
+
+		/**
+		 * Record one call that took the given number of nanoseconds, and whether it completed.
+		 */
+		public void record(long nanos, boolean completed) {
+			record(nanos);
+			if (completed) completions++;
+		}
+
+		static int bucket(long nanos) {
+			if (nanos < SUB_BUCKETS) {
+				return (int) nanos;
+			}
+			int octave = 63 - Long.numberOfLeadingZeros(nanos);
+			int sub = (int) (nanos >>> (octave - SUB_BITS)) & (SUB_BUCKETS - 1);
+			return (octave - SUB_BITS + 1) * SUB_BUCKETS + sub;
+		}
+
+		/** The largest value that lands in the given bucket */
+		static long upperBound(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int octave = bucket / SUB_BUCKETS + SUB_BITS - 1;
+			long sub = bucket % SUB_BUCKETS;
+			long lower = (1L << octave) + (sub << (octave - SUB_BITS));
+			return lower + (1L << (octave - SUB_BITS)) - 1;
+		}
+
+		/**
+		 * The duration below which the given fraction of calls fall, accurate to a bucket.
+		 *
+		 * @param fraction between 0 and 1, e.g. 0.99
+		 */
+		public long percentile(double fraction) {
+			if (calls == 0) return 0;
+			long rank = (long) Math.ceil(fraction * calls);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= rank && seen > 0) {
+					return Math.min(upperBound(i), maxNanos);
+				}
+			}
+			return maxNanos;
+		}
+
+		public void reset() {
+			java.util.Arrays.fill(counts, 0);
+			calls = completions = overruns = totalNanos = maxNanos = 0;
+		}
+
+		public Snapshot snapshot() {
+			return new Snapshot(name, calls, completions, overruns, totalNanos,
+					percentile(0.5), percentile(0.99), maxNanos);
+		}
+	}
+
+	/**
+	 * The statistics of one histogram at some point in time
+	 */
+	public static class Snapshot {
+		public final String name;
+		public final long calls;
+		public final long completions;
+		public final long overruns;
+		public final long totalNanos;
+		public final long p50Nanos;
+		public final long p99Nanos;
+		public final long maxNanos;
+
+		Snapshot(String name, long calls, long completions, long overruns, long totalNanos, long p50Nanos, long p99Nanos, long maxNanos) {
+			this.name = name;
+			this.calls = calls;
+			this.completions = completions;
+			this.overruns = overruns;
+			this.totalNanos = totalNanos;
+			this.p50Nanos = p50Nanos;
+			this.p99Nanos = p99Nanos;
+			this.maxNanos = maxNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: p50=%dus p99=%dus max=%dus calls=%d done=%d",
+					name, p50Nanos / 1000, p99Nanos / 1000, maxNanos / 1000, calls, completions);
+		}
+	}
+}
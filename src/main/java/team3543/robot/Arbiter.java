@@ -0,0 +1,166 @@
+package team3543.robot;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Decides which activity gets to drive each subsystem, every tick.
+ *
+ * Activities say which subsystems they write with Activity.requires().  Any
+ * Actuated thing counts as a subsystem, so this knows nothing of WPILib.  Each
+ * subsystem gets one bit of a long in each arbiter, so an activity's
+ * requirements are a mask, and checking them is a single AND no matter how
+ * many activities there are.  An arbiter hands out at most 64 bits.
+ *
+ * The rule is: the first activity to loop in a tick claims its subsystems, and
+ * any other activity needing one of them that tick is skipped (not looped, and
+ * returns false).  So the order activities are looped in is their priority:
+ * <ul>
+ * <li> In a sequence (each/queue/all), earlier activities win.  A later one is
+ * 	interrupted while an earlier one needs the subsystem, and resumes, right
+ * 	where it was, once the earlier one completes and is removed.
+ * <li> In a stack, only the top runs, so pushing an activity interrupts the one
+ * 	below it, and popping it resumes that one.
+ * </ul>
+ * Since a skipped activity isn't looped, it never writes the subsystem state,
+ * so there are no wasted double writes and no silent last-writer-wins.
+ *
+ * There is one arbiter per TickContext, and tick() clears the claims.  The
+ * bits go with the arbiter, so a new context starts with all 64 free.
+ *
+ * @see Activity#requires(Activity, Actuated...)
+ * @author mk
+ */
+public class Arbiter {
+
+	final Map<Actuated, Long> bits = new IdentityHashMap<>();
+
+	long claimed = 0;		// subsystems claimed this tick
+	long tick = 0;			// which tick the claims are for
+	long conflicts = 0;		// times an activity was skipped
+
+	/**
+	 * The bit for a subsystem; the first 64 subsystems asked for get one each
+	 *
+	 * @throws IllegalStateException for the 65th
+	 */
+	public long bit(Actuated subsystem) {
+		Long bit = bits.get(subsystem);
+		if (bit == null) {
+			if (bits.size() == Long.SIZE) {
+				throw new IllegalStateException("Too many subsystems for the arbiter: " + subsystem);
+			}
+			bit = 1L << bits.size();
+			bits.put(subsystem, bit);
+		}
+		return bit;
+	}
+
+	/**
+	 * The mask for a set of subsystems
+	 */
+	public long mask(Actuated...subsystems) {
+		long mask = 0;
+		for (Actuated subsystem : subsystems) {
+			mask |= bit(subsystem);
+		}
+		return mask;
+	}
+
+	/**
+	 * Start a new tick, with nothing claimed.  TickContext.tick() calls this.
+	 */
+	void nextTick(long tick) {
+		this.tick = tick;
+		this.claimed = 0;
+	}
+
+	/**
+	 * Claim the subsystems in the mask for the rest of this tick
+	 *
+	 * @return false (and claims nothing) if any of them were already claimed
+	 */
+	public boolean claim(long mask) {
+		if ((claimed & mask) != 0) {
+			conflicts++;
+			return false;
+		}
+		claimed |= mask;
+		return true;
+	}
+
+	/**
+	 * True if any of the subsystems in the mask were claimed this tick
+	 */
+	public boolean isClaimed(long mask) {
+		return (claimed & mask) != 0;
+	}
+
+	/**
+	 * Number of times an activity was skipped because its subsystems were taken
+	 */
+	public long conflicts() {
+		return conflicts;
+	}
+
+	/**
+	 * An activity that only runs when it can claim its subsystems
+	 *
+	 * @see Activity#requires(Activity, Actuated...)
+	 */
+	public static class Requires implements Activity {
+		final Activity activity;
+		final Actuated[] subsystems;
+		Arbiter maskedFor = null;	// the arbiter the mask's bits came from
+		long mask;
+		long claimedTick = -1;	// the tick we last held our subsystems
+		long interruptions = 0;
+
+		Requires(Activity activity, Actuated[] subsystems) {
+			this.activity = activity;
+			this.subsystems = subsystems;
+		}
+
+		@Override
+		public boolean loop() {
+			TickContext context = TickContext.get();
+			if (maskedFor != context.arbiter) {
+				mask = context.arbiter.mask(subsystems);
+				maskedFor = context.arbiter;
+				claimedTick = -1;
+			}
+			long tick = context.ticks();
+			// looped again in a tick we already hold them in (e.g. shared by two sequences)
+			if (claimedTick != tick) {
+				if (!context.arbiter.claim(mask)) {
+					if (claimedTick == tick - 1) {
+						// we had them last tick, so we've been interrupted
+						interruptions++;
+					}
+					return false;
+				}
+				claimedTick = tick;
+			}
+			return activity.loop();
+		}
+
+		/**
+		 * Number of times this was running, and then lost its subsystems
+		 */
+		public long interruptions() {
+			return interruptions;
+		}
+
+		/**
+		 * True if this was running last tick or this tick
+		 */
+		public boolean isRunning() {
+			return claimedTick >= TickContext.get().ticks() - 1;
+		}
+
+		@Override
+		public void cancel() {
+			activity.cancel();
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package team3543.robot;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * An activity that waits for work done off the robot loop.
+ *
+ * Heavy work (generating a path, parsing a script, fitting gains) is handed to
+ * a small pool of background threads, and loop() only checks whether it is
+ * done, so it never blocks the 20 ms loop.  The result is handed to the
+ * consumer on the robot thread, so the consumer can safely touch subsystems;
+ * the work itself must not.
+ *
+ * The pool is bounded.  If it is full, the work is submitted again on the next
+ * loop rather than blocking.
+ *
+ * Chain deadline() to give up after a while (measured on the TickContext
+ * clock), optionally running a fallback activity instead.  A failed job runs
+ * the fallback too.  If the activity is cancelled (say its parent sequence was
+ * cleared), or the deadline passes, the background work is interrupted.
+ *
+ * <code>
+ * Activity.each(
+ * 		async(() -> Path.generate(waypoints), driveLine::setPath).deadline(500, driveLine.driveStraight(24, 0.5, 0.5)),
+ * 		driveLine.followPath()
+ * )
+ * </code>
+ *
+ * @see Activity#async(Supplier, Consumer)
+ * @see Activity#future(java.util.concurrent.CompletableFuture)
+ * @author mk
+ */
+public class Async<T> implements Activity {
+
+	/** Number of background threads */
+	public static final int THREADS = 2;
+	/** Jobs that can wait for a thread before submitting has to wait a tick */
+	public static final int QUEUE_SIZE = 16;
+
+	static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+			THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>(QUEUE_SIZE),
+			runnable -> {
+				Thread thread = new Thread(runnable, "Async activity");
+				// never keep the VM alive, and never compete with the robot loop
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			});
+
+	final Supplier<T> work;			// null when waiting on someone else's future
+	final Consumer<? super T> then;
+	Future<? extends T> future;
+	long deadlineMillis = -1;
+	Activity fallback = null;
+	long start;
+	boolean started = false;	// clock time can be negative, so no sentinel
+	boolean finished = false;
+	boolean cancelled = false;
+	boolean fellBack = false;
+	Throwable error = null;
+
+	Async(Supplier<T> work, Consumer<? super T> then) {
+		this.work = work;
+		this.then = then;
+	}
+
+	Async(Future<? extends T> future) {
+		this.work = null;
+		this.then = null;
+		this.future = future;
+	}
+
+	/**
+	 * Give up if the work isn't done within this many milliseconds of the first loop
+	 *
+	 * @return this, so you can chain method calls
+	 */
+	public Async<T> deadline(long millis) {
+		return deadline(millis, null);
+	}
+
+	/**
+	 * Give up if the work isn't done within this many milliseconds of the first
+	 * loop, and run the fallback activity from then on instead.
+	 *
+	 * @param millis
+	 * @param fallback also runs if the work fails; null to just finish
+	 * @return this, so you can chain method calls
+	 */
+	public Async<T> deadline(long millis, Activity fallback) {
+		this.deadlineMillis = millis;
+		this.fallback = fallback;
+		return this;
+	}
+
+	/**
+	 * Run the fallback if the work fails, even with no deadline
+	 *
+	 * @return this, so you can chain method calls
+	 */
+	public Async<T> otherwise(Activity fallback) {
+		this.fallback = fallback;
+		return this;
+	}
+
+	/**
+	 * What the work threw, or null
+	 */
+	public Throwable error() {
+		return error;
+	}
+
+	/**
+	 * True if the work finished and its result was handed over
+	 */
+	public boolean succeeded() {
+		return finished && !fellBack && error == null && !cancelled;
+	}
+
+	/**
+	 * True if it was cancelled before it finished
+	 */
+	public boolean cancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Loop.
+	 *
+	 * @return true once the result has been handed to the consumer, or (if the
+	 * work failed or the deadline passed) whatever the fallback returns, or true
+	 * if there is no fallback; never true once cancelled, since nothing was done
+	 */
+	@Override
+	public boolean loop() {
+		if (cancelled) {
+			return false;
+		}
+		if (finished) {
+			return fallback == null || !fellBack || fallback.loop();
+		}
+		long now = TickContext.get().now();
+		if (!started) {
+			start = now;
+			started = true;
+		}
+		if (future == null && !submit()) {
+			// the pool is busy; try again next tick
+			return checkDeadline(now);
+		}
+		if (!future.isDone()) {
+			return checkDeadline(now);
+		}
+		T result;
+		try {
+			// isDone(), so this doesn't block
+			result = future.get();
+		} catch (ExecutionException e) {
+			error = e.getCause();
+			return fallBack();
+		} catch (CancellationException | InterruptedException e) {
+			error = e;
+			return fallBack();
+		}
+		finished = true;
+		if (then != null) {
+			then.accept(result);
+		}
+		return true;
+	}
+
+	/**
+	 * Stop the background work, and the fallback if it is running.  An Async
+	 * whose result was already handed over stays finished; otherwise it is
+	 * cancelled, and doesn't count as having succeeded.
+	 */
+	@Override
+	public void cancel() {
+		if (future != null) {
+			future.cancel(true);
+		}
+		if (fellBack && fallback != null) {
+			fallback.cancel();
+		}
+		if (!finished || fellBack) {
+			cancelled = true;
+		}
+	}
+
+	boolean submit() {
+		FutureTask<T> task = new FutureTask<>(work::get);
+		try {
+			EXECUTOR.execute(task);
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+		future = task;
+		return true;
+	}
+
+	boolean checkDeadline(long now) {
+		if (deadlineMillis < 0 || now - start < deadlineMillis) {
+			return false;
+		}
+		if (future != null) {
+			future.cancel(true);
+		}
+		return fallBack();
+	}
+
+	boolean fallBack() {
+		finished = true;
+		fellBack = true;
+		return fallback == null || fallback.loop();
+	}
+}
@@ -0,0 +1,333 @@
+package team3543.robot;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Always records the last few seconds, so that whatever just happened can be
+ * kept, whether or not anyone was holding the record button.
+ *
+ * Each tick, record() writes the robot state and the sensors into the next
+ * slot of a circular window of preallocated columns, over the oldest tick:
+ * a few primitive array writes, nothing allocated.  freeze() (the black box
+ * button) or trigger() (a brownout, a long loop) swaps in a spare window, so
+ * recording carries straight on, and saves the frozen one in the background
+ * as a binary script (copy it into the deploy recordings to play it back),
+ * plus a CSV of the sensors alongside it:
+ * <pre>
+ * /home/lvuser/recordings/blackbox-NNNN-reason.rscr
+ * /home/lvuser/recordings/blackbox-NNNN-reason.csv
+ * </pre>
+ *
+ * Only the newest maxSaves are kept; older ones (both files) are deleted as
+ * each new one is saved.
+ *
+ * Until the spare window has been saved, freezing again does nothing.
+ * trigger() also does nothing until a whole window has been recorded since
+ * the last freeze, so a run of long loops saves one window, not dozens.
+ *
+ * Like the Recorder, it belongs to the robot loop thread.
+ *
+ * @author mk
+ */
+public class BlackBox {
+
+    /** How much it keeps */
+    public static final int DEFAULT_SECONDS = 15;
+
+    final Path directory;
+    final int capacity;
+    final int maxSaves;
+    Window window, spare;
+    volatile boolean saving = false;     // the spare is still being saved
+    long sinceFreeze;                   // ticks recorded since the last freeze
+    int sequence = -1;
+
+    // counters
+    long freezes = 0;
+    long skipped = 0;       // freezes that came while the last one was still being saved
+    volatile long saved = 0;
+    volatile long errors = 0;
+    volatile Path lastSaved = null;
+
+    public BlackBox() {
+        this(Paths.get(RecordingWriter.DEFAULT_DIRECTORY), (int) (DEFAULT_SECONDS * 1000 / RobotScript.PERIOD_MILLIS),
+                Config.BLACK_BOX_MAX_SAVES);
+    }
+
+    public BlackBox(Path directory, int capacity) {
+        this(directory, capacity, Config.BLACK_BOX_MAX_SAVES);
+    }
+
+    /**
+     * @param capacity ticks to keep
+     * @param maxSaves saved black boxes to keep in the directory, counting the newest
+     */
+    public BlackBox(Path directory, int capacity, int maxSaves) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("A black box needs room for a tick, not " + capacity);
+        }
+        this.directory = directory;
+        this.capacity = capacity;
+        this.maxSaves = Math.max(maxSaves, 1);
+        window = new Window(capacity);
+        spare = new Window(capacity);
+        sinceFreeze = capacity;
+    }
+
+    /**
+     * Keep this tick, over the oldest one.  Doesn't allocate.
+     *
+     * @param loopNanos how long the robot loop took
+     */
+    public void record(Robot.State state, long millis, double gyroAngle, double leftDistance, double rightDistance,
+            double batteryVolts, long loopNanos) {
+        window.record(state, millis, gyroAngle, leftDistance, rightDistance, batteryVolts, loopNanos);
+        sinceFreeze++;
+    }
+
+    /**
+     * Something went wrong: freeze and save the window, unless one was saved
+     * less than a window ago
+     *
+     * @return whether it froze
+     */
+    public boolean trigger(String reason) {
+        return sinceFreeze >= capacity && freeze(reason);
+    }
+
+    /**
+     * Freeze and save the window, in the background; recording carries on into a fresh one
+     *
+     * @return false if it's empty, or the last one is still being saved
+     */
+    public boolean freeze(String reason) {
+        if (window.size == 0) {
+            return false;
+        }
+        if (saving) {
+            skipped++;
+            return false;
+        }
+        Window frozen = window;
+        window = spare;
+        window.clear();
+        spare = frozen;
+        frozen.reason = reason;
+        sinceFreeze = 0;
+        freezes++;
+        saving = true;
+        try {
+            Async.EXECUTOR.execute(() -> save(frozen));
+        } catch (RejectedExecutionException e) {
+            Robot.LOG.warning("Black box too busy to save " + reason);
+            errors++;
+            saving = false;
+            return false;
+        }
+        return true;
+    }
+
+    void save(Window frozen) {
+        try {
+            Files.createDirectories(directory);
+            if (sequence < 0) {
+                sequence = lastSequence(directory);
+            }
+            String name = String.format("blackbox-%04d-%s", ++sequence, frozen.reason.replaceAll("[^A-Za-z0-9]+", "-"));
+            Path script = directory.resolve(name + ".rscr");
+            Files.write(script, frozen.toScript().toBinary());
+            try (Writer csv = Files.newBufferedWriter(directory.resolve(name + ".csv"), StandardCharsets.UTF_8)) {
+                frozen.writeCSV(csv);
+            }
+            lastSaved = script;
+            saved++;
+            Robot.LOG.info("Black box saved " + frozen.size + " ticks to " + script);
+            prune(directory, maxSaves);
+        } catch (IOException | RuntimeException e) {
+            errors++;
+            Robot.LOG.warning("Black box couldn't save " + frozen.reason + ": " + e);
+        } finally {
+            saving = false;
+        }
+    }
+
+    static int lastSequence(Path directory) throws IOException {
+        int last = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "blackbox-*")) {
+            for (Path path : files) {
+                last = Math.max(last, sequence(path));
+            }
+        }
+        return last;
+    }
+
+    /**
+     * The NNNN of blackbox-NNNN-reason.*, or -1 if it's someone else's file
+     */
+    static int sequence(Path path) {
+        String name = path.getFileName().toString();
+        int end = name.indexOf('-', "blackbox-".length());
+        try {
+            return Integer.parseInt(name.substring("blackbox-".length(), end < 0 ? name.length() : end));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Delete the oldest black boxes, by sequence number, until there are at most maxSaves
+     */
+    static void prune(Path directory, int maxSaves) {
+        try {
+            TreeMap<Integer, List<Path>> saves = new TreeMap<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "blackbox-*")) {
+                for (Path path : files) {
+                    int sequence = sequence(path);
+                    if (sequence >= 0) {
+                        saves.computeIfAbsent(sequence, s -> new ArrayList<>()).add(path);
+                    }
+                }
+            }
+            while (saves.size() > maxSaves) {
+                for (Path path : saves.pollFirstEntry().getValue()) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        } catch (IOException e) {
+            // the new one is saved; not worth an error
+            Robot.LOG.warning("Couldn't delete old black boxes in " + directory + ": " + e);
+        }
+    }
+
+    /**
+     * The window being recorded into, as a script, oldest tick first.  Allocates; not for every tick.
+     */
+    public RobotScript toScript() {
+        return window.toScript();
+    }
+
+    /**
+     * Whether the last freeze is saved
+     */
+    public boolean isSaved() {
+        return !saving;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Black box: %d of %d ticks, %d freezes, %d skipped, %d saved, %d errors",
+                window.size, capacity, freezes, skipped, saved, errors);
+    }
+
+    /**
+     * A circular window of ticks, in columns
+     */
+    static class Window {
+        final long[] millis;
+        final double[] magnitudeOrLeft;
+        final double[] curveOrRight;
+        final byte[] control;           // see RecordingWriter.pack()
+        final double[] gyroAngle;
+        final double[] leftDistance;
+        final double[] rightDistance;
+        final double[] batteryVolts;
+        final long[] loopNanos;
+        int next = 0;                   // the slot the next tick goes in
+        int size = 0;
+        String reason;
+
+        Window(int capacity) {
+            millis = new long[capacity];
+            magnitudeOrLeft = new double[capacity];
+            curveOrRight = new double[capacity];
+            control = new byte[capacity];
+            gyroAngle = new double[capacity];
+            leftDistance = new double[capacity];
+            rightDistance = new double[capacity];
+            batteryVolts = new double[capacity];
+            loopNanos = new long[capacity];
+        }
+
+        void record(Robot.State state, long time, double gyro, double left, double right, double volts, long nanos) {
+            DriveLine.State d = state.driveLineState;
+            int i = next;
+            millis[i] = time;
+            magnitudeOrLeft[i] = d.magnitudeOrLeft;
+            curveOrRight[i] = d.curveOrRight;
+            control[i] = RecordingWriter.pack(d);
+            gyroAngle[i] = gyro;
+            leftDistance[i] = left;
+            rightDistance[i] = right;
+            batteryVolts[i] = volts;
+            loopNanos[i] = nanos;
+            next = i + 1 == millis.length ? 0 : i + 1;
+            if (size < millis.length) {
+                size++;
+            }
+        }
+
+        void clear() {
+            next = 0;
+            size = 0;
+            reason = null;
+        }
+
+        /**
+         * The slot of the nth oldest tick
+         */
+        int slot(int n) {
+            int i = next - size + n;
+            return i < 0 ? i + millis.length : i;
+        }
+
+        RobotScript toScript() {
+            RobotScript script = new RobotScript(size);
+            Robot.State state = new Robot.State();
+            DriveLine.State d = state.driveLineState;
+            long offset = 0, last = Long.MIN_VALUE;
+            for (int n = 0; n < size; n++) {
+                int i = slot(n);
+                d.magnitudeOrLeft = magnitudeOrLeft[i];
+                d.curveOrRight = curveOrRight[i];
+                RecordingWriter.unpack(control[i], d);
+                // the clock restarts with each mode; carry on a period after the last tick
+                long time = millis[i] + offset;
+                if (time < last) {
+                    offset += last + RobotScript.PERIOD_MILLIS - time;
+                    time = last + RobotScript.PERIOD_MILLIS;
+                }
+                script.append(state, time);
+                last = time;
+            }
+            return script;
+        }
+
+        void writeCSV(Writer out) throws IOException {
+            BufferedWriter csv = out instanceof BufferedWriter ? (BufferedWriter) out : new BufferedWriter(out);
+            csv.write("millis,shiftMode,driveMode,squaredInputs,magnitudeOrLeft,curveOrRight,gyroAngle,leftDistance,rightDistance,batteryVolts,loopMillis");
+            csv.newLine();
+            DriveLine.State d = new DriveLine.State();
+            for (int n = 0; n < size; n++) {
+                int i = slot(n);
+                RecordingWriter.unpack(control[i], d);
+                csv.write(millis[i] + "," + d.shiftMode + "," + d.driveMode + "," + d.squaredInputs + ","
+                        + magnitudeOrLeft[i] + "," + curveOrRight[i] + "," + gyroAngle[i] + ","
+                        + leftDistance[i] + "," + rightDistance[i] + "," + batteryVolts[i] + ","
+                        + loopNanos[i] / 1e6);
+                csv.newLine();
+            }
+            csv.flush();
+        }
+    }
+}
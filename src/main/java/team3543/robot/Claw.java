@@ -1,6 +1,7 @@
 package team3543.robot;
 
 import edu.wpi.first.wpilibj.command.Subsystem;
+import team3543.codegen.GenerateCodec;
 
 /**
  * This is the pneumatic claw from 2017-2018 season, adapted for this codebase
@@ -91,6 +92,7 @@ public class Claw extends Subsystem implements Actuated {
 		// nothing
 	}
 
+	@GenerateCodec
 	public static class State {
 		public boolean open = false;
 
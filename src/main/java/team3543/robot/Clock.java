@@ -0,0 +1,24 @@
+package team3543.robot;
+
+/**
+ * A source of time, in milliseconds.
+ *
+ * Activities don't read a clock directly; they read the time the TickContext
+ * sampled at the start of the current tick.  This is what it samples.
+ *
+ * @see TickContext
+ * @author mk
+ */
+@FunctionalInterface
+public interface Clock {
+
+	/**
+	 * Current time in milliseconds.  Only differences between values are meaningful.
+	 */
+	long millis();
+
+	/**
+	 * A monotonic clock based on System.nanoTime(), for when there is no FPGA
+	 */
+	Clock SYSTEM = () -> System.nanoTime() / 1000000;
+}
@@ -0,0 +1,424 @@
+package team3543.robot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An activity tree flattened into a program of parallel arrays.
+ *
+ * Each combinator in the tree becomes a node: an opcode plus up to three
+ * operands (child nodes, a leaf index, or flags).  The child lists of
+ * sequences, stacks and any() share one array.  loop() walks the program
+ * with a single switch, so the only virtual calls left are to the leaves.
+ *
+ * Sequences and stacks keep their own live child lists here, so once a tree
+ * is compiled the compiled copy should be looped instead of the tree.
+ *
+ * @see Activity#compile(Activity)
+ * @author mk
+ */
+public class CompiledActivity implements Activity {
+
+	static final byte LEAF = 0;		// arg0 = leaf index
+	static final byte NOOP = 1;
+	static final byte SEQUENCE = 2;	// arg0 = first child, arg1 = flags, length = live child count
+	static final byte STACK = 3;	// arg0 = bottom of stack, length = height
+	static final byte WHEN = 4;		// arg0 = test, arg1 = then, arg2 = otherwise
+	static final byte UNLESS = 5;	// arg0 = test, arg1 = activity
+	static final byte ANY = 6;		// arg0 = first child, length = child count
+	static final byte ONCE = 7;		// arg0 = activity
+	static final byte ALWAYS = 8;	// arg0 = activity
+	static final byte TIMED = 9;	// arg0 = activity, arg1 = histogram index
+
+	// Sequence flags
+	static final int REMOVE_COMPLETED = 1;
+	static final int STOP_ON_FALSE = 2;
+	static final int STOP_ON_TRUE = 4;
+	static final int ON_LIST_EMPTY = 8;
+	static final int TRUE_IF_ALL_TRUE = 16;
+	static final int PLAIN_EACH = ON_LIST_EMPTY | TRUE_IF_ALL_TRUE;
+
+	final byte[] op;
+	final int[] arg0, arg1, arg2;
+	final int[] length;
+	final int[] children;
+	final Activity[] leaves;
+	final ActivityStats.Histogram[] histograms;
+	final boolean[] ran, returned;	// state for ONCE nodes
+	final int root;
+
+	CompiledActivity(Activity tree) {
+		Compiler unlinked = new Compiler();
+		Compiler compiler = unlinked.link(unlinked.compile(tree));
+		root = 0;
+		int n = compiler.nodes;
+		op = Arrays.copyOf(compiler.op, n);
+		arg0 = Arrays.copyOf(compiler.arg0, n);
+		arg1 = Arrays.copyOf(compiler.arg1, n);
+		arg2 = Arrays.copyOf(compiler.arg2, n);
+		length = Arrays.copyOf(compiler.length, n);
+		children = Arrays.copyOf(compiler.children, compiler.childCount);
+		leaves = Arrays.copyOf(compiler.leaves, compiler.leafCount);
+		histograms = Arrays.copyOf(compiler.histograms, compiler.histogramCount);
+		ran = new boolean[n];
+		returned = new boolean[n];
+	}
+
+	/**
+	 * Number of nodes in the program (for testing the folding)
+	 */
+	int nodeCount() {
+		return op.length;
+	}
+
+	@Override
+	public boolean loop() {
+		return run(root);
+	}
+
+	/**
+	 * Cancels every leaf activity; the combinators have nothing of their own to let go of.
+	 */
+	@Override
+	public void cancel() {
+		for (Activity leaf : leaves) {
+			leaf.cancel();
+		}
+	}
+
+	/**
+	 * The interpreter: run one node, return what the equivalent activity would.
+	 */
+	boolean run(int node) {
+		switch (op[node]) {
+		case LEAF:
+			return leaves[arg0[node]].loop();
+		case NOOP:
+			return false;
+		case SEQUENCE:
+			return runSequence(node);
+		case STACK:
+			return runStack(node);
+		case WHEN:
+			return run(arg0[node]) ? run(arg1[node]) : run(arg2[node]);
+		case UNLESS:
+			return run(arg0[node]) ? false : run(arg1[node]);
+		case ANY: {
+			int start = arg0[node], end = start + length[node];
+			for (int i = start; i < end; i++) {
+				if (run(children[i])) {
+					return true;
+				}
+			}
+			return false;
+		}
+		case ONCE:
+			if (!ran[node]) {
+				returned[node] = run(arg0[node]);
+				ran[node] = true;
+			}
+			return returned[node];
+		case ALWAYS:
+			run(arg0[node]);
+			return false;
+		case TIMED: {
+			long start = System.nanoTime();
+			boolean done = run(arg0[node]);
+			histograms[arg1[node]].record(System.nanoTime() - start, done);
+			return done;
+		}
+		default:
+			throw new IllegalStateException("Bad opcode " + op[node]);
+		}
+	}
+
+	/**
+	 * Same as Activity.Sequence.loop(), over this node's slice of the children array
+	 */
+	boolean runSequence(int node) {
+		int len = length[node];
+		int flags = arg1[node];
+		if (len == 0) {
+			return (flags & ON_LIST_EMPTY) != 0;
+		}
+		boolean removeCompleted = (flags & REMOVE_COMPLETED) != 0;
+		boolean stopOnFalse = (flags & STOP_ON_FALSE) != 0;
+		boolean stopOnTrue = (flags & STOP_ON_TRUE) != 0;
+		boolean allDone = true;
+		boolean stopped = false;
+		int start = arg0[node], end = start + len, i = start, kept = start;
+		while (i < end) {
+			int child = children[i++];
+			boolean done = run(child);
+			allDone &= done;
+			if (!(done && removeCompleted)) {
+				children[kept++] = child;
+			}
+			if (done ? stopOnTrue : stopOnFalse) {
+				stopped = true;
+				break;
+			}
+		}
+		while (i < end) {
+			children[kept++] = children[i++];
+		}
+		length[node] = kept - start;
+		return (!stopped && (flags & TRUE_IF_ALL_TRUE) != 0) ? allDone : false;
+	}
+
+	/**
+	 * Same as Activity.Stack.loop(), over this node's slice of the children array
+	 */
+	boolean runStack(int node) {
+		int bottom = arg0[node];
+		while (length[node] > 0) {
+			if (run(children[bottom + length[node] - 1])) {
+				length[node]--;
+			} else {
+				break;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Builds the program, one node at a time, folding as it goes.
+	 *
+	 * Every activity object maps to one node, so a subtree (or a leaf) that appears
+	 * in more than one place keeps a single copy of its state, just like the tree.
+	 */
+	static class Compiler {
+		byte[] op = new byte[16];
+		int[] arg0 = new int[16], arg1 = new int[16], arg2 = new int[16], length = new int[16];
+		int nodes = 0;
+		int[] children = new int[16];
+		int childCount = 0;
+		Activity[] leaves = new Activity[16];
+		int leafCount = 0;
+		ActivityStats.Histogram[] histograms = new ActivityStats.Histogram[4];
+		int histogramCount = 0;
+		int noop = -1;
+		final Map<Activity, Integer> compiled = new IdentityHashMap<>();
+
+		int compile(Activity activity) {
+			Integer node = compiled.get(activity);
+			if (node == null) {
+				node = fold(activity);
+				compiled.put(activity, node);
+			}
+			return node;
+		}
+
+		int fold(Activity activity) {
+			if (activity instanceof Activity.Noop) {
+				return noop();
+			}
+			if (activity instanceof Activity.Always) {
+				int child = compile(((Activity.Always) activity).activity);
+				// always(noop) is noop, always(always(x)) is always(x)
+				if (op[child] == NOOP || op[child] == ALWAYS) return child;
+				return node(ALWAYS, child, 0, 0);
+			}
+			if (activity instanceof Activity.Instrumented) {
+				Activity.Instrumented instrumented = (Activity.Instrumented) activity;
+				int child = compile(instrumented.activity);
+				return node(TIMED, child, addHistogram(instrumented.histogram), 0);
+			}
+			if (activity instanceof Activity.Once) {
+				Activity.Once once = (Activity.Once) activity;
+				if (once.once) {
+					// it already ran, so it just returns the same thing every time
+					return once.returnValue ? leaf(activity) : noop();
+				}
+				int child = compile(once.subActivity);
+				if (op[child] == NOOP) return child;
+				return node(ONCE, child, 0, 0);
+			}
+			if (activity instanceof Activity.When) {
+				Activity.When when = (Activity.When) activity;
+				int test = compile(when.testIsTrue);
+				int then = compile(when.thisActivityWillRun);
+				int otherwise = compile(when.otherwiseThisActivityWillRun);
+				// a noop test is never true
+				if (op[test] == NOOP) return otherwise;
+				// if both branches are noop, only the test matters
+				if (op[then] == NOOP && op[otherwise] == NOOP) return node(ALWAYS, test, 0, 0);
+				return node(WHEN, test, then, otherwise);
+			}
+			if (activity instanceof Activity.Unless) {
+				Activity.Unless unless = (Activity.Unless) activity;
+				int test = compile(unless.testIsTrue);
+				int body = compile(unless.activityWillRun);
+				if (op[test] == NOOP) return body;
+				if (op[body] == NOOP) return node(ALWAYS, test, 0, 0);
+				return node(UNLESS, test, body, 0);
+			}
+			if (activity instanceof Activity.Any) {
+				List<Integer> kids = new ArrayList<>();
+				for (Activity a : ((Activity.Any) activity).activities) {
+					int child = compile(a);
+					// noop never returns true, so any() can skip it
+					if (op[child] != NOOP) kids.add(child);
+				}
+				if (kids.isEmpty()) return noop();
+				if (kids.size() == 1) return kids.get(0);
+				return node(ANY, children(kids), 0, 0, kids.size());
+			}
+			if (activity instanceof Activity.Sequence) {
+				Activity.Sequence seq = (Activity.Sequence) activity;
+				int flags = flags(seq);
+				List<Integer> kids = new ArrayList<>();
+				addChildren(seq, flags == PLAIN_EACH, kids);
+				// each(x) is just x
+				if (flags == PLAIN_EACH && kids.size() == 1) return kids.get(0);
+				return node(SEQUENCE, children(kids), flags, 0, kids.size());
+			}
+			if (activity instanceof Activity.Stack) {
+				Activity.Stack stack = (Activity.Stack) activity;
+				List<Integer> kids = new ArrayList<>();
+				for (int i = 0; i < stack.top; i++) {
+					kids.add(compile(stack.stack[i]));
+				}
+				return node(STACK, children(kids), 0, 0, kids.size());
+			}
+			return leaf(activity);
+		}
+
+		/**
+		 * Compile the activities in a sequence.  If flatten is set, nested plain each()
+		 * sequences are inlined: each(each(x, y), z) is each(x, y, z).  Empty ones are
+		 * kept, since they return true rather than contributing nothing.
+		 */
+		void addChildren(Activity.Sequence seq, boolean flatten, List<Integer> kids) {
+			for (int i = 0; i < seq.size; i++) {
+				Activity a = seq.list[i];
+				if (flatten && a instanceof Activity.Sequence
+						&& flags((Activity.Sequence) a) == PLAIN_EACH && !((Activity.Sequence) a).isEmpty()) {
+					addChildren((Activity.Sequence) a, true, kids);
+				} else {
+					kids.add(compile(a));
+				}
+			}
+		}
+
+		static int flags(Activity.Sequence seq) {
+			return (seq.removeCompleted ? REMOVE_COMPLETED : 0)
+					| (seq.stopOnFalse ? STOP_ON_FALSE : 0)
+					| (seq.stopOnTrue ? STOP_ON_TRUE : 0)
+					| (seq.onListEmpty ? ON_LIST_EMPTY : 0)
+					| (seq.trueIfAllTrue ? TRUE_IF_ALL_TRUE : 0);
+		}
+
+		/**
+		 * Returns a copy of the program with only the nodes reachable from root,
+		 * numbered depth first so that root is node 0.  Folding leaves behind nodes
+		 * nothing refers to any more (like the noop children of any()).
+		 */
+		Compiler link(int root) {
+			int[] renumbered = new int[nodes];
+			Arrays.fill(renumbered, -1);
+			Compiler linked = new Compiler();
+			copy(root, renumbered, linked);
+			return linked;
+		}
+
+		int copy(int node, int[] renumbered, Compiler linked) {
+			if (renumbered[node] >= 0) {
+				return renumbered[node];
+			}
+			int copy = linked.node(op[node], 0, arg1[node], 0, length[node]);
+			renumbered[node] = copy;
+			// copy the children first: it can grow (and so replace) the linked arrays
+			int a0 = 0, a1 = arg1[node], a2 = 0;
+			switch (op[node]) {
+			case LEAF:
+				a0 = linked.addLeaf(leaves[arg0[node]]);
+				break;
+			case SEQUENCE:
+			case STACK:
+			case ANY: {
+				List<Integer> kids = new ArrayList<>();
+				for (int i = 0; i < length[node]; i++) {
+					kids.add(copy(children[arg0[node] + i], renumbered, linked));
+				}
+				a0 = linked.children(kids);
+				break;
+			}
+			case TIMED:
+				a0 = copy(arg0[node], renumbered, linked);
+				a1 = linked.addHistogram(histograms[arg1[node]]);
+				break;
+			case WHEN:
+				a2 = copy(arg2[node], renumbered, linked);
+				// fall through
+			case UNLESS:
+				a1 = copy(arg1[node], renumbered, linked);
+				// fall through
+			case ONCE:
+			case ALWAYS:
+				a0 = copy(arg0[node], renumbered, linked);
+				break;
+			default:
+				break;
+			}
+			linked.arg0[copy] = a0;
+			linked.arg1[copy] = a1;
+			linked.arg2[copy] = a2;
+			return copy;
+		}
+
+		int noop() {
+			if (noop < 0) noop = node(NOOP, 0, 0, 0);
+			return noop;
+		}
+
+		int leaf(Activity activity) {
+			return node(LEAF, addLeaf(activity), 0, 0);
+		}
+
+		int addLeaf(Activity activity) {
+			if (leafCount == leaves.length) leaves = Arrays.copyOf(leaves, leafCount * 2);
+			leaves[leafCount] = activity;
+			return leafCount++;
+		}
+
+		int addHistogram(ActivityStats.Histogram histogram) {
+			if (histogramCount == histograms.length) histograms = Arrays.copyOf(histograms, histogramCount * 2);
+			histograms[histogramCount] = histogram;
+			return histogramCount++;
+		}
+
+		int children(List<Integer> kids) {
+			int start = childCount;
+			for (int child : kids) {
+				if (childCount == children.length) children = Arrays.copyOf(children, childCount * 2);
+				children[childCount++] = child;
+			}
+			return start;
+		}
+
+		int node(byte code, int a0, int a1, int a2) {
+			return node(code, a0, a1, a2, 0);
+		}
+
+		int node(byte code, int a0, int a1, int a2, int len) {
+			if (nodes == op.length) {
+				int n = nodes * 2;
+				op = Arrays.copyOf(op, n);
+				arg0 = Arrays.copyOf(arg0, n);
+				arg1 = Arrays.copyOf(arg1, n);
+				arg2 = Arrays.copyOf(arg2, n);
+				length = Arrays.copyOf(length, n);
+			}
+			op[nodes] = code;
+			arg0[nodes] = a0;
+			arg1[nodes] = a1;
+			arg2[nodes] = a2;
+			length[nodes] = len;
+			return nodes++;
+		}
+	}
+}
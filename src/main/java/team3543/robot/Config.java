@@ -19,6 +19,7 @@ final public class Config {
 	public static final int PLAYBACK_BUTTON				= 10;		// BUTTON on left stick, hold down to play back
 	public static final int RECORD_BUTTON				= 7;		// BUTTON on left stick, hold down to record
 	public static final int RESET_RECORD_BUTTON			= 8;		// BUTTON on left stick, click to reset the recording
+	public static final int BLACK_BOX_BUTTON			= 12;		// BUTTON on left stick, click to save the last few seconds
 
 	//////////////////// WIRING //////////////////
 	//
@@ -54,6 +55,12 @@ final public class Config {
 	public static final double DRIVELINE_TRIM_DISTANCE		= 0.3;			// m, distance where we start trimming speed on automated approach
 	public static final double DRIVELINE_TRIM_ANGLE			= 30;		// degrees, angle where we start trimming speed on automated turn
 
+	public static final long BLACK_BOX_OVERRUN_NANOS		= 20000000L;	// a loop longer than the period saves the black box
+	public static final double BROWNOUT_VOLTS				= 6.8;		// the roboRIO browns out below this, which saves the black box
+	public static final int BLACK_BOX_MAX_SAVES				= 20;		// black boxes kept on the roboRIO; the oldest are deleted
+	public static final int MAX_SCRIPT_BYTES				= 8 << 20;	// bytes; the most a transfer may carry, far more than a whole match
+	public static final double RECORDING_KEYFRAME_ERROR		= 0;		// 0 keeps every tick; above that, recordings are cut to keyframes this close (try Keyframes.HALF_STEP)
+
 	//////////////////// GEOMETRY //////////////////////////
 	//
 
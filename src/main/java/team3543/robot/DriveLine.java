@@ -21,6 +21,7 @@ import edu.wpi.first.wpilibj.SpeedController;
 import edu.wpi.first.wpilibj.drive.DifferentialDrive;
 import edu.wpi.first.wpilibj.livewindow.LiveWindow;
 import edu.wpi.first.wpilibj.DoubleSolenoid;
+import team3543.codegen.GenerateCodec;
 
 /**
  * Drive line subsystem
@@ -42,6 +43,8 @@ public class DriveLine extends Subsystem implements Actuated {
     private AnalogGyro gyro = null;
     private Encoder leftWheelEncoder = null;
     private Encoder rightWheelEncoder = null;
+    // read once a tick, by periodic(); everything else that tick uses these
+    private double gyroAngle, leftDistance, rightDistance;
 
     private DoubleSolenoid doubleSolenoid;
 //	private Compressor airpusher;  // should not need this - doubleSolenoid will start the compressor
@@ -139,8 +142,10 @@ public class DriveLine extends Subsystem implements Actuated {
 
     @Override
     public void periodic() {
-        // Put code here to be run every loop
-    	// blank on purpose
+        // the sensors, once a tick, so driving and the black box don't each go to the hardware
+    	gyroAngle = gyro.getAngle();
+    	leftDistance = leftWheelEncoder.getDistance();
+    	rightDistance = rightWheelEncoder.getDistance();
     }
 
     // Put methods for controlling this subsystem
@@ -148,10 +153,13 @@ public class DriveLine extends Subsystem implements Actuated {
     public void resetEncoders() {
     	leftWheelEncoder.reset();
     	rightWheelEncoder.reset();
+    	leftDistance = 0;
+    	rightDistance = 0;
     }
 
     public void resetGyro() {
     	gyro.reset();
+    	gyroAngle = 0;
     }
 //
 //	public void setClosedLoopControl(boolean b) {
@@ -165,31 +173,31 @@ public class DriveLine extends Subsystem implements Actuated {
 	}
 
     /**
-     * Gyro angle in degrees, relative to last resetGyro()
+     * Gyro angle in degrees, relative to last resetGyro(), as of this tick's periodic()
      *
      * @see resetGyro()
      * @return angle in degrees
      */
     public double getGyroAngle() {
-    	return gyro.getAngle();
+    	return gyroAngle;
     }
 
     /**
-     * Get the left wheel encoder distance, since the last reset
+     * Get the left wheel encoder distance, since the last reset, as of this tick's periodic()
      *
      * @return
      */
     public double getLeftEncoderValue() {
-    	return leftWheelEncoder.getDistance();
+    	return leftDistance;
     }
 
     /**
-     * Get the right wheel encoder distance, since the last reset
+     * Get the right wheel encoder distance, since the last reset, as of this tick's periodic()
      *
      * @return
      */
     public double getRightEncoderValue() {
-    	return rightWheelEncoder.getDistance();
+    	return rightDistance;
     }
 
     /**
@@ -252,7 +260,7 @@ public class DriveLine extends Subsystem implements Actuated {
     	final double initialDistance = getDistanceTraveled();
     	final double trimSlope = maxSpeed / trimDistance;
 
-    	return Activity.from(() ->{
+    	return Activity.requires(() -> {
 			double angleDifference = getGyroAngle() - initialHeading;
 			double distanceDelta = getDistanceTraveled() - initialDistance;
 			double distanceError = distance - distanceDelta;
@@ -267,14 +275,14 @@ public class DriveLine extends Subsystem implements Actuated {
 			arcadeDrive(Utils.clip(distanceError * trimSlope, -maxSpeed, maxSpeed), rot, false);
 
 			return false;
-    	});
+    	}, this);
     }
 
     public Activity turnByAngle(final double angleInDegrees, final double maxSpeed, final double tolerance) {
     	final double initialAngle = getGyroAngle();
     	final double slope = maxSpeed / trimAngle;
 
-    	return Activity.from(() -> {
+    	return Activity.requires(() -> {
 			double angleError = getGyroAngle() - initialAngle;
 
 			// we're done if we're at the setpoint
@@ -286,7 +294,7 @@ public class DriveLine extends Subsystem implements Actuated {
 
 			tankDrive(speed, -speed, false);
 			return false;
-    	});
+    	}, this);
     }
 
     public void actuate() {
@@ -318,6 +326,7 @@ public class DriveLine extends Subsystem implements Actuated {
     /**
      * This is the state of the subsystem
      */
+    @GenerateCodec
     public static class State {
 
         public ShiftMode shiftMode = ShiftMode.HIGH;
@@ -340,6 +349,17 @@ public class DriveLine extends Subsystem implements Actuated {
         public State copy() {
             return new State(this.shiftMode, this.driveMode, this.magnitudeOrLeft, this.curveOrRight, this.squaredInputs);
         }
+
+        /**
+         * Make this the same as another state, without keeping a reference to it
+         */
+        public void set(State other) {
+            this.shiftMode = other.shiftMode;
+            this.driveMode = other.driveMode;
+            this.magnitudeOrLeft = other.magnitudeOrLeft;
+            this.curveOrRight = other.curveOrRight;
+            this.squaredInputs = other.squaredInputs;
+        }
     }
 }
 
@@ -0,0 +1,214 @@
+package team3543.robot;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Cuts a recording down to keyframes.
+ *
+ * A recording has a tick every 20 ms, but most of the time the sticks are
+ * still, or moving steadily, and the ticks in between could be worked out
+ * from the ones either side.  Since playback interpolates the stick values
+ * between ticks by time (see RobotScript.sample()), those ticks can simply be
+ * dropped.  reduce() drops every tick it can, by Ramer-Douglas-Peucker on
+ * magnitudeOrLeft and curveOrRight against time, so that playing the keyframes
+ * back is never more than maxError off what was recorded, on either stick
+ * value, at any recorded tick.
+ *
+ * The shift mode, drive mode and squared inputs are kept exactly: the ticks
+ * either side of any change are always keyframes.
+ *
+ * It doesn't allocate much beyond the result, so it's fine on the robot; or
+ * run it on a file:
+ * <code>
+ * java team3543.robot.Keyframes recording.json recording.rscr 0.005
+ * </code>
+ *
+ * @author mk
+ */
+public class Keyframes {
+
+    /** About half a joystick step: a good maxError, if you want one */
+    public static final double HALF_STEP = 0.004;
+
+    /** The reduced script */
+    public final RobotScript script;
+    /** Ticks in the original */
+    public final int ticks;
+    /** The most playback of the keyframes is off the original at any recorded tick */
+    public final double maxError;
+    /** What it was allowed to be off */
+    public final double tolerance;
+
+    Keyframes(RobotScript script, int ticks, double maxError, double tolerance) {
+        this.script = script;
+        this.ticks = ticks;
+        this.maxError = maxError;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Original ticks per keyframe
+     */
+    public double ratio() {
+        return script.size() == 0 ? 1 : (double) ticks / script.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d ticks -> %d keyframes (%.1fx), max error %.5f (tolerance %.5f)",
+                ticks, script.size(), ratio(), maxError, tolerance);
+    }
+
+    /**
+     * Reduce a script to keyframes
+     *
+     * @param maxError how far off, in stick units, playback may be at any recorded tick
+     */
+    public static Keyframes reduce(RobotScript script, double maxError) {
+        if (!(maxError >= 0)) {
+            throw new IllegalArgumentException("maxError must be at least 0, not " + maxError);
+        }
+        int n = script.size();
+        boolean[] keep = new boolean[n];
+        if (n > 0) {
+            keep[0] = keep[n - 1] = true;
+        }
+        // the discrete fields change only at keyframes
+        for (int i = 1; i < n; i++) {
+            if (script.shiftMode[i] != script.shiftMode[i - 1] || script.driveMode[i] != script.driveMode[i - 1]
+                    || squared(script, i) != squared(script, i - 1)) {
+                keep[i - 1] = keep[i] = true;
+            }
+        }
+        // then simplify each stretch between them
+        int[] stack = new int[64];
+        int from = 0;
+        for (int to = 1; to < n; to++) {
+            if (keep[to]) {
+                stack = simplify(script, from, to, maxError, keep, stack);
+                from = to;
+            }
+        }
+
+        int count = 0;
+        for (boolean k : keep) {
+            if (k) count++;
+        }
+        RobotScript keyframes = new RobotScript(count);
+        Robot.State state = new Robot.State();
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                keyframes.append(script.read(i, state), script.millis[i]);
+            }
+        }
+        return new Keyframes(keyframes, n, error(script, keyframes), maxError);
+    }
+
+    static boolean squared(RobotScript script, int i) {
+        return (script.squaredInputs[i >> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * Ramer-Douglas-Peucker on [from, to], with a stack instead of recursion, since
+     * a recording can be thousands of ticks long
+     *
+     * @return the stack, in case it had to grow
+     */
+    static int[] simplify(RobotScript script, int from, int to, double maxError, boolean[] keep, int[] stack) {
+        int top = 0;
+        stack[top++] = from;
+        stack[top++] = to;
+        while (top > 0) {
+            int b = stack[--top], a = stack[--top];
+            if (b - a < 2) {
+                continue;
+            }
+            long ta = script.millis[a], tb = script.millis[b];
+            int worst = a + 1;
+            double worstError = Double.POSITIVE_INFINITY;     // if a and b have the same time, there is no line
+            if (tb > ta) {
+                worstError = -1;
+                for (int i = a + 1; i < b; i++) {
+                    // worked out just as RobotScript.sample() does, so the error is what playback gets
+                    double fraction = (double) (script.millis[i] - ta) / (tb - ta);
+                    double m = script.magnitudeOrLeft[a] + (script.magnitudeOrLeft[b] - script.magnitudeOrLeft[a]) * fraction;
+                    double c = script.curveOrRight[a] + (script.curveOrRight[b] - script.curveOrRight[a]) * fraction;
+                    double error = Math.max(Math.abs(m - script.magnitudeOrLeft[i]), Math.abs(c - script.curveOrRight[i]));
+                    if (!(error <= worstError)) {       // NaN counts as the worst
+                        worst = i;
+                        worstError = error;
+                    }
+                }
+            }
+            if (!(worstError <= maxError)) {
+                keep[worst] = true;
+                if (top + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[top++] = a;
+                stack[top++] = worst;
+                stack[top++] = worst;
+                stack[top++] = b;
+            }
+        }
+        return stack;
+    }
+
+    /**
+     * The most playback of the keyframes is off playback of the original, on
+     * either stick value, at the original's tick times
+     */
+    public static double error(RobotScript original, RobotScript keyframes) {
+        if (original.size() == 0) {
+            return 0;
+        }
+        Robot.State expected = new Robot.State(), actual = new Robot.State();
+        double max = 0;
+        for (int i = 0; i < original.size(); i++) {
+            long time = original.millis[i];
+            original.sample(time, expected);
+            keyframes.sample(time, actual);
+            DriveLine.State e = expected.driveLineState, a = actual.driveLineState;
+            if (e.shiftMode != a.shiftMode || e.driveMode != a.driveMode || e.squaredInputs != a.squaredInputs) {
+                return Double.POSITIVE_INFINITY;
+            }
+            max = Math.max(max, Math.max(difference(e.magnitudeOrLeft, a.magnitudeOrLeft), difference(e.curveOrRight, a.curveOrRight)));
+        }
+        return max;
+    }
+
+    // NaN and NaN are the same; NaN and anything else are as different as can be
+    static double difference(double a, double b) {
+        if (Double.compare(a, b) == 0) {
+            return 0;
+        }
+        double difference = Math.abs(a - b);
+        return Double.isNaN(difference) ? Double.POSITIVE_INFINITY : difference;
+    }
+
+    /**
+     * Reduce a recording file: java team3543.robot.Keyframes in.json|in.rscr out.rscr [maxError]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java team3543.robot.Keyframes <in.json|in.rscr> <out.rscr> [maxError=" + HALF_STEP + "]");
+            System.exit(1);
+        }
+        Path in = Paths.get(args[0]);
+        double maxError = args.length > 2 ? Double.parseDouble(args[2]) : HALF_STEP;
+        byte[] bytes = Files.readAllBytes(in);
+        RobotScript script = in.toString().endsWith(".json")
+                ? RobotScript.fromJSON(new String(bytes, StandardCharsets.UTF_8))
+                : RobotScript.fromBinary(bytes);
+        Keyframes keyframes = reduce(script, maxError);
+        byte[] reduced = keyframes.script.toBinary();
+        Files.write(Paths.get(args[1]), reduced);
+        System.out.println(keyframes);
+        System.out.printf("%d bytes -> %d bytes (%.1fx)%n", bytes.length, reduced.length, (double) bytes.length / reduced.length);
+    }
+}
@@ -0,0 +1,144 @@
+package team3543.robot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A binary script file (see ScriptCodec), memory-mapped rather than read in.
+ *
+ * The bytes stay in the page cache, not on the heap, and are only read as
+ * they are decoded.  decode() makes a RobotScript of the whole thing;
+ * decoder() streams it a tick at a time, which is what the Recorder does when
+ * it plays a MappedScript.
+ *
+ * @author mk
+ */
+public class MappedScript {
+
+    final Path path;
+    final ByteBuffer buffer;    // the whole file; only ever read through duplicates
+
+    MappedScript(Path path, ByteBuffer buffer) throws IOException {
+        this.path = path;
+        this.buffer = buffer;
+        if (buffer.limit() < ScriptCodec.HEADER_SIZE + ScriptCodec.TRAILER_SIZE) {
+            throw new IOException(path + " is too short to be a script");
+        }
+    }
+
+    /**
+     * Map a script file.  Nothing is read until it is decoded.
+     */
+    public static MappedScript map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // the mapping outlives the channel
+            return new MappedScript(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * A script already in a buffer, say read or mapped some other way
+     *
+     * @throws IOException if it's too short to be one
+     */
+    public static MappedScript wrap(Path path, ByteBuffer buffer) throws IOException {
+        return new MappedScript(path, buffer.slice());
+    }
+
+    /**
+     * The tick count from the trailer
+     */
+    public int tickCount() {
+        return buffer.getInt(buffer.limit() - ScriptCodec.TRAILER_SIZE);
+    }
+
+    /**
+     * The CRC32 from the trailer
+     */
+    public int checksum() {
+        return buffer.getInt(buffer.limit() - ScriptCodec.TRAILER_SIZE + 4);
+    }
+
+    /**
+     * A new decoder from the first tick.  Doesn't copy the buffer.
+     */
+    public ScriptCodec.Decoder decoder() throws IOException {
+        return new ScriptCodec.Decoder(new BufferInputStream(buffer.duplicate()));
+    }
+
+    /**
+     * Decode the whole script
+     *
+     * @throws IllegalArgumentException if it's truncated or corrupt
+     */
+    public RobotScript decode() {
+        try {
+            ScriptCodec.checkCrc(buffer);
+            ScriptCodec.Decoder decoder = decoder();
+            RobotScript script = new RobotScript(ScriptCodec.capacity(tickCount(), buffer.limit()));
+            Robot.State state = new Robot.State();
+            while (decoder.read(state)) {
+                script.append(state, decoder.millis());
+            }
+            return script;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(path + " is not a valid script: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Decode it all without keeping anything, to check the CRC before playing it
+     *
+     * @throws IOException if it's truncated or corrupt
+     */
+    public void verify() throws IOException {
+        ScriptCodec.Decoder decoder = decoder();
+        Robot.State state = new Robot.State();
+        while (decoder.read(state)) {
+            // just checking
+        }
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+
+    /**
+     * Reads a ByteBuffer from its position on.  Doesn't allocate.
+     */
+    public static class BufferInputStream extends InputStream {
+        final ByteBuffer buffer;
+
+        public BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package team3543.robot;
 
+import edu.wpi.first.networktables.NetworkTableInstance;
 import edu.wpi.first.wpilibj.Joystick;
 import edu.wpi.first.wpilibj.buttons.JoystickButton;
 import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
@@ -38,11 +39,15 @@ public class OI {
 
 	Recordings.RecordingChooser recordingChooser;
 
+	// the sticks give way to any activity that claimed the driveLine earlier in the tick; the buttons don't
+	final Activity manualDrive;
+
     public OI(Robot robot) {
     	this.robot = robot;
 //    	networkTable = NetworkTableInstance.getDefault().getTable(NETWORK_TABLE);
     	initJoysticks(DEFAULT_LEFT_JOYSTICK_PORT, DEFAULT_RIGHT_JOYSTICK_PORT);
     	recordingChooser = Recordings.chooser();
+    	manualDrive = Activity.requires(Activity.wrap(this::driveWithSticks), robot.driveLine);
     }
 
 	/**
@@ -50,16 +55,32 @@ public class OI {
 	 */
     public void configure() {
 		// here, we want to create a chooser for autonomous mode
-		SmartDashboard.putData(SCRIPT_CHOOSER, Recordings.chooser());
-
-		// Let's also listen for a change on the RECORD_LOAD_CHANNEL, so we can load
-        // the playback script from elsewhere
-//        networkTable.addEntryListener(RECORD_LOAD_CHANNEL, (table, key, entry, value, flags) -> {
-//            Robot.LOG.info("Loading new script");
-//            robot.recorder.setScript(RobotScript.fromJSON(value.getString()));
-//        }, EntryListenerFlags.kNew | EntryListenerFlags.kUpdate);
+		SmartDashboard.putData(SCRIPT_CHOOSER, recordingChooser);
+
+		// recordings go to and scripts come from the client; see connect()
+		connect(robot.recorder, NetworkTableInstance.getDefault());
     }
 
+	/**
+	 * Hook a recorder up to the client over a NetworkTables instance.  The
+	 * default one on the bot; a loopback one in tests.
+	 *
+	 * Scripts from the client are decoded and checked on the NetworkTables
+	 * listener thread, and only then handed to the recorder, which swaps them
+	 * in at the start of a tick.  A bad one is refused, and the client told.
+	 */
+	static void connect(Recorder recorder, NetworkTableInstance instance) {
+		ScriptTransfer.Link link = new ScriptTransfer.NetworkTableLink(instance, NETWORK_TABLE);
+		// recordings go to the client in chunks on RECORD_SAVE_CHANNEL
+		recorder.setSender(new ScriptTransfer.Sender(link, RECORD_SAVE_CHANNEL));
+		// and scripts come from it on RECORD_LOAD_CHANNEL, for the loop to pick up
+		new ScriptTransfer.Receiver(link, RECORD_LOAD_CHANNEL, bytes -> {
+			RobotScript script = RobotScript.fromBinary(bytes);
+			Robot.LOG.info("Loaded a script from the client: " + script.size() + " ticks");
+			recorder.load(script);
+		});
+	}
+
     void initJoysticks(int left, int right) {
         rightJoystick = new Joystick(right);
         leftJoystick = new Joystick(left);
@@ -115,9 +136,11 @@ public class OI {
 		else if (leftJoystick.getRawButtonReleased(Config.RECORD_BUTTON)) {
 			robot.recorder.stopRecording();
 			SmartDashboard.putString("Record", "Stopped");
-			robot.recorder.dumpRecording(); // will write it to the console
-            // TODO - will this be too much data for a String field?  Can we make the text box big?
-			SmartDashboard.putString(RECORD_SAVE_CHANNEL, robot.recorder.getScript().toJSON());
+			robot.recorder.dumpRecording(); // will write it to the console and send it on RECORD_SAVE_CHANNEL, in the background
+		}
+		// if we press the black box button, save the last few seconds, recorded or not
+		if (leftJoystick.getRawButtonPressed(Config.BLACK_BOX_BUTTON)) {
+			SmartDashboard.putString("Black box", robot.blackBox.freeze("button") ? "Saving" : "Busy");
 		}
 	}
 
@@ -164,7 +187,7 @@ public class OI {
 			robot.recorder.setScript(RobotScript.EMPTY);
 			RobotScript.ScriptSource scriptSource = recordingChooser.getSelected();
 			if (scriptSource != null) {
-				robot.recorder.setScript(scriptSource.getScript());
+				scriptSource.playOn(robot.recorder);
 			}
 		}
 		if (leftJoystick.getRawButtonPressed(Config.PLAYBACK_BUTTON)) {
@@ -180,7 +203,8 @@ public class OI {
 	/**
 	 * Drive the robot
 	 *
-	 * Delegates to tankDrive or arcadeDrive, depending on the setting of driveMode
+	 * The mode and shifter buttons are handled every tick, so a press isn't
+	 * lost; the sticks only drive when nothing else has the driveLine.
 	 */
 	void drive() {
 		// control the drive mode between arcade and tank
@@ -189,6 +213,13 @@ public class OI {
 		// control the shifter between low and high
 		controlShifter();
 
+		manualDrive.loop();
+	}
+
+	/**
+	 * Delegates to tankDrive or arcadeDrive, depending on the setting of driveMode
+	 */
+	void driveWithSticks() {
 		if (driveMode == DriveLine.DriveMode.TANK) {
 			tankDrive();
 		}
@@ -222,6 +253,17 @@ public class OI {
 		}
 	}
 
+	/**
+	 * Parse the selected autonomous script in the background, if it isn't already,
+	 * so getAutonomousScript() doesn't have to.  Called while disabled.
+	 */
+	void prefetchAutonomousScript() {
+		RobotScript.ScriptSource ss = recordingChooser.getSelected();
+		if (ss != null) {
+			ss.prefetch();
+		}
+	}
+
 	/**
 	 * Get the RobotScript to run for the autonomous mode part of the game.
 	 *
@@ -238,5 +280,18 @@ public class OI {
 			return ss.getScript();
 		}
 	}
+
+	/**
+	 * Give the selected autonomous script to the recorder, played straight from
+	 * its file if it can be (see Recordings)
+	 */
+	public void loadAutonomousScript(Recorder recorder) {
+		RobotScript.ScriptSource ss = recordingChooser.getSelected();
+		if (ss == null) {
+			recorder.setScript(RobotScript.EMPTY);
+		} else {
+			ss.playOn(recorder);
+		}
+	}
 }
 
@@ -0,0 +1,323 @@
+package team3543.robot;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Like all(), but independent children run at the same time.
+ *
+ * Children wrapped with Activity.pure() are handed to a ForkJoinPool at the
+ * start of each loop(), the rest are looped on the robot thread while they
+ * run, and then the pure ones are joined.  Just like all(), every child is
+ * looped every tick, and it returns true if they all returned true.
+ *
+ * The safety rule: a child only leaves the robot thread if it was marked
+ * pure() AND it can't reach an Actuated subsystem.  When the parallel is
+ * built, each pure child's fields (including the enclosing subsystem of an
+ * anonymous activity, what a lambda captured, and what's in the lists and
+ * maps they hold) are searched for anything Actuated; if one is found the
+ * child stays on the robot thread.  Subsystem state is never touched from
+ * two threads, and actuate() only ever sees state written on the robot
+ * thread.  pure() is still a promise that the
+ * child doesn't share anything else (the dashboard, the OI, another child's
+ * fields) either.
+ *
+ * Joining waits at most joinWithin() milliseconds (5 by default) for the
+ * tick.  A child still running after that counts as false, isn't started
+ * again until it finishes, and whatever it returns counts on the tick it is
+ * joined.
+ *
+ * @see Activity#parallel(Activity...)
+ * @see Activity#pure(Activity)
+ * @author mk
+ */
+public class Parallel implements Activity {
+
+	public static final long DEFAULT_JOIN_MILLIS = 5;
+
+	// leave a core for the robot thread
+	static final ForkJoinPool POOL = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+
+	final Branch[] branches;
+	long joinNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_JOIN_MILLIS);
+	long lateJoins = 0;
+
+	/**
+	 * One child, and the reusable task that loops it on the pool
+	 */
+	static final class Branch extends RecursiveAction {
+		final Activity activity;
+		final boolean forked;
+		boolean result = false;		// written by the pool, read after joining
+		boolean inFlight = false;
+		boolean looping = false;	// these two guarded by the branch
+		boolean cancelled = false;
+
+		Branch(Activity activity, boolean forked) {
+			this.activity = activity;
+			this.forked = forked;
+		}
+
+		@Override
+		protected void compute() {
+			synchronized (this) {
+				if (cancelled) {
+					result = false;
+					return;
+				}
+				looping = true;
+			}
+			try {
+				result = activity.loop();
+			} finally {
+				synchronized (this) {
+					looping = false;
+					if (cancelled) {
+						activity.cancel();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Cancel the activity, now if it isn't looping on the pool, or as soon
+		 * as its loop() returns if it is, so the two never overlap
+		 */
+		synchronized void cancelActivity() {
+			cancelled = true;
+			if (!looping) {
+				activity.cancel();
+			}
+			if (isDone()) {
+				inFlight = false;
+			}
+		}
+	}
+
+	Parallel(Activity[] activities) {
+		branches = new Branch[activities.length];
+		for (int i = 0; i < activities.length; i++) {
+			Activity a = activities[i];
+			boolean fork = a instanceof Pure && !touchesActuated(((Pure) a).activity);
+			branches[i] = new Branch(a, fork);
+		}
+	}
+
+	/**
+	 * Wait at most this long each tick for the pure children
+	 *
+	 * @return this, so you can chain method calls
+	 */
+	public Parallel joinWithin(long millis) {
+		this.joinNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+		return this;
+	}
+
+	/**
+	 * Number of children that run on the pool
+	 */
+	public int forkedCount() {
+		int count = 0;
+		for (Branch b : branches) {
+			if (b.forked) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Number of times a child wasn't done by the end of the tick's join
+	 */
+	public long lateJoins() {
+		return lateJoins;
+	}
+
+	@Override
+	public boolean loop() {
+		long deadline = System.nanoTime() + joinNanos;
+		// fan out; anything still running from last tick is left alone
+		for (Branch b : branches) {
+			if (b.forked && !b.inFlight) {
+				b.reinitialize();
+				synchronized (b) {
+					b.cancelled = false;
+				}
+				b.inFlight = true;
+				POOL.execute(b);
+			}
+		}
+		// the rest run here in the meantime
+		boolean allDone = true;
+		for (Branch b : branches) {
+			if (!b.forked) {
+				allDone &= b.activity.loop();
+			}
+		}
+		for (Branch b : branches) {
+			if (b.forked) {
+				if (join(b, deadline)) {
+					b.inFlight = false;
+					allDone &= b.result;
+				} else {
+					allDone = false;
+				}
+			}
+		}
+		return allDone;
+	}
+
+	/**
+	 * Wait until the deadline for a branch
+	 *
+	 * @return true if it finished
+	 */
+	boolean join(Branch b, long deadline) {
+		try {
+			b.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			lateJoins++;
+			return false;
+		} catch (CancellationException e) {
+			// not something we do, but don't let it escape the robot loop
+			b.inFlight = false;
+			b.result = false;
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			// the child threw; do what all() would, and throw on the robot thread
+			b.inFlight = false;
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Cancel the children.  A pure child whose loop() is running on the pool
+	 * is cancelled by the pool thread as soon as that returns, so cancel() and
+	 * loop() never run at once; one that hadn't started yet won't be looped.
+	 */
+	@Override
+	public void cancel() {
+		for (Branch b : branches) {
+			if (b.forked) {
+				b.cancelActivity();
+			} else {
+				b.activity.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Marks an activity as safe to run off the robot thread
+	 *
+	 * @see Activity#pure(Activity)
+	 */
+	public static class Pure implements Activity {
+		final Activity activity;
+
+		Pure(Activity activity) {
+			this.activity = activity;
+		}
+
+		@Override
+		public boolean loop() {
+			return activity.loop();
+		}
+
+		@Override
+		public void cancel() {
+			activity.cancel();
+		}
+	}
+
+	/**
+	 * True if the object is Actuated, or can reach something that is.  Our
+	 * own classes and lambdas (wherever they were made, say by andThen()) are
+	 * searched through their fields, and arrays, collections, maps, Optionals
+	 * and AtomicReferences through what they hold.  Any other library object
+	 * can't hold one of ours, so isn't searched.  If a field can't be read,
+	 * the answer is true, to be safe.
+	 */
+	static boolean touchesActuated(Object root) {
+		return touchesActuated(root, Collections.newSetFromMap(new IdentityHashMap<>()));
+	}
+
+	static boolean touchesActuated(Object o, Set<Object> seen) {
+		if (o == null || !seen.add(o)) {
+			return false;
+		}
+		if (o instanceof Actuated) {
+			return true;
+		}
+		Class<?> type = o.getClass();
+		if (o instanceof Object[]) {
+			return touchesAny(Arrays.asList((Object[]) o), seen);
+		}
+		if (!(o instanceof Activity) && !type.getName().startsWith("team3543.") && !isLambda(type)) {
+			if (o instanceof Collection) {
+				return touchesAny((Collection<?>) o, seen);
+			}
+			if (o instanceof Map) {
+				return touchesAny(((Map<?, ?>) o).keySet(), seen) || touchesAny(((Map<?, ?>) o).values(), seen);
+			}
+			if (o instanceof Optional) {
+				return touchesActuated(((Optional<?>) o).orElse(null), seen);
+			}
+			if (o instanceof AtomicReference) {
+				return touchesActuated(((AtomicReference<?>) o).get(), seen);
+			}
+			return false;
+		}
+		for (; type != null && type != Object.class; type = type.getSuperclass()) {
+			for (Field field : type.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+					continue;
+				}
+				try {
+					field.setAccessible(true);
+					if (touchesActuated(field.get(o), seen)) return true;
+				} catch (RuntimeException | IllegalAccessException e) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	static boolean touchesAny(Iterable<?> objects, Set<Object> seen) {
+		try {
+			for (Object element : objects) {
+				if (touchesActuated(element, seen)) return true;
+			}
+			return false;
+		} catch (RuntimeException e) {
+			// changed under us, or won't be iterated
+			return true;
+		}
+	}
+
+	/**
+	 * Lambda and method reference classes are made at run time, and are named after the class they were made in
+	 */
+	static boolean isLambda(Class<?> type) {
+		return type.isSynthetic() && type.getName().contains("$$Lambda");
+	}
+}
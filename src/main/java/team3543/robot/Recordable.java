@@ -0,0 +1,20 @@
+package team3543.robot;
+
+/**
+ * Something whose state can be recorded and played back by a Recorder.
+ *
+ * On the bot this is the Robot itself; keeping the Recorder behind this interface
+ * lets it be exercised (and benchmarked) without any hardware.
+ */
+interface Recordable {
+    Robot.State getState();
+    void setState(Robot.State state);
+
+    /**
+     * The live state, for recording: not a copy, so only good until the
+     * subsystems next change.  Override it so recording doesn't allocate.
+     */
+    default Robot.State currentState() {
+        return getState();
+    }
+}
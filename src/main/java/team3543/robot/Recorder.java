@@ -1,19 +1,67 @@
 package team3543.robot;
 
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Manages recording and playback for the robot
  *
+ * Both go by the TickContext clock.  Each recorded tick is stamped with the
+ * time since recording started, and playback plays whatever was recorded at
+ * the time since playback started (times the rate), interpolating between
+ * ticks.  So a late loop, while recording or playing back, doesn't stretch or
+ * squash the rest of the routine.
+ *
+ * Given a RecordingWriter, each recorded tick also goes to disk as it is
+ * recorded, without the loop waiting on the disk.
+ *
+ * Everything here is for the loop thread, except load(), which is how a
+ * script parsed on another thread (one from the client, say) gets handed
+ * over.  The loop swaps it in with swapInLoaded() at the start of a tick, so
+ * nothing it's playing changes under it, and not while it's recording, so a
+ * recording isn't lost.
+ *
  */
 public class Recorder {
 
-    final Robot robot;                      // reference to the robot
-    RobotScript script = new RobotScript();   // manages the record/playback data
+    /** Dumps wait on the client's acknowledgements, so they get a thread of their own, not one of Async's */
+    static final ThreadPoolExecutor DUMPS = new ThreadPoolExecutor(
+            1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1),
+            runnable -> {
+                Thread thread = new Thread(runnable, "Recording dump");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+
+    final Recordable robot;                 // reference to the robot
+    RobotScript script = new RobotScript(RobotScript.MATCH_TICKS);   // manages the record/playback data
+    boolean shared = false;             // script came from setScript(); copy it before recording into it
     boolean recording = false;          // if on, robot should be recording
     boolean playingBack = false;        // if on, robot should be playing back
     int playbackPosition = 0;  // tracks where we are in the playback sequence
+    final Robot.State playbackState = new Robot.State();   // reused for every tick played back
+    double rate = 1.0;                  // playback speed; 2 plays twice as fast
+    long playbackMillis = 0;            // how far into the script playback has got
+    long playbackFrom = 0;              // ...as of the last startPlayback()
+    long playbackStartedAt = 0;         // clock time of the last startPlayback()
+    long recordOffset = 0;              // clock time of the script's time 0, while recording
+    ScriptView view = null;             // if set, play this instead of script
+    MappedScript mapped = null;         // if set, play this straight from the file instead of script
+    ScriptCodec.Decoder stream = null;  // where we are in it
+    Robot.State streamTick = new Robot.State(), streamNext = new Robot.State();  // the ticks either side of now
+    long streamFirstMillis, streamTickMillis, streamNextMillis;
+    boolean streamHasNext = false;
+    RecordingWriter writer = null;      // if set, each recorded tick also goes to disk
+    ScriptTransfer.Sender sender = null;    // if set, dumpRecording() sends the script to the client
+    final AtomicReference<RobotScript> loaded = new AtomicReference<>();   // from load(), for the loop to swap in
 
-    public Recorder(Robot robot) {
+    public Recorder(Recordable robot) {
         this.robot = robot;
     }
 
@@ -22,7 +70,15 @@ public class Recorder {
      */
     public void resetRecording() {
         this.stopRecording();
-        this.script.clear();
+        if (this.writer != null) {
+            this.writer.reset();
+        }
+        if (this.shared) {
+            this.script = new RobotScript(RobotScript.MATCH_TICKS);
+            this.shared = false;
+        } else {
+            this.script.clear();
+        }
     }
 
     /**
@@ -32,6 +88,13 @@ public class Recorder {
         this.recording = false;
     }
 
+    /**
+     * Whether record() is keeping ticks
+     */
+    public boolean isRecording() {
+        return this.recording;
+    }
+
     /**
      * Start recording.
      *
@@ -39,15 +102,64 @@ public class Recorder {
      *
      */
     public void startRecording() {
+        if (this.shared) {
+            RobotScript copy = new RobotScript(Math.max(script.size(), RobotScript.MATCH_TICKS));
+            copy.addAll(this.script);
+            this.script = copy;
+            this.shared = false;
+        }
+        // carry on a period after the last tick, not after however long we were stopped
+        int size = this.script.size();
+        long next = size == 0 ? 0 : this.script.millis(size - 1) + RobotScript.PERIOD_MILLIS;
+        this.recordOffset = TickContext.get().now() - next;
         this.recording = true;
     }
 
+    /**
+     * Write each recorded tick to disk as well, from now on.  null to stop.
+     */
+    public void setWriter(RecordingWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Send the script to the client with this when it's dumped.  null to stop.
+     */
+    public void setSender(ScriptTransfer.Sender sender) {
+        this.sender = sender;
+    }
+
     /**
      * Dump the most recent recording to the the log, and the the appropriate network table.
      *
+     * The JSON is made, and the script sent (in chunks; see ScriptTransfer), in
+     * the background, so this doesn't hold up the loop.  The script is handed
+     * over as it is, and copied if recording carries on into it.  It's only
+     * sent if a client is connected.
+     *
+     * @return false if the last dump is still going and another is waiting; try again later
      */
-    public void dumpRecording() {
-        Robot.LOG.info(script.toJSON());
+    public boolean dumpRecording() {
+        final RobotScript dump = this.script;
+        try {
+            final ScriptTransfer.Sender sender = this.sender;
+            DUMPS.execute(() -> {
+                Robot.LOG.info(dump.toJSON());
+                if (sender != null && !sender.connected()) {
+                    Robot.LOG.info("No client to send the recording to");
+                } else if (sender != null) {
+                    try {
+                        Robot.LOG.info("Sent recording: " + sender.send(dump.toBinary(), true));
+                    } catch (Exception e) {
+                        Robot.LOG.warning("Couldn't send recording: " + e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        this.shared = true;
+        return true;
     }
 
     /**
@@ -55,22 +167,94 @@ public class Recorder {
      */
     void record() {
         if (this.recording) {
-            this.script.add(robot.getState());
+            Robot.State state = robot.currentState();
+            long millis = TickContext.get().now() - recordOffset;
+            this.script.append(state, millis);
+            if (this.writer != null) {
+                this.writer.offer(state, millis);
+            }
         }
     }
 
     /**
      * Set the current script, for playback.  NOTE: Will replace any recorded script.
      *
-     * This will stopRecording() and stopPlayback() as well, if either are running.
+     * This will stopRecording() and resetPlayback() as well.
+     *
+     * The script isn't copied, so this is cheap enough for autonomousInit(); it is
+     * only copied if you start recording into it.
      *
      * @param script
      */
     public void setScript(RobotScript script) {
         stopRecording();
-        stopPlayback();
-        this.script.clear();
-        this.script.addAll(script);
+        resetPlayback();
+        this.script = script;
+        this.shared = true;
+        this.view = null;
+        this.mapped = null;
+        this.stream = null;
+    }
+
+    /**
+     * Play a view (a slice, a concatenation, ...) as it is, reading through to
+     * the scripts underneath; nothing is copied.  Recording still goes to the
+     * current script.
+     *
+     * This will stopRecording() and resetPlayback() as well.
+     */
+    public void setScript(ScriptView view) {
+        if (view instanceof RobotScript) {
+            setScript((RobotScript) view);
+            return;
+        }
+        stopRecording();
+        resetPlayback();
+        this.view = view;
+        this.mapped = null;
+    }
+
+    /**
+     * Play a mapped script file straight from the mapping, a tick at a time,
+     * instead of decoding it into a RobotScript first.  Recording still goes to
+     * the current script.
+     *
+     * This will stopRecording() and resetPlayback() as well.
+     */
+    public void setScript(MappedScript mapped) {
+        stopRecording();
+        resetPlayback();
+        this.view = null;
+        this.mapped = mapped;
+    }
+
+    /**
+     * Hand over a script to play, from any thread.  It's set at the start of
+     * the loop's next tick that isn't recording (see swapInLoaded()), not now;
+     * if another comes first, this one is dropped.  Don't change it after this.
+     */
+    public void load(RobotScript script) {
+        this.loaded.set(script);
+    }
+
+    /**
+     * Set the last script passed to load(), if there is one.  Call it on the
+     * loop thread, at the start of a tick.  While recording it waits, since
+     * setting a script would throw away what's been recorded; it's set at the
+     * first tick after stopRecording().
+     *
+     * @return true if one was set (and so playback stopped and reset)
+     */
+    public boolean swapInLoaded() {
+        if (this.recording) {
+            return false;
+        }
+        RobotScript script = this.loaded.getAndSet(null);
+        if (script == null) {
+            return false;
+        }
+        setScript(script);
+        return true;
     }
 
     /**
@@ -87,6 +271,11 @@ public class Recorder {
      * Starts playback.  Note that this will be "from where you left off" unless you resetPlayback() first.
      */
     public void startPlayback() {
+        if (this.mapped != null && this.stream == null && !openStream()) {
+            return;
+        }
+        this.playbackFrom = this.playbackMillis;
+        this.playbackStartedAt = TickContext.get().now();
         this.playingBack = true;
     }
 
@@ -96,6 +285,35 @@ public class Recorder {
     public void resetPlayback() {
         stopPlayback();
         this.playbackPosition = 0;
+        this.playbackMillis = 0;
+        this.stream = null;
+    }
+
+    /**
+     * Set the playback speed: 1 as recorded, 0.5 half speed, 2 double.  Takes
+     * effect from now, if it's playing.
+     */
+    public void setRate(double rate) {
+        if (!(rate > 0)) {
+            throw new IllegalArgumentException("Playback rate must be positive, not " + rate);
+        }
+        this.playbackFrom = this.playbackMillis = scriptMillis();
+        this.playbackStartedAt = TickContext.get().now();
+        this.rate = rate;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * How far into the script playback should be, in the script's milliseconds
+     */
+    long scriptMillis() {
+        if (!this.playingBack) {
+            return this.playbackMillis;
+        }
+        return this.playbackFrom + (long) ((TickContext.get().now() - this.playbackStartedAt) * this.rate);
     }
 
     /**
@@ -106,19 +324,88 @@ public class Recorder {
     }
 
     /**
-     * Load the robot state from the next item in the playback script.
+     * Load the robot state for the current time from the playback script.
      *
      * Note that nothing happens if we're past the end of the script.
      */
     void playback() {
-        // if we're at the end of the script, stop playback
-        if (this.playbackPosition >= this.script.size()) {
+        if (!this.playingBack) {
+            return;
+        }
+        this.playbackMillis = scriptMillis();
+        if (this.mapped != null) {
+            playStream();
+            return;
+        }
+        ScriptView playing = this.view != null ? this.view : this.script;
+        // if we're past the end of the script (the last tick lasts a period), stop playback
+        if (playing.size() == 0 || this.playbackMillis >= playing.duration()) {
+            this.stopPlayback();
+            return;
+        }
+        this.playbackPosition = playing.sample(playing.millis(0) + this.playbackMillis, playbackState);
+        robot.setState(playbackState);
+    }
+
+    /**
+     * Open the mapped script and read its first two ticks
+     *
+     * @return false if it can't be played
+     */
+    boolean openStream() {
+        try {
+            this.stream = this.mapped.decoder();
+            if (!this.stream.read(streamTick)) {
+                this.stream = null;
+                return false;
+            }
+            this.streamFirstMillis = this.streamTickMillis = this.stream.millis();
+            this.streamHasNext = this.stream.read(streamNext);
+            this.streamNextMillis = this.stream.millis();
+            return true;
+        } catch (IOException e) {
+            Robot.LOG.warning("Can't play " + mapped + ": " + e.getMessage());
+            this.stream = null;
+            return false;
+        }
+    }
+
+    void playStream() {
+        long time = this.streamFirstMillis + this.playbackMillis;
+        try {
+            // move on to the ticks either side of now
+            while (this.streamHasNext && this.streamNextMillis <= time) {
+                Robot.State tick = this.streamTick;
+                this.streamTick = this.streamNext;
+                this.streamNext = tick;
+                this.streamTickMillis = this.streamNextMillis;
+                this.streamHasNext = this.stream.read(this.streamNext);
+                this.streamNextMillis = this.stream.millis();
+                this.playbackPosition++;
+            }
+        } catch (IOException e) {
+            // corrupt or truncated; stop where we are rather than play garbage
+            Robot.LOG.warning("Stopped playing " + mapped + " at tick " + playbackPosition + ": " + e.getMessage());
+            this.stopPlayback();
+            return;
+        }
+        if (!this.streamHasNext && time >= this.streamTickMillis + RobotScript.PERIOD_MILLIS) {
             this.stopPlayback();
+            return;
         }
-        // otherwise load robot state from the next recorded item
-        if (this.playingBack) {
-            robot.setState(this.script.get(this.playbackPosition++));
+        DriveLine.State tick = this.streamTick.driveLineState, into = playbackState.driveLineState;
+        into.shiftMode = tick.shiftMode;
+        into.driveMode = tick.driveMode;
+        into.squaredInputs = tick.squaredInputs;
+        into.magnitudeOrLeft = tick.magnitudeOrLeft;
+        into.curveOrRight = tick.curveOrRight;
+        DriveLine.State next = this.streamNext.driveLineState;
+        if (this.streamHasNext && time > this.streamTickMillis && next.shiftMode == tick.shiftMode && next.driveMode == tick.driveMode) {
+            double fraction = (double) (time - this.streamTickMillis) / (this.streamNextMillis - this.streamTickMillis);
+            into.magnitudeOrLeft += (next.magnitudeOrLeft - tick.magnitudeOrLeft) * fraction;
+            into.curveOrRight += (next.curveOrRight - tick.curveOrRight) * fraction;
         }
+        robot.setState(playbackState);
     }
 
 }
@@ -0,0 +1,482 @@
+package team3543.robot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Writes what is being recorded to disk as it happens, so a brownout or a
+ * code restart mid-match doesn't lose the recording.
+ *
+ * The robot loop only ever calls offer(), which copies the tick into a ring
+ * buffer of preallocated columns and returns: no locks, no I/O, no
+ * allocation.  If the buffer is full (the disk has stalled for a good few
+ * seconds), the tick is dropped and counted, rather than making the loop
+ * wait.  A background thread drains the buffer and appends each tick to the
+ * file as a frame with its own CRC, forcing it to disk every syncMillis.  It
+ * sleeps while there's nothing to write, and offer() wakes it.
+ *
+ * Each reset() starts a new file, recording-NNNN.rrec, and only the newest
+ * maxFiles are kept.  read() gets back every whole frame of a file, so a file
+ * that was cut off mid-write loses at most the tick being written.
+ *
+ * Layout:
+ * <pre>
+ * header: 'R' 'R' 'E' 'C' version(1)
+ * frame:  0xA5, millis (long), magnitudeOrLeft (double), curveOrRight (double),
+ *         control byte (bits 0-1 shift mode, bit 2 drive mode, bit 3 squared inputs),
+ *         CRC32 of everything after the 0xA5 (int); all big-endian
+ * </pre>
+ *
+ * One thread (the robot loop) may call offer() and reset(); that is what
+ * lets the buffer do without locks.
+ *
+ * @author mk
+ */
+public class RecordingWriter {
+
+    /** Not the deploy directory, which a deploy replaces */
+    public static final String DEFAULT_DIRECTORY = "/home/lvuser/recordings";
+    /** Ticks the buffer holds: 20 s at 50 Hz */
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final long DEFAULT_SYNC_MILLIS = 1000;
+    /** Recordings kept on disk; the oldest go as new ones are started */
+    public static final int DEFAULT_MAX_FILES = 50;
+
+    static final byte[] MAGIC = { 'R', 'R', 'E', 'C' };
+    static final int VERSION = 1;
+    static final int FRAME = 0xA5;
+    static final int PAYLOAD_SIZE = 8 + 8 + 8 + 1;
+    static final int FRAME_SIZE = 1 + PAYLOAD_SIZE + 4;
+    static final String EXTENSION = ".rrec";
+
+    static final byte RESET = -1;       // a control byte no tick has: start a new file
+
+    final Path directory;
+    final long syncMillis;
+    final int maxFiles;
+
+    // the ring: slot i of tick n is n & mask
+    final int mask;
+    final long[] millis;
+    final double[] magnitudeOrLeft;
+    final double[] curveOrRight;
+    final byte[] control;
+    final AtomicLong tail = new AtomicLong();   // next slot to fill; only the robot loop moves it
+    final AtomicLong head = new AtomicLong();   // next slot to drain; only the writer moves it
+    long headSeen = 0;                          // the loop's last look at head, so it rarely has to look
+    boolean resetPending = false;               // a reset() that didn't fit, to go in before the next tick
+
+    // counters
+    volatile long offered = 0;
+    volatile long dropped = 0;
+    volatile long written = 0;
+    volatile long syncs = 0;
+    volatile long errors = 0;
+
+    // the writer thread's
+    volatile Thread thread;
+    volatile boolean running = false;
+    volatile boolean waiting = false;   // parked until offer() unparks it
+    FileChannel channel = null;
+    Path file = null;
+    int sequence = -1;
+    long lastSync = 0;
+    boolean unsynced = false;
+    boolean broken = false;     // gave up on the disk until the next reset
+    final ByteBuffer buffer = ByteBuffer.allocate(FRAME_SIZE * 256);
+    final CRC32 crc = new CRC32();
+
+    public RecordingWriter() {
+        this(Paths.get(DEFAULT_DIRECTORY), DEFAULT_CAPACITY, DEFAULT_SYNC_MILLIS);
+    }
+
+    public RecordingWriter(Path directory, int capacity, long syncMillis) {
+        this(directory, capacity, syncMillis, DEFAULT_MAX_FILES);
+    }
+
+    /**
+     * @param capacity ticks the buffer holds; rounded up to a power of two
+     * @param maxFiles recordings to keep in the directory, counting the one being written
+     */
+    public RecordingWriter(Path directory, int capacity, long syncMillis, int maxFiles) {
+        this.directory = directory;
+        this.syncMillis = syncMillis;
+        this.maxFiles = Math.max(maxFiles, 1);
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mask = size - 1;
+        millis = new long[size];
+        magnitudeOrLeft = new double[size];
+        curveOrRight = new double[size];
+        control = new byte[size];
+    }
+
+    /**
+     * Start the background writer
+     *
+     * @return this
+     */
+    public synchronized RecordingWriter start() {
+        if (thread == null) {
+            running = true;
+            thread = new Thread(this::run, "Recording writer");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+        return this;
+    }
+
+    /**
+     * Write what's left, sync and close the file, and stop the writer
+     */
+    public synchronized void close() throws InterruptedException {
+        if (thread != null) {
+            running = false;
+            LockSupport.unpark(thread);
+            thread.join();
+            thread = null;
+        }
+    }
+
+    /**
+     * Queue a tick for the file.  Never blocks; robot loop only.
+     *
+     * @return false if the buffer was full and the tick was dropped
+     */
+    public boolean offer(Robot.State state, long time) {
+        // a reset that didn't fit goes first, or the tick would land in the old file
+        if (resetPending && !reset()) {
+            offered++;
+            dropped++;
+            return false;
+        }
+        DriveLine.State d = state.driveLineState;
+        return offer(time, d.magnitudeOrLeft, d.curveOrRight, pack(d));
+    }
+
+    /**
+     * The shift mode, drive mode and squared inputs in a byte, as the frames have them
+     */
+    static byte pack(DriveLine.State d) {
+        return (byte) (d.shiftMode.ordinal() | d.driveMode.ordinal() << 2 | (d.squaredInputs ? 8 : 0));
+    }
+
+    /**
+     * @return false if the bits aren't a packed state
+     */
+    static boolean unpack(int bits, DriveLine.State into) {
+        if ((bits & 3) >= RobotScript.SHIFT_MODES.length || (bits & ~15) != 0) {
+            return false;
+        }
+        into.shiftMode = RobotScript.SHIFT_MODES[bits & 3];
+        into.driveMode = RobotScript.DRIVE_MODES[(bits >> 2) & 1];
+        into.squaredInputs = (bits & 8) != 0;
+        return true;
+    }
+
+    /**
+     * Finish the current file; the next tick goes in a new one.  Robot loop only.
+     *
+     * If the buffer is full, the reset is tried again before each tick
+     * offered, and ticks are dropped until it fits.
+     *
+     * @return false if it had to be put off
+     */
+    public boolean reset() {
+        resetPending = !offer(0, 0, 0, RESET);
+        return !resetPending;
+    }
+
+    boolean offer(long time, double magnitude, double curve, byte bits) {
+        offered++;
+        long t = tail.get();
+        if (t - headSeen > mask) {
+            headSeen = head.get();
+            if (t - headSeen > mask) {
+                dropped++;
+                return false;
+            }
+        }
+        int slot = (int) t & mask;
+        millis[slot] = time;
+        magnitudeOrLeft[slot] = magnitude;
+        curveOrRight[slot] = curve;
+        control[slot] = bits;
+        tail.set(t + 1);        // publishes the slot to the writer, before we look at waiting
+        if (waiting) {
+            Thread writer = thread;
+            if (writer != null) {
+                LockSupport.unpark(writer);
+            }
+        }
+        return true;
+    }
+
+    void run() {
+        try {
+            while (running) {
+                if (!drain()) {
+                    await();
+                }
+                sync(false);
+            }
+            drain();
+            sync(true);
+        } finally {
+            closeFile();
+        }
+    }
+
+    /**
+     * Sleep until offer() or close() wakes us, or until it's time to sync what's written
+     */
+    void await() {
+        waiting = true;
+        // look again, now offer() can see we're waiting
+        if (running && head.get() == tail.get()) {
+            if (unsynced) {
+                long due = lastSync + syncMillis - System.nanoTime() / 1000000;
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.max(due, 1)));
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        waiting = false;
+    }
+
+    /**
+     * Write whatever is in the ring
+     *
+     * @return whether there was anything
+     */
+    boolean drain() {
+        long h = head.get(), t = tail.get();
+        if (h == t) {
+            return false;
+        }
+        for (; h < t; h++) {
+            int slot = (int) h & mask;
+            if (control[slot] == RESET) {
+                flush();
+                closeFile();
+                broken = false;
+            } else {
+                if (channel == null && !broken) {
+                    openFile();
+                }
+                if (buffer.remaining() < FRAME_SIZE) {
+                    flush();
+                }
+                frame(slot);
+            }
+            head.lazySet(h + 1);
+        }
+        flush();
+        return true;
+    }
+
+    void frame(int slot) {
+        buffer.put((byte) FRAME);
+        int start = buffer.position();
+        buffer.putLong(millis[slot]);
+        buffer.putDouble(magnitudeOrLeft[slot]);
+        buffer.putDouble(curveOrRight[slot]);
+        buffer.put(control[slot]);
+        crc.reset();
+        crc.update(buffer.array(), start, PAYLOAD_SIZE);
+        buffer.putInt((int) crc.getValue());
+    }
+
+    void flush() {
+        buffer.flip();
+        int frames = buffer.remaining() / FRAME_SIZE;
+        try {
+            if (channel != null) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                written += frames;
+                unsynced |= frames > 0;
+            }
+        } catch (IOException e) {
+            failed("writing", e);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    void sync(boolean now) {
+        long time = System.nanoTime() / 1000000;
+        if (channel == null || !unsynced || (!now && time - lastSync < syncMillis)) {
+            return;
+        }
+        try {
+            channel.force(false);
+            syncs++;
+            lastSync = time;
+            unsynced = false;
+        } catch (IOException e) {
+            failed("syncing", e);
+        }
+    }
+
+    void openFile() {
+        try {
+            Files.createDirectories(directory);
+            if (sequence < 0) {
+                sequence = lastSequence(directory);
+            }
+            file = directory.resolve(String.format("recording-%04d%s", ++sequence, EXTENSION));
+            channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.wrap(new byte[] { MAGIC[0], MAGIC[1], MAGIC[2], MAGIC[3], VERSION });
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        } catch (IOException e) {
+            failed("opening", e);
+            return;
+        }
+        prune(directory, maxFiles);
+    }
+
+    /**
+     * Delete the oldest recordings, by sequence number, until there are at most maxFiles
+     */
+    static void prune(Path directory, int maxFiles) {
+        try {
+            TreeMap<Integer, Path> recordings = new TreeMap<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "recording-*" + EXTENSION)) {
+                for (Path path : files) {
+                    int sequence = sequence(path);
+                    if (sequence >= 0) {
+                        recordings.put(sequence, path);
+                    }
+                }
+            }
+            while (recordings.size() > maxFiles) {
+                Files.deleteIfExists(recordings.pollFirstEntry().getValue());
+            }
+        } catch (IOException e) {
+            // not worth giving up on the recording for
+            Robot.LOG.warning("Couldn't delete old recordings in " + directory + ": " + e);
+        }
+    }
+
+    /**
+     * The NNNN of recording-NNNN.rrec, or -1 if it's someone else's file
+     */
+    static int sequence(Path path) {
+        String name = path.getFileName().toString();
+        try {
+            return Integer.parseInt(name.substring("recording-".length(), name.length() - EXTENSION.length()));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    void closeFile() {
+        if (channel == null) {
+            return;
+        }
+        sync(true);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            failed("closing", e);
+        }
+        channel = null;
+    }
+
+    /**
+     * Give up on this file, and on the disk until the next reset
+     */
+    void failed(String doing, IOException e) {
+        errors++;
+        broken = true;
+        Robot.LOG.warning("Recording writer failed " + doing + " " + file + ": " + e);
+        FileChannel failed = channel;
+        channel = null;
+        if (failed != null) {
+            try {
+                failed.close();
+            } catch (IOException ignored) {
+                // it's already broken
+            }
+        }
+    }
+
+    static int lastSequence(Path directory) throws IOException {
+        int last = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "recording-*" + EXTENSION)) {
+            for (Path path : files) {
+                last = Math.max(last, sequence(path));
+            }
+        }
+        return last;
+    }
+
+    /**
+     * The file being written, or the last one
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Read back every whole, uncorrupted frame of a file, up to the first one that isn't
+     *
+     * @throws IOException if it can't be read, or isn't a recording
+     */
+    public static RobotScript read(Path path) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(path));
+        for (byte b : MAGIC) {
+            if (!bytes.hasRemaining() || bytes.get() != b) {
+                throw new IOException(path + " is not a recording");
+            }
+        }
+        if (!bytes.hasRemaining() || bytes.get() != VERSION) {
+            throw new IOException("Can't read " + path + ": unknown version");
+        }
+        RobotScript script = new RobotScript(bytes.remaining() / FRAME_SIZE);
+        Robot.State state = new Robot.State();
+        DriveLine.State d = state.driveLineState;
+        CRC32 crc = new CRC32();
+        long last = Long.MIN_VALUE;
+        while (bytes.remaining() >= FRAME_SIZE && (bytes.get() & 0xff) == FRAME) {
+            int start = bytes.position();
+            crc.reset();
+            crc.update(bytes.array(), start, PAYLOAD_SIZE);
+            if (bytes.getInt(start + PAYLOAD_SIZE) != (int) crc.getValue()) {
+                break;
+            }
+            long time = bytes.getLong();
+            d.magnitudeOrLeft = bytes.getDouble();
+            d.curveOrRight = bytes.getDouble();
+            int bits = bytes.get();
+            bytes.getInt();
+            if (time < last || !unpack(bits, d)) {
+                break;
+            }
+            script.append(state, time);
+            last = time;
+        }
+        return script;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d offered, %d dropped, %d written, %d syncs, %d errors",
+                file, offered, dropped, written, syncs, errors);
+    }
+}
@@ -2,54 +2,202 @@ package team3543.robot;
 
 import edu.wpi.first.wpilibj.smartdashboard.SendableChooser;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 /**
- * For storing static copies of recordings
+ * The library of recordings
  *
  * Process:
  * - record paths on the bot
- * - recording will dump to the console
- * - copy and past into a RECORDINGS.put() as per below.
+ * - recording will dump to the console, and to the saveFromBot dashboard field
+ * - save it as src/main/deploy/recordings/NAME.json (or NAME.rscr, if you made
+ *   it with RobotScript.toBinary(), which is far smaller), and deploy
+ *
+ * At startup the deploy directory is indexed: name, size, ticks and checksum
+ * for each file, read from the binary trailer without decoding anything.  A
+ * file is only mapped (see MappedScript) when it is selected, so carrying more
+ * routines doesn't make startup slower or the heap bigger.  Whether a file is
+ * binary or JSON goes by its extension; if there are both NAME.rscr and
+ * NAME.json, the binary one is used.
+ *
+ * Scripts can still be pasted in below with add(), like EMPTY, and one pasted
+ * in wins over a file of the same name.
+ *
+ * A binary file is played straight from its mapping, a tick at a time, unless
+ * it is to be cut down to keyframes (see Keyframes), which is off unless
+ * Config.RECORDING_KEYFRAME_ERROR is set.  Everything else is
+ * parsed once, into CACHE, and cut down on the way in if that's turned on;
+ * prefetch() parses it in the background.
  */
 public class Recordings {
+    /** Where GradleRIO deploys src/main/deploy/recordings */
+    public static final String DEPLOY_DIRECTORY = "/home/lvuser/deploy/recordings";
+
     static Map<String, String> RECORDINGS = new HashMap<>();
+    static Map<String, Entry> INDEX = new TreeMap<>();
+
+    static final ScriptCache CACHE = new ScriptCache("Recordings", ScriptCache.DEFAULT_MAX_BYTES, Recordings::parse);
 
     // All the recordings go here.
     static {
         // add each recording like this
         add("EMPTY", "[]");
+        INDEX = index(Paths.get(DEPLOY_DIRECTORY));
     }
 
     ///////////////// Ingore below this line ////////////////
 
     static void add(String name, RobotScript script) {
-        RECORDINGS.put(name, script.toJSON());
+        add(name, script.toJSON());
     }
 
     static void add(String name, String value) {
         RECORDINGS.put(name, value);
+        CACHE.invalidate(name);
     }
 
-    public static RobotScript getScript(String name) {
+    /**
+     * Load a script for the cache, cut down to keyframes if Config.RECORDING_KEYFRAME_ERROR
+     * says to (by default it doesn't)
+     */
+    static RobotScript parse(String name) {
+        RobotScript script;
         if (RECORDINGS.containsKey(name)) {
-            return RobotScript.fromJSON(RECORDINGS.get(name));
+            script = RobotScript.fromJSON(RECORDINGS.get(name));
+        }
+        else if (INDEX.containsKey(name)) {
+            script = INDEX.get(name).load();
         }
         else {
             throw new IllegalArgumentException("No such script");
         }
+        if (Config.RECORDING_KEYFRAME_ERROR <= 0 || script.size() < 3) {
+            return script;
+        }
+        Keyframes keyframes = Keyframes.reduce(script, Config.RECORDING_KEYFRAME_ERROR);
+        Robot.LOG.info("Recording " + name + ": " + keyframes);
+        return keyframes.script;
+    }
+
+    /**
+     * Index the script files in a directory.  Files that can't be read are logged and left out.
+     *
+     * @return the entries by name; empty if there is no such directory
+     */
+    static Map<String, Entry> index(Path directory) {
+        Map<String, Entry> index = new TreeMap<>();
+        if (!Files.isDirectory(directory)) {
+            return index;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.{" + Entry.BINARY + "," + Entry.JSON + "}")) {
+            for (Path file : files) {
+                try {
+                    Entry entry = Entry.read(file);
+                    Entry other = index.get(entry.name);
+                    if (other != null) {
+                        // the order files are listed in isn't defined, so choose: binary wins
+                        Entry binary = entry.isBinary() ? entry : other;
+                        Robot.LOG.warning("Both " + entry.path.getFileName() + " and " + other.path.getFileName()
+                                + " found; using " + binary.path.getFileName());
+                        entry = binary;
+                    }
+                    index.put(entry.name, entry);
+                } catch (IOException e) {
+                    Robot.LOG.warning("Skipping recording " + file + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            Robot.LOG.warning("Can't list recordings in " + directory + ": " + e.getMessage());
+        }
+        return index;
+    }
+
+    /**
+     * The named script, parsed once and shared, so don't change it
+     */
+    public static RobotScript getScript(String name) {
+        return CACHE.get(name);
+    }
+
+    /**
+     * The index entry to play straight from its mapping, or null if the script
+     * has to go through the cache: it was pasted in, it's JSON, or it's to be
+     * cut down to keyframes
+     */
+    static Entry mappable(String name) {
+        if (RECORDINGS.containsKey(name) || Config.RECORDING_KEYFRAME_ERROR > 0) {
+            return null;
+        }
+        Entry entry = INDEX.get(name);
+        return entry != null && entry.isBinary() ? entry : null;
+    }
+
+    /**
+     * A source for the named script that plays it from its mapping if it can,
+     * and otherwise gets it from the cache
+     */
+    static RobotScript.ScriptSource source(final String name) {
+        return new RobotScript.ScriptSource() {
+            @Override
+            public RobotScript getScript() {
+                return CACHE.get(name);
+            }
+
+            @Override
+            public void prefetch() {
+                // a mapped file has nothing to parse, but is checked now, while disabled
+                Entry entry = mappable(name);
+                if (entry != null) {
+                    try {
+                        entry.map();
+                        return;
+                    } catch (IOException e) {
+                        // playOn() says so
+                    }
+                }
+                CACHE.prefetch(name);
+            }
+
+            @Override
+            public void playOn(Recorder recorder) {
+                Entry entry = mappable(name);
+                if (entry != null) {
+                    try {
+                        recorder.setScript(entry.map());
+                        return;
+                    } catch (IOException e) {
+                        Robot.LOG.warning("Can't play " + entry.path + " from its mapping, decoding it instead: " + e.getMessage());
+                    }
+                }
+                recorder.setScript(CACHE.get(name));
+            }
+        };
     }
 
     public static String[] getScriptNames() {
-        return (String [])RECORDINGS.keySet().toArray();
+        Set<String> names = new TreeSet<>(RECORDINGS.keySet());
+        names.addAll(INDEX.keySet());
+        return names.toArray(new String[0]);
     }
 
     public static RecordingChooser chooser() {
         RecordingChooser chooser = new RecordingChooser();
-        chooser.addDefault("EMPTY", RobotScript.ScriptSource.fromJSONString(RECORDINGS.get("EMPTY")));
-        for (String s : RECORDINGS.keySet()) {
-            chooser.addObject(s, RobotScript.ScriptSource.fromJSONString(RECORDINGS.get(s)));
+        chooser.addDefault("EMPTY", source("EMPTY"));
+        for (String s : getScriptNames()) {
+            chooser.addObject(s, source(s));
         }
         return chooser;
     }
@@ -59,5 +207,129 @@ public class Recordings {
             super();
         }
     }
-}
 
+    /**
+     * A script file in the index
+     */
+    public static class Entry {
+        static final String BINARY = "rscr", JSON = "json";
+
+        public final String name;
+        public final Path path;
+        public final long length;       // bytes
+        public final int ticks;         // -1 for JSON, until it's loaded
+        public final int checksum;      // CRC32 from the trailer, 0 for JSON
+        final boolean binary;           // by the extension
+        MappedScript mapped = null;
+        IOException corrupt = null;     // what map() found, if the file didn't check out
+
+        Entry(String name, Path path, long length, boolean binary, int ticks, int checksum) {
+            this.name = name;
+            this.path = path;
+            this.length = length;
+            this.binary = binary;
+            this.ticks = ticks;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Read just the header and trailer of a binary file
+         */
+        static Entry read(Path path) throws IOException {
+            String file = path.getFileName().toString();
+            int dot = file.lastIndexOf('.');
+            String name = file.substring(0, dot);
+            if (!file.substring(dot + 1).equals(BINARY)) {
+                return new Entry(name, path, Files.size(path), false, -1, 0);
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long length = channel.size();
+                if (length < ScriptCodec.HEADER_SIZE + ScriptCodec.TRAILER_SIZE) {
+                    throw new IOException("too short to be a script");
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(ScriptCodec.HEADER_SIZE);
+                readFully(channel, buffer, 0);
+                for (int i = 0; i < ScriptCodec.MAGIC.length; i++) {
+                    if (buffer.get(i) != ScriptCodec.MAGIC[i]) {
+                        throw new IOException("not a RobotScript");
+                    }
+                }
+                int version = buffer.get(ScriptCodec.MAGIC.length);
+                if (version < 1 || version > ScriptCodec.VERSION) {
+                    throw new IOException("can't read version " + version + " scripts");
+                }
+                buffer = ByteBuffer.allocate(ScriptCodec.TRAILER_SIZE);
+                readFully(channel, buffer, length - ScriptCodec.TRAILER_SIZE);
+                return new Entry(name, path, length, true, buffer.getInt(0), buffer.getInt(4));
+            }
+        }
+
+        static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("truncated");
+                }
+            }
+        }
+
+        /**
+         * Duration of the script at the nominal 20 ms tick (the trailer doesn't
+         * have the real one); -1 if not known
+         */
+        public long durationMillis() {
+            return ticks < 0 ? -1 : ticks * 20L;
+        }
+
+        /**
+         * True for a .rscr file, which the index has checked starts with the magic number
+         */
+        public boolean isBinary() {
+            return binary;
+        }
+
+        /**
+         * Map the file, and check its CRC, the first time this is called; after
+         * that it's the same mapping, or the same exception.  Binary files only.
+         */
+        public synchronized MappedScript map() throws IOException {
+            if (!isBinary()) {
+                throw new IOException(path + " is JSON, not a binary script");
+            }
+            if (corrupt != null) {
+                throw corrupt;
+            }
+            if (mapped == null) {
+                MappedScript script = MappedScript.map(path);
+                try {
+                    ScriptCodec.checkCrc(script.buffer.duplicate());
+                } catch (IOException e) {
+                    corrupt = new IOException(path + " is corrupt: " + e.getMessage(), e);
+                    throw corrupt;
+                }
+                mapped = script;
+            }
+            return mapped;
+        }
+
+        /**
+         * Decode (or parse) the whole script
+         *
+         * @throws IllegalArgumentException if it can't be read, or is corrupt
+         */
+        RobotScript load() {
+            try {
+                if (isBinary()) {
+                    return map().decode();
+                }
+                return RobotScript.fromJSON(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Can't read " + path + ": " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d bytes, %d ticks, %.1f s, crc %08x", name, length, ticks, durationMillis() / 1000.0, checksum);
+        }
+    }
+}
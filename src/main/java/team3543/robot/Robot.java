@@ -2,7 +2,11 @@ package team3543.robot;
 
 import java.util.logging.Logger;
 
+import edu.wpi.first.wpilibj.RobotController;
 import edu.wpi.first.wpilibj.TimedRobot;
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+import team3543.codegen.GenerateCodec;
+import team3543.robot.ActivityScheduler.Priority;
 
 /**
  * The VM is configured to automatically run this class, and to call the
@@ -11,13 +15,23 @@ import edu.wpi.first.wpilibj.TimedRobot;
  * creating this project, you must also update the build.properties file in
  * the project.
  */
-public class Robot extends TimedRobot {
+public class Robot extends TimedRobot implements Recordable {
 	public static Logger LOG = Logger.getLogger("Robot");
 
+    /** Time the scheduled work may take each tick, leaving headroom in the 20 ms period */
+    static final long TICK_BUDGET_NANOS = 15000000L;
+
 	////////////////// Variables
 
     final OI oi;    					// Operator Interface
     final Recorder recorder;            // Record/playback manager
+    final Activity statsPublisher = ActivityStats.publisher(50);   // activity timings, once a second
+    final Activity cachePublisher = Recordings.CACHE.publisher(50);     // script cache counters, once a second
+    final ActivityScheduler autonomous;	// what runs each autonomous tick, by priority
+    final ActivityScheduler teleop;		// what runs each teleop tick, by priority
+    final State liveState = new State();	// points at the subsystems' own state, for recording
+    final RecordingWriter recordingWriter = new RecordingWriter();  // recordings to disk as they're made
+    final BlackBox blackBox = new BlackBox();   // the last few seconds, always
 
     ////////////////// Subsystems
     final DriveLine driveLine;		    // manages driveline sensors and acutators
@@ -32,6 +46,20 @@ public class Robot extends TimedRobot {
 //    	claw = new Claw();
         oi = new OI(this);
         recorder = new Recorder(this);
+        // driving and actuating always run; recording and telemetry give way when a tick runs long
+        autonomous = new ActivityScheduler("Autonomous", TICK_BUDGET_NANOS)
+                .schedule("Sensors", Priority.CRITICAL, 200000, Activity.wrap(driveLine::periodic))
+                .schedule("Playback", Priority.CRITICAL, 200000, Activity.wrap(recorder::playback))
+                .schedule("Actuate", Priority.CRITICAL, 500000, Activity.wrap(this::actuate))
+                .schedule("Stats", Priority.LOW, 1000000, statsPublisher);
+        autonomous.schedule("Schedule stats", Priority.LOW, 200000, Activity.every(50, Activity.wrap(autonomous::publish)));
+        teleop = new ActivityScheduler("Teleop", TICK_BUDGET_NANOS)
+                .schedule("Sensors", Priority.CRITICAL, 200000, Activity.wrap(driveLine::periodic))
+                .schedule("OI", Priority.CRITICAL, 500000, Activity.wrap(oi::loop))
+                .schedule("Actuate", Priority.CRITICAL, 500000, Activity.wrap(this::actuate))
+                .schedule("Record", Priority.HIGH, 300000, Activity.wrap(recorder::record))
+                .schedule("Stats", Priority.LOW, 1000000, statsPublisher);
+        teleop.schedule("Schedule stats", Priority.LOW, 200000, Activity.every(50, Activity.wrap(teleop::publish)));
     }
 
 	/**
@@ -40,7 +68,10 @@ public class Robot extends TimedRobot {
      */
     @Override
     public void robotInit() {
+        // time-based activities run off the FPGA clock, sampled once per tick
+        TickContext.install(new TickContext(() -> RobotController.getFPGATime() / 1000));
     	oi.configure();
+        recorder.setWriter(recordingWriter.start());
         calibrate();
         // start the driveLine compressor
         driveLine.reset();
@@ -54,6 +85,8 @@ public class Robot extends TimedRobot {
     @Override
     public void disabledInit() {
     	stopAll();
+    	// keep the run that just finished
+    	blackBox.freeze("disabled");
     }
 
     /**
@@ -63,7 +96,8 @@ public class Robot extends TimedRobot {
      */
     @Override
     public void autonomousInit() {
-        recorder.setScript(oi.getAutonomousScript());
+        TickContext.get().restart();
+        oi.loadAutonomousScript(recorder);
         recorder.startPlayback();
     }
 
@@ -72,17 +106,17 @@ public class Robot extends TimedRobot {
      */
     @Override
     public void autonomousPeriodic() {
-        // this runs any scheduled commands
-        // perform playback, if there is a script
-        // Scheduler.getInstance().run();
-        recorder.playback();
+        long start = System.nanoTime();
+        TickContext.get().tick();
+        // perform playback, if there is a script, then actuate
         // note - we don't record in autonomous mode
-        // Updating subsystems only writes state.  To actually make the robot do/move, call actuate()
-        actuate();
+        autonomous.loop();
+        afterLoop(System.nanoTime() - start);
     }
 
     @Override
     public void teleopInit() {
+        TickContext.get().restart();
         // This makes sure that the autonomous stops running when
         // teleop starts running. If you want the autonomous to
         // continue until interrupted by another command, remove
@@ -95,12 +129,47 @@ public class Robot extends TimedRobot {
      */
     @Override
     public void teleopPeriodic() {
-        // read the operator interface and apply
-        oi.loop();
+        long start = System.nanoTime();
+        TickContext.get().tick();
+        // a script from the client, if one has arrived, before anything plays it
+        if (recorder.swapInLoaded()) {
+            SmartDashboard.putString("Playback", "Loaded");
+        }
+        // read the operator interface and apply, actuate, then record state, if recording
         // Updating subsystems only writes state.  To actually make the robot do/move, call actuate()
-        actuate();
-        // record state, if recording
-        recorder.record();
+        teleop.loop();
+        afterLoop(System.nanoTime() - start);
+    }
+
+    /**
+     * Time the loop, and keep it in the black box; a brownout or a long loop saves the box.
+     * The drive line's sensors were read at the start of the tick; only the battery is read here.
+     */
+    void afterLoop(long nanos) {
+        ActivityStats.LOOP.record(nanos);
+        double volts = RobotController.getBatteryVoltage();
+        blackBox.record(currentState(), TickContext.get().now(), driveLine.getGyroAngle(),
+                driveLine.getLeftEncoderValue(), driveLine.getRightEncoderValue(), volts, nanos);
+        if (volts < Config.BROWNOUT_VOLTS) {
+            blackBox.trigger("brownout");
+        } else if (nanos > Config.BLACK_BOX_OVERRUN_NANOS) {
+            blackBox.trigger("overrun");
+        }
+    }
+
+    /**
+     * This function is called periodically while disabled
+     *
+     * Gets the autonomous script parsed ahead of time, so autonomousInit() only swaps it in.
+     */
+    @Override
+    public void disabledPeriodic() {
+        // ticks go on while disabled, so every() activities like the cache publisher do too
+        TickContext.get().tick();
+        recorder.swapInLoaded();
+        oi.prefetchAutonomousScript();
+        statsPublisher.loop();
+        cachePublisher.loop();
     }
 
     /**
@@ -147,6 +216,7 @@ public class Robot extends TimedRobot {
 //        this.claw.actuate();
     }
 
+    @Override
     public State getState() {
         State state = new State();
         // we add copies of the state
@@ -155,15 +225,27 @@ public class Robot extends TimedRobot {
         return state;
     }
 
+    /**
+     * The subsystems' own state, not copies, so recording doesn't allocate
+     */
+    @Override
+    public State currentState() {
+        liveState.driveLineState = this.driveLine.state;
+//        liveState.clawState = this.claw.state;
+        return liveState;
+    }
+
     /**
      * Set the robot state
      *
      * This will cascade-set the states of all the actuators.
      */
+    @Override
     public void setState(State state) {
         // if you add new subsystems, you need to add their states here
-        this.driveLine.state = state.driveLineState;
-//        this.claw.state = state.clawState;
+        // copied, since the Recorder reuses the state it plays back into
+        this.driveLine.state.set(state.driveLineState);
+//        this.claw.state.set(state.clawState);
     }
 
     /**
@@ -173,7 +255,11 @@ public class Robot extends TimedRobot {
      * State class, and an instance should be referenced here.  Record/playback
      * serializes this state to JSON every loop to make a recording, and a
      * deserialized instance is fed to the robot each loop during playback.
+     *
+     * Mark each State class @GenerateCodec too; the JSON is written and read
+     * by the codecs generated for them (see RobotStateCodec), not by reflection.
      */
+    @GenerateCodec
     public static class State {
         // You need a state object here for each subsystem
         public DriveLine.State driveLineState = new DriveLine.State();
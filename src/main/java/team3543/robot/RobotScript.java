@@ -1,36 +1,471 @@
 package team3543.robot;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
 import java.io.*;
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
 
-public class RobotScript extends ArrayList<Robot.State> {
+/**
+ * A recording: one Robot.State per tick, and when it was recorded.
+ *
+ * Each tick has a time in milliseconds (from the TickContext clock, relative
+ * to the start of the recording), so playback can follow the clock instead of
+ * counting ticks: sample() finds the two ticks either side of a time by binary
+ * search and interpolates the stick values between them.  A late loop then
+ * doesn't stretch the rest of the routine.  Ticks added without a time are
+ * taken to be PERIOD_MILLIS apart.
+ *
+ * The states are stored in columns of primitives, one array per field, instead
+ * of one object per tick.  read() never allocates, and neither does append()
+ * until the arrays are full, when they double.  A script starts small; the
+ * Recorder sizes the one it records into for a whole match up front, so
+ * recording never grows it.
+ *
+ * It is still a List of Robot.State for everyone else, but get() builds a new
+ * State each time, so don't use it on the robot loop.
+ *
+ * The JSON is the same as ObjectMapper writes for a List of Robot.State, but it
+ * goes through the codecs generated for the @GenerateCodec State classes, which
+ * stream straight to and from the columns through one scratch State.  It has
+ * no times, so a script read from JSON plays at the nominal period; the binary
+ * format keeps them.
+ *
+ * It is a ScriptView too, so it can be sliced, joined, stretched and mirrored
+ * without copying.
+ *
+ * If you add a subsystem to Robot.State, add columns for its state here.
+ */
+public class RobotScript extends AbstractList<Robot.State> implements ScriptView, RandomAccess, Serializable {
 
-    static ObjectMapper objectMapper = new ObjectMapper();
+    static final JsonFactory jsonFactory = new JsonFactory();
 
     public static final long serialVersionUID = 1L;
     public static final RobotScript EMPTY = new RobotScript();
 
+    /** Ticks to allocate for: a 150 s match at 50 Hz, and then some */
+    public static final int MATCH_TICKS = 9000;
+
+    /** Ticks to allocate for when no one says how many */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /** Time between ticks that don't say otherwise: TimedRobot's period */
+    public static final long PERIOD_MILLIS = 20;
+
+    static final DriveLine.ShiftMode[] SHIFT_MODES = DriveLine.ShiftMode.values();
+    static final DriveLine.DriveMode[] DRIVE_MODES = DriveLine.DriveMode.values();
+
+    // DriveLine.State columns
+    double[] magnitudeOrLeft;
+    double[] curveOrRight;
+    byte[] shiftMode;
+    byte[] driveMode;
+    long[] squaredInputs;        // a bit per tick
+    long[] millis;               // when each tick was recorded; never decreases
+    int size = 0;
+
+    public RobotScript() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RobotScript(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    void allocate(int capacity) {
+        magnitudeOrLeft = new double[capacity];
+        curveOrRight = new double[capacity];
+        shiftMode = new byte[capacity];
+        driveMode = new byte[capacity];
+        squaredInputs = new long[(capacity + 63) >> 6];
+        millis = new long[capacity];
+    }
+
+    /**
+     * Make room for at least this many ticks.  Only allocates if there isn't room.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity <= magnitudeOrLeft.length) {
+            return;
+        }
+        capacity = Math.max(capacity, magnitudeOrLeft.length * 2);
+        magnitudeOrLeft = Arrays.copyOf(magnitudeOrLeft, capacity);
+        curveOrRight = Arrays.copyOf(curveOrRight, capacity);
+        shiftMode = Arrays.copyOf(shiftMode, capacity);
+        driveMode = Arrays.copyOf(driveMode, capacity);
+        squaredInputs = Arrays.copyOf(squaredInputs, (capacity + 63) >> 6);
+        millis = Arrays.copyOf(millis, capacity);
+    }
+
+    /**
+     * Number of ticks there is room for without growing
+     */
+    public int capacity() {
+        return magnitudeOrLeft.length;
+    }
+
+    /**
+     * Shrink the columns to fit, for a script that's done growing (one that's cached, say)
+     */
+    public void trimToSize() {
+        int capacity = Math.max(size, 1);
+        if (capacity == magnitudeOrLeft.length) {
+            return;
+        }
+        magnitudeOrLeft = Arrays.copyOf(magnitudeOrLeft, capacity);
+        curveOrRight = Arrays.copyOf(curveOrRight, capacity);
+        shiftMode = Arrays.copyOf(shiftMode, capacity);
+        driveMode = Arrays.copyOf(driveMode, capacity);
+        squaredInputs = Arrays.copyOf(squaredInputs, (capacity + 63) >> 6);
+        millis = Arrays.copyOf(millis, capacity);
+    }
+
+    /**
+     * Roughly the bytes the columns take up
+     */
+    public long sizeInBytes() {
+        return magnitudeOrLeft.length * 26L + squaredInputs.length * 8L;
+    }
+
+    /**
+     * Add a tick to the end, copying the state into the columns.  Doesn't
+     * allocate unless the script is past its capacity.
+     */
+    public void append(Robot.State state) {
+        append(state, size == 0 ? 0 : millis[size - 1] + PERIOD_MILLIS);
+    }
+
+    /**
+     * Add a tick recorded at a time.  Times must not go backwards.
+     */
+    public void append(Robot.State state, long time) {
+        if (size > 0 && time < millis[size - 1]) {
+            throw new IllegalArgumentException("Tick at " + time + " ms is before the last one, at " + millis[size - 1] + " ms");
+        }
+        ensureCapacity(size + 1);
+        millis[size] = time;
+        write(size++, state);
+    }
+
+    /**
+     * When tick i was recorded
+     */
+    public long millis(int i) {
+        checkIndex(i);
+        return millis[i];
+    }
+
+    @Override
+    public double magnitudeOrLeft(int i) {
+        checkIndex(i);
+        return magnitudeOrLeft[i];
+    }
+
+    @Override
+    public double curveOrRight(int i) {
+        checkIndex(i);
+        return curveOrRight[i];
+    }
+
+    @Override
+    public DriveLine.ShiftMode shiftMode(int i) {
+        checkIndex(i);
+        return SHIFT_MODES[shiftMode[i]];
+    }
+
+    @Override
+    public DriveLine.DriveMode driveMode(int i) {
+        checkIndex(i);
+        return DRIVE_MODES[driveMode[i]];
+    }
+
+    @Override
+    public boolean squaredInputs(int i) {
+        checkIndex(i);
+        return (squaredInputs[i >> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * Milliseconds from the first tick to the end of the last one
+     */
+    public long duration() {
+        return size == 0 ? 0 : millis[size - 1] - millis[0] + PERIOD_MILLIS;
+    }
+
+    /**
+     * The last tick recorded at or before a time (or the first, if the time is
+     * before it), by binary search
+     */
+    public int indexAt(long time) {
+        int low = 0, high = size - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (millis[mid] <= time) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The state at a time, without allocating: the tick recorded at or before
+     * it, with the stick values interpolated toward the next tick.  They aren't
+     * interpolated across a change of mode, since they mean something else.
+     *
+     * @return the tick it was taken from
+     */
+    public int sample(long time, Robot.State into) {
+        int i = indexAt(time);
+        read(i, into);
+        int next = i + 1;
+        if (next < size && time > millis[i] && shiftMode[i] == shiftMode[next] && driveMode[i] == driveMode[next]) {
+            double fraction = (double) (time - millis[i]) / (millis[next] - millis[i]);
+            DriveLine.State d = into.driveLineState;
+            d.magnitudeOrLeft += (magnitudeOrLeft[next] - magnitudeOrLeft[i]) * fraction;
+            d.curveOrRight += (curveOrRight[next] - curveOrRight[i]) * fraction;
+        }
+        return i;
+    }
+
+    /**
+     * Copy tick i into an existing state, without allocating
+     *
+     * @return into
+     */
+    public Robot.State read(int i, Robot.State into) {
+        checkIndex(i);
+        DriveLine.State d = into.driveLineState;
+        if (d == null) {
+            d = into.driveLineState = new DriveLine.State();
+        }
+        d.magnitudeOrLeft = magnitudeOrLeft[i];
+        d.curveOrRight = curveOrRight[i];
+        d.shiftMode = SHIFT_MODES[shiftMode[i]];
+        d.driveMode = DRIVE_MODES[driveMode[i]];
+        d.squaredInputs = (squaredInputs[i >> 6] & (1L << i)) != 0;
+        return into;
+    }
+
+    void write(int i, Robot.State state) {
+        DriveLine.State d = state.driveLineState;
+        magnitudeOrLeft[i] = d.magnitudeOrLeft;
+        curveOrRight[i] = d.curveOrRight;
+        shiftMode[i] = (byte) d.shiftMode.ordinal();
+        driveMode[i] = (byte) d.driveMode.ordinal();
+        if (d.squaredInputs) {
+            squaredInputs[i >> 6] |= 1L << i;
+        } else {
+            squaredInputs[i >> 6] &= ~(1L << i);
+        }
+    }
+
+    /**
+     * Move ticks [from, size) to start at to, keeping the bitset in step
+     */
+    void shift(int from, int to) {
+        int count = size - from;
+        System.arraycopy(magnitudeOrLeft, from, magnitudeOrLeft, to, count);
+        System.arraycopy(curveOrRight, from, curveOrRight, to, count);
+        System.arraycopy(shiftMode, from, shiftMode, to, count);
+        System.arraycopy(driveMode, from, driveMode, to, count);
+        System.arraycopy(millis, from, millis, to, count);
+        if (to > from) {
+            for (int i = count - 1; i >= 0; i--) copyBit(from + i, to + i);
+        } else {
+            for (int i = 0; i < count; i++) copyBit(from + i, to + i);
+        }
+    }
+
+    void copyBit(int from, int to) {
+        if ((squaredInputs[from >> 6] & (1L << from)) != 0) {
+            squaredInputs[to >> 6] |= 1L << to;
+        } else {
+            squaredInputs[to >> 6] &= ~(1L << to);
+        }
+    }
+
+    void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Tick " + i + " of " + size);
+        }
+    }
+
+    /////////////// The List view
+
+    /**
+     * A new State with a copy of tick i.  This allocates; use read() on the robot loop.
+     *
+     * The List methods keep the times in order: set() keeps the tick's time,
+     * and a tick inserted with add(i, state) gets the time of the one before it.
+     */
+    @Override
+    public Robot.State get(int i) {
+        return read(i, new Robot.State());
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Robot.State set(int i, Robot.State state) {
+        Robot.State old = get(i);
+        write(i, state);
+        return old;
+    }
+
+    @Override
+    public void add(int i, Robot.State state) {
+        if (i < 0 || i > size) {
+            throw new IndexOutOfBoundsException("Tick " + i + " of " + size);
+        }
+        ensureCapacity(size + 1);
+        shift(i, i + 1);
+        size++;
+        millis[i] = i == 0 ? (size > 1 ? millis[1] : 0) : millis[i - 1];
+        write(i, state);
+        modCount++;
+    }
+
+    @Override
+    public boolean add(Robot.State state) {
+        append(state);
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public Robot.State remove(int i) {
+        Robot.State old = get(i);
+        shift(i + 1, i);
+        size--;
+        modCount++;
+        return old;
+    }
+
+    /**
+     * Forget every tick, but keep the columns
+     */
+    @Override
+    public void clear() {
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * Copies column to column when given another RobotScript.  Its times are
+     * moved to start a period after our last tick.
+     */
+    @Override
+    public boolean addAll(Collection<? extends Robot.State> states) {
+        if (!(states instanceof RobotScript)) {
+            return super.addAll(states);
+        }
+        RobotScript other = (RobotScript) states;
+        int count = other.size;
+        ensureCapacity(size + count);
+        System.arraycopy(other.magnitudeOrLeft, 0, magnitudeOrLeft, size, count);
+        System.arraycopy(other.curveOrRight, 0, curveOrRight, size, count);
+        System.arraycopy(other.shiftMode, 0, shiftMode, size, count);
+        System.arraycopy(other.driveMode, 0, driveMode, size, count);
+        long offset = count == 0 ? 0 : (size == 0 ? 0 : millis[size - 1] + PERIOD_MILLIS) - other.millis[0];
+        for (int i = 0; i < count; i++) {
+            millis[size + i] = other.millis[i] + offset;
+        }
+        for (int i = 0; i < count; i++) {
+            if ((other.squaredInputs[i >> 6] & (1L << i)) != 0) {
+                squaredInputs[(size + i) >> 6] |= 1L << (size + i);
+            } else {
+                squaredInputs[(size + i) >> 6] &= ~(1L << (size + i));
+            }
+        }
+        size += count;
+        modCount++;
+        return count > 0;
+    }
+
     /**
      * Returns the serialized state as UTF8-encoded string
      */
     public String toJSON() {
-        try {
-            return objectMapper.writeValueAsString(this);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException(e);
+        StringWriter out = new StringWriter(size * 160 + 2);
+        Robot.State scratch = new Robot.State();
+        try (JsonGenerator g = jsonFactory.createGenerator(out)) {
+            g.writeStartArray();
+            for (int i = 0; i < size; i++) {
+                RobotStateCodec.write(g, read(i, scratch));
+            }
+            g.writeEndArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // can't happen with a StringWriter
         }
+        return out.toString();
+    }
+
+    /**
+     * The script in the compact binary format
+     *
+     * @see ScriptCodec
+     */
+    public byte[] toBinary() {
+        return ScriptCodec.encode(this);
+    }
+
+    /**
+     * Read a script in the compact binary format
+     *
+     * @throws IllegalArgumentException if it's truncated or corrupt
+     * @see ScriptCodec
+     */
+    public static RobotScript fromBinary(byte[] bytes) {
+        return ScriptCodec.decode(bytes);
     }
 
     public static RobotScript fromJSON(String s) {
         try {
-            return objectMapper.readValue(s, RobotScript.class);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException(e); // should not happen
+            return fromJSON(jsonFactory.createParser(s));
         } catch (IOException e) {
-            throw new RuntimeException(e); // also should not happen
+            throw new RuntimeException(e); // bad JSON
+        }
+    }
+
+    /**
+     * Parse UTF-8 JSON straight from a stream, without reading it all in first.
+     * Closes the stream.
+     */
+    public static RobotScript fromJSON(InputStream in) {
+        try {
+            return fromJSON(jsonFactory.createParser(in));
+        } catch (IOException e) {
+            throw new RuntimeException(e); // bad JSON
+        }
+    }
+
+    static RobotScript fromJSON(JsonParser parser) {
+        try (JsonParser p = parser) {
+            if (p.nextToken() != JsonToken.START_ARRAY) {
+                throw new JsonParseException(p, "Expected an array of states");
+            }
+            RobotScript script = new RobotScript();
+            Robot.State scratch = new Robot.State();
+            while (p.nextToken() != JsonToken.END_ARRAY) {
+                if (RobotStateCodec.read(p, scratch) == null) {
+                    throw new IllegalArgumentException("null state at tick " + script.size);
+                }
+                script.append(scratch);
+            }
+            return script;
+        } catch (IOException e) {
+            throw new RuntimeException(e); // bad JSON
         }
     }
 
@@ -43,6 +478,19 @@ public class RobotScript extends ArrayList<Robot.State> {
     interface ScriptSource {
         RobotScript getScript();
 
+        /**
+         * Get ready for getScript(), in the background, if that's worth doing
+         */
+        default void prefetch() { }
+
+        /**
+         * Give the script to the recorder to play.  A source that can play it
+         * without parsing it all first (from a mapped file, say) does that.
+         */
+        default void playOn(Recorder recorder) {
+            recorder.setScript(getScript());
+        }
+
         public static ScriptSource fromJSONString(final String s) {
             return new ScriptSource() {
                 @Override
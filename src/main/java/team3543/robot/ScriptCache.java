@@ -0,0 +1,242 @@
+package team3543.robot;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+/**
+ * Parsed scripts, by name, so a script is parsed once and not at the start of autonomous.
+ *
+ * get() returns the cached script if there is one, waits for it if it is being
+ * parsed in the background, and otherwise parses it there and then.
+ * prefetch() starts parsing in the background (on the Async threads) and
+ * returns straight away; call it while disabled for whatever is selected on
+ * the chooser, and autonomousInit() only has to pick up the result.
+ *
+ * It holds at most maxBytes of scripts (see RobotScript.sizeInBytes()), and
+ * drops the least recently used ones to make room.
+ *
+ * A script that fails to parse isn't tried again until it is invalidated: get()
+ * throws the same exception, and prefetch() does nothing, so a bad script
+ * selected on the chooser isn't parsed every loop.  Invalidating a script
+ * that is being parsed makes that parse's result stale, and it is dropped.
+ *
+ * The scripts are shared, so don't change them.  Recorder copies a script
+ * before recording into it.
+ *
+ * @author mk
+ */
+public class ScriptCache {
+
+    /** Room for a couple of dozen full-match scripts */
+    public static final long DEFAULT_MAX_BYTES = 4L << 20;
+
+    final String name;
+    final long maxBytes;
+    final Function<String, RobotScript> parser;
+    final LinkedHashMap<String, RobotScript> scripts = new LinkedHashMap<>(16, 0.75f, true);  // in LRU order
+    final Map<String, FutureTask<RobotScript>> parsing = new HashMap<>();
+    final Map<String, Throwable> failed = new HashMap<>();     // what each bad script threw
+    final Map<String, Long> generations = new HashMap<>();     // times each script was invalidated
+    long bytes = 0;
+
+    // counters
+    long hits = 0;          // found parsed
+    long waits = 0;         // found being parsed in the background
+    long misses = 0;        // parsed on the caller's thread
+    long prefetches = 0;    // parses started in the background
+    long evictions = 0;
+    long parses = 0;
+    long parseNanos = 0;
+    long maxParseNanos = 0;
+
+    public ScriptCache(String name, long maxBytes, Function<String, RobotScript> parser) {
+        this.name = name;
+        this.maxBytes = maxBytes;
+        this.parser = parser;
+    }
+
+    /**
+     * The script with this name, parsing it if it has to.  Rethrows whatever the parser threw.
+     */
+    public RobotScript get(String key) {
+        FutureTask<RobotScript> task;
+        boolean mine = false;
+        synchronized (this) {
+            RobotScript script = scripts.get(key);
+            if (script != null) {
+                hits++;
+                return script;
+            }
+            Throwable failure = failed.get(key);
+            if (failure != null) {
+                rethrow(failure);
+            }
+            task = parsing.get(key);
+            if (task == null) {
+                misses++;
+                task = parseTask(key);
+                mine = true;
+            } else {
+                waits++;
+            }
+        }
+        if (mine) {
+            task.run();
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            return rethrow(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for script " + key, e);
+        }
+    }
+
+    static RobotScript rethrow(Throwable cause) {
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        throw new RuntimeException(cause);
+    }
+
+    /**
+     * Start parsing the script in the background, if it isn't parsed, being
+     * parsed, or known to be bad already.
+     *
+     * @return false if the background threads are too busy; try again later
+     */
+    public synchronized boolean prefetch(String key) {
+        if (scripts.containsKey(key) || parsing.containsKey(key) || failed.containsKey(key)) {
+            return true;
+        }
+        FutureTask<RobotScript> task = parseTask(key);
+        try {
+            Async.EXECUTOR.execute(task);
+        } catch (RejectedExecutionException e) {
+            parsing.remove(key);
+            return false;
+        }
+        prefetches++;
+        return true;
+    }
+
+    /**
+     * Whether the script is parsed and waiting
+     */
+    public synchronized boolean contains(String key) {
+        return scripts.containsKey(key);
+    }
+
+    /**
+     * Whether the script failed to parse, and hasn't been invalidated since
+     */
+    public synchronized boolean failed(String key) {
+        return failed.containsKey(key);
+    }
+
+    /**
+     * Forget a script, say because its source changed, or that it failed.  A
+     * parse of it that is under way is left to finish, but its result is dropped.
+     */
+    public synchronized void invalidate(String key) {
+        RobotScript script = scripts.remove(key);
+        if (script != null) {
+            bytes -= script.sizeInBytes();
+        }
+        failed.remove(key);
+        parsing.remove(key);
+        generations.merge(key, 1L, Long::sum);
+    }
+
+    /**
+     * Bytes of scripts held
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    // call holding the lock
+    FutureTask<RobotScript> parseTask(String key) {
+        long generation = generations.getOrDefault(key, 0L);
+        FutureTask<RobotScript> task = new FutureTask<>(() -> parse(key, generation));
+        parsing.put(key, task);
+        return task;
+    }
+
+    RobotScript parse(String key, long generation) {
+        long start = System.nanoTime();
+        RobotScript script = null;
+        Throwable failure = null;
+        try {
+            script = parser.apply(key);
+            script.trimToSize();
+            return script;
+        } catch (RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            synchronized (this) {
+                // if it was invalidated since, this is stale, and a newer parse may be under way
+                if (generations.getOrDefault(key, 0L) == generation) {
+                    parsing.remove(key);
+                    if (script != null) {
+                        parses++;
+                        parseNanos += nanos;
+                        maxParseNanos = Math.max(maxParseNanos, nanos);
+                        put(key, script);
+                    } else if (failure != null) {
+                        failed.put(key, failure);
+                    }
+                }
+            }
+        }
+    }
+
+    // call holding the lock
+    void put(String key, RobotScript script) {
+        RobotScript old = scripts.put(key, script);
+        if (old != null) {
+            bytes -= old.sizeInBytes();
+        }
+        bytes += script.sizeInBytes();
+        // least recently used first, but always keep the newest, even if it is too big on its own
+        Iterator<RobotScript> lru = scripts.values().iterator();
+        while (bytes > maxBytes && scripts.size() > 1) {
+            bytes -= lru.next().sizeInBytes();
+            lru.remove();
+            evictions++;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: %d scripts, %d KB, %d hits, %d waits, %d misses, %d prefetched, %d evicted, %d parses avg %.1f ms max %.1f ms",
+                name, scripts.size(), bytes >> 10, hits, waits, misses, prefetches, evictions, parses,
+                parses == 0 ? 0 : parseNanos / 1e6 / parses, maxParseNanos / 1e6);
+    }
+
+    /**
+     * Publish the counters to the SmartDashboard
+     */
+    public synchronized void publish() {
+        SmartDashboard.putString(name + " cache", toString());
+        SmartDashboard.putNumber(name + " cache hits", hits + waits);
+        SmartDashboard.putNumber(name + " cache misses", misses);
+    }
+
+    /**
+     * An activity that publishes the counters every so many ticks
+     */
+    public Activity publisher(int everyTicks) {
+        return Activity.every(everyTicks, Activity.wrap(this::publish));
+    }
+}
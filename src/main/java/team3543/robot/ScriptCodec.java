@@ -0,0 +1,471 @@
+package team3543.robot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary format for RobotScripts.
+ *
+ * A recording is mostly joystick values, which the driver station quantizes
+ * to 1/127 or 1/128 steps, that change a little (or not at all) from one tick
+ * to the next.  So instead of JSON:
+ * <ul>
+ * <li> values are stored as steps of 1/16256 (= 1/(127 * 128)), which holds
+ * 	both quantizations exactly; anything that isn't on that grid is stored as
+ * 	a raw double, so nothing is ever lost
+ * <li> a value that is the same as last tick costs nothing, otherwise the
+ * 	change in steps is stored as a zigzag varint (1 byte for small changes)
+ * <li> the enums and the boolean go in the tick's one control byte
+ * <li> a run of identical ticks, evenly spaced in time, is stored as one count
+ * <li> each tick's time is stored as the change in the gap since the tick
+ * 	before, so a steady 20 ms loop costs a byte a tick, jitter included
+ * </ul>
+ *
+ * Layout:
+ * <pre>
+ * header:  'R' 'S' 'C' 'R' version(1) flags(1)
+ * ticks:   control byte, then the magnitude and curve if they changed, then the time:
+ *          the gap to the tick before (from time 0 for the first) less the
+ *          gap before that (20 ms for the first), as a zigzag varint
+ *          control bits 0-1: shift mode ordinal (3 = a run, see below)
+ *                   bit 2:   drive mode ordinal
+ *                   bit 3:   squared inputs
+ *                   bits 4-5, 6-7: how magnitude, then curve, are stored:
+ *                            0 = same as last tick, 1 = varint step delta, 2 = raw double
+ *          a run: bits 2-7 hold how many more copies of the last tick (1-62),
+ *                 or 63 and then a varint with the count; each comes the same
+ *                 gap after the one before
+ * end:     0x03 (a run of zero)
+ * trailer: tick count (int), CRC32 of everything before it (int), both big-endian
+ * </pre>
+ * Version 1 had no times; its ticks are read as PERIOD_MILLIS apart.
+ *
+ * The trailer is a fixed 8 bytes at the end, so the tick count can be read
+ * without decoding.  Encoder and Decoder stream, so a script never has to be
+ * in memory as bytes and as states at the same time.  The count is only
+ * trusted to size a RobotScript once the CRC has checked out, and even then
+ * no further than the bytes could hold without runs; runs grow it as they
+ * are decoded.
+ *
+ * @author mk
+ */
+public class ScriptCodec {
+
+    static final byte[] MAGIC = { 'R', 'S', 'C', 'R' };
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = MAGIC.length + 2;
+    public static final int TRAILER_SIZE = 8;
+
+    /** Steps per unit: both 1/127 and 1/128 are whole numbers of steps */
+    static final double STEPS = 127 * 128;
+
+    static final int RUN = 3;
+    static final int MAX_SHORT_RUN = 62;
+    static final int END = RUN;
+
+    static final int SAME = 0, DELTA = 1, RAW = 2;
+
+    private ScriptCodec() { }
+
+    /**
+     * Encode a whole script
+     */
+    public static byte[] encode(RobotScript script) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_SIZE + TRAILER_SIZE + script.size() * 2);
+        try {
+            Encoder encoder = new Encoder(out);
+            Robot.State state = new Robot.State();
+            for (int i = 0; i < script.size(); i++) {
+                encoder.write(script.read(i, state), script.millis[i]);
+            }
+            encoder.finish();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // can't happen with a byte array
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a whole script
+     *
+     * @throws IllegalArgumentException if the bytes aren't a valid script
+     */
+    public static RobotScript decode(byte[] bytes) {
+        int count = tickCount(bytes);
+        try {
+            checkCrc(ByteBuffer.wrap(bytes));
+            Decoder decoder = new Decoder(new ByteArrayInputStream(bytes));
+            RobotScript script = new RobotScript(capacity(count, bytes.length));
+            Robot.State state = new Robot.State();
+            while (decoder.read(state)) {
+                script.append(state, decoder.millis());
+            }
+            return script;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Not a valid script: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The tick count from the trailer of an encoded script, without decoding it
+     */
+    public static int tickCount(byte[] bytes) {
+        if (bytes.length < HEADER_SIZE + TRAILER_SIZE) {
+            throw new IllegalArgumentException("Too short to be a script");
+        }
+        return readInt(bytes, bytes.length - TRAILER_SIZE);
+    }
+
+    /**
+     * Check the CRC in the trailer against the bytes before it, without decoding
+     *
+     * @throws IOException if it doesn't match
+     */
+    static void checkCrc(ByteBuffer bytes) throws IOException {
+        int end = bytes.limit() - 4;
+        ByteBuffer body = bytes.duplicate();
+        body.position(0).limit(end);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != bytes.getInt(end)) {
+            throw new IOException("CRC mismatch");
+        }
+    }
+
+    /**
+     * Ticks to allocate for a script of this many bytes that says it has count
+     * ticks.  A tick outside a run takes at least a byte, so any more than that
+     * come from runs, and the script grows into them as they're decoded.
+     */
+    static int capacity(int count, int length) {
+        return Math.max(0, Math.min(count, length - HEADER_SIZE - TRAILER_SIZE));
+    }
+
+    static int readInt(byte[] b, int at) {
+        return (b[at] & 0xff) << 24 | (b[at + 1] & 0xff) << 16 | (b[at + 2] & 0xff) << 8 | (b[at + 3] & 0xff);
+    }
+
+    /**
+     * The value on the step grid, or Long.MIN_VALUE if it isn't exactly on it
+     */
+    static long steps(double value) {
+        double scaled = value * STEPS;
+        if (!(Math.abs(scaled) < 1L << 52)) {
+            return Long.MIN_VALUE;     // too big, infinite or NaN
+        }
+        long steps = Math.round(scaled);
+        // compare bits, so -0.0 isn't taken for 0.0
+        return Double.doubleToRawLongBits(steps / STEPS) == Double.doubleToRawLongBits(value) ? steps : Long.MIN_VALUE;
+    }
+
+    /**
+     * Writes ticks to a stream, one at a time
+     */
+    public static class Encoder {
+        final OutputStream out;
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[32];
+        final DriveLine.State last = new DriveLine.State();
+        long lastMagnitudeSteps = 0, lastCurveSteps = 0;
+        long lastMillis = 0, lastGap = RobotScript.PERIOD_MILLIS;
+        boolean any = false;
+        int run = 0;
+        int count = 0;
+
+        public Encoder(OutputStream out) throws IOException {
+            this.out = out;
+            byte[] header = { MAGIC[0], MAGIC[1], MAGIC[2], MAGIC[3], VERSION, 0 };
+            emit(header, header.length);
+        }
+
+        /**
+         * Add a tick, PERIOD_MILLIS after the last one
+         */
+        public void write(Robot.State state) throws IOException {
+            write(state, any ? lastMillis + RobotScript.PERIOD_MILLIS : 0);
+        }
+
+        /**
+         * Add a tick recorded at a time
+         */
+        public void write(Robot.State state, long millis) throws IOException {
+            DriveLine.State d = state.driveLineState;
+            long gap = millis - lastMillis;
+            if (gap < 0) {
+                throw new IllegalArgumentException("Tick at " + millis + " ms is before the last one");
+            }
+            count++;
+            lastMillis = millis;
+            if (any && gap == lastGap && same(d, last)) {
+                run++;
+                return;
+            }
+            flushRun();
+            int at = 1;
+            long magnitudeSteps = steps(d.magnitudeOrLeft);
+            int magnitudeKind = kind(d.magnitudeOrLeft, last.magnitudeOrLeft, magnitudeSteps);
+            at = value(at, magnitudeKind, d.magnitudeOrLeft, magnitudeSteps - lastMagnitudeSteps);
+            if (magnitudeKind == DELTA) lastMagnitudeSteps = magnitudeSteps;
+            long curveSteps = steps(d.curveOrRight);
+            int curveKind = kind(d.curveOrRight, last.curveOrRight, curveSteps);
+            at = value(at, curveKind, d.curveOrRight, curveSteps - lastCurveSteps);
+            if (curveKind == DELTA) lastCurveSteps = curveSteps;
+            at = varint(at, zigzag(gap - lastGap));
+            lastGap = gap;
+            buffer[0] = (byte) (d.shiftMode.ordinal()
+                    | d.driveMode.ordinal() << 2
+                    | (d.squaredInputs ? 1 : 0) << 3
+                    | magnitudeKind << 4
+                    | curveKind << 6);
+            emit(buffer, at);
+            last.shiftMode = d.shiftMode;
+            last.driveMode = d.driveMode;
+            last.squaredInputs = d.squaredInputs;
+            last.magnitudeOrLeft = d.magnitudeOrLeft;
+            last.curveOrRight = d.curveOrRight;
+            any = true;
+        }
+
+        /**
+         * Write the end and the trailer.  Doesn't close the stream.
+         */
+        public void finish() throws IOException {
+            flushRun();
+            buffer[0] = END;
+            emit(buffer, 1);
+            writeInt(count);
+            emit(buffer, 4);
+            writeInt((int) crc.getValue());
+            out.write(buffer, 0, 4);
+            out.flush();
+        }
+
+        static boolean same(DriveLine.State a, DriveLine.State b) {
+            return a.shiftMode == b.shiftMode && a.driveMode == b.driveMode && a.squaredInputs == b.squaredInputs
+                    && Double.doubleToRawLongBits(a.magnitudeOrLeft) == Double.doubleToRawLongBits(b.magnitudeOrLeft)
+                    && Double.doubleToRawLongBits(a.curveOrRight) == Double.doubleToRawLongBits(b.curveOrRight);
+        }
+
+        int kind(double value, double lastValue, long steps) {
+            if (any && Double.doubleToRawLongBits(value) == Double.doubleToRawLongBits(lastValue)) {
+                return SAME;
+            }
+            return steps == Long.MIN_VALUE ? RAW : DELTA;
+        }
+
+        int value(int at, int kind, double value, long delta) {
+            if (kind == DELTA) {
+                return varint(at, zigzag(delta));
+            }
+            if (kind == RAW) {
+                long bits = Double.doubleToRawLongBits(value);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    buffer[at++] = (byte) (bits >>> shift);
+                }
+            }
+            return at;
+        }
+
+        void flushRun() throws IOException {
+            if (run == 0) {
+                return;
+            }
+            int at;
+            if (run <= MAX_SHORT_RUN) {
+                buffer[0] = (byte) (RUN | run << 2);
+                at = 1;
+            } else {
+                buffer[0] = (byte) (RUN | (MAX_SHORT_RUN + 1) << 2);
+                at = varint(1, run);
+            }
+            emit(buffer, at);
+            run = 0;
+        }
+
+        int varint(int at, long value) {
+            while ((value & ~0x7fL) != 0) {
+                buffer[at++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[at++] = (byte) value;
+            return at;
+        }
+
+        static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        void writeInt(int value) {
+            buffer[0] = (byte) (value >>> 24);
+            buffer[1] = (byte) (value >>> 16);
+            buffer[2] = (byte) (value >>> 8);
+            buffer[3] = (byte) value;
+        }
+
+        void emit(byte[] bytes, int length) throws IOException {
+            crc.update(bytes, 0, length);
+            out.write(bytes, 0, length);
+        }
+    }
+
+    /**
+     * Reads ticks from a stream, one at a time, checking the trailer at the end
+     */
+    public static class Decoder {
+        final InputStream in;
+        final CRC32 crc = new CRC32();
+        final DriveLine.State last = new DriveLine.State();
+        long lastMagnitudeSteps = 0, lastCurveSteps = 0;
+        final int version;
+        long millis = 0, gap = RobotScript.PERIOD_MILLIS;
+        int run = 0;
+        int count = 0;
+        boolean ended = false;
+
+        public Decoder(InputStream in) throws IOException {
+            this.in = in;
+            for (byte b : MAGIC) {
+                if (next() != (b & 0xff)) {
+                    throw new IOException("Not a RobotScript");
+                }
+            }
+            version = next();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Can't read version " + version + " scripts");
+            }
+            next();    // flags
+        }
+
+        /**
+         * Read the next tick into a state
+         *
+         * @return false at the end of the script (once the trailer has checked out)
+         * @throws IOException if the script is truncated or corrupt
+         */
+        public boolean read(Robot.State into) throws IOException {
+            if (ended) {
+                return false;
+            }
+            if (run == 0) {
+                int control = next();
+                if ((control & 3) == RUN) {
+                    run = control >>> 2;
+                    if (run == 0) {
+                        end();
+                        return false;
+                    }
+                    if (run == MAX_SHORT_RUN + 1) {
+                        run = (int) varint();
+                    }
+                } else {
+                    last.shiftMode = RobotScript.SHIFT_MODES[control & 3];
+                    last.driveMode = RobotScript.DRIVE_MODES[(control >>> 2) & 1];
+                    last.squaredInputs = (control & 8) != 0;
+                    int magnitudeKind = (control >>> 4) & 3;
+                    if (magnitudeKind == DELTA) {
+                        lastMagnitudeSteps += unzigzag(varint());
+                        last.magnitudeOrLeft = lastMagnitudeSteps / STEPS;
+                    } else if (magnitudeKind == RAW) {
+                        last.magnitudeOrLeft = raw();
+                    }
+                    int curveKind = control >>> 6;
+                    if (curveKind == DELTA) {
+                        lastCurveSteps += unzigzag(varint());
+                        last.curveOrRight = lastCurveSteps / STEPS;
+                    } else if (curveKind == RAW) {
+                        last.curveOrRight = raw();
+                    }
+                    if (magnitudeKind == 3 || curveKind == 3) {
+                        throw new IOException("Bad control byte at tick " + count);
+                    }
+                    if (version >= 2) {
+                        gap += unzigzag(varint());
+                        if (gap < 0) {
+                            throw new IOException("Time goes backwards at tick " + count);
+                        }
+                    }
+                    run = 1;
+                }
+            }
+            // version 1 ticks start at 0 and are a period apart
+            millis = count == 0 && version == 1 ? 0 : millis + gap;
+            run--;
+            count++;
+            DriveLine.State d = into.driveLineState;
+            if (d == null) {
+                d = into.driveLineState = new DriveLine.State();
+            }
+            d.shiftMode = last.shiftMode;
+            d.driveMode = last.driveMode;
+            d.squaredInputs = last.squaredInputs;
+            d.magnitudeOrLeft = last.magnitudeOrLeft;
+            d.curveOrRight = last.curveOrRight;
+            return true;
+        }
+
+        /**
+         * When the tick just read was recorded
+         */
+        public long millis() {
+            return millis;
+        }
+
+        void end() throws IOException {
+            int ticks = readInt();
+            int expectedCrc = (int) crc.getValue();
+            ended = true;
+            int storedCrc = readInt();
+            if (storedCrc != expectedCrc) {
+                throw new IOException("CRC mismatch");
+            }
+            if (ticks != count) {
+                throw new IOException("Expected " + ticks + " ticks, found " + count);
+            }
+        }
+
+        int next() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Script is truncated after tick " + count);
+            }
+            if (!ended) {
+                crc.update(b);
+            }
+            return b;
+        }
+
+        long varint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = next();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Bad varint at tick " + count);
+        }
+
+        double raw() throws IOException {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = bits << 8 | next();
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        int readInt() throws IOException {
+            return next() << 24 | next() << 16 | next() << 8 | next();
+        }
+
+        static long unzigzag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
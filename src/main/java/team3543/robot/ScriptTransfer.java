@@ -0,0 +1,492 @@
+package team3543.robot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import edu.wpi.first.networktables.EntryListenerFlags;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableInstance;
+
+/**
+ * Moves a script (or any bytes) between the robot and the client over
+ * NetworkTables, in chunks, instead of as one huge string entry.
+ *
+ * An entry only holds its latest value, so the chunks take turns through a
+ * window of entries, channel.0 to channel.7, and the receiver says how far it
+ * has got in channel.ack.  The sender never has more chunks out than there are
+ * entries, so it never overwrites one the receiver hasn't seen.  If nothing is
+ * acknowledged for a while, it sends the outstanding chunks again, and gives
+ * up after a few tries.  Each round of resending has the next attempt number,
+ * so the chunks differ from last time; NetworkTables doesn't pass on a value
+ * that hasn't changed.  Likewise each ack is numbered.
+ *
+ * <pre>
+ * chunk: 'S' 'T' version(1) flags(1; 1 = deflated)
+ *        transfer id, sequence number, chunk count, length, CRC32, attempt (ints)
+ *        payload (up to the chunk size)
+ * ack:   transfer id, chunks received in order, status, ack number (ints)
+ * </pre>
+ *
+ * The length and CRC are of the bytes before deflating, and are checked once
+ * they're all in.  Every chunk carries them, so any chunk can start a transfer.
+ * The header comes from whoever is on the other end, so a receiver refuses a
+ * length over its maximum (Config.MAX_SCRIPT_BYTES), or more chunks than that
+ * length needs at MIN_CHUNK_SIZE, before it allocates anything for them.
+ *
+ * Both ends work through a Link, which is NetworkTables on the robot (see
+ * NetworkTableLink), and can be anything in a test.  send() waits for the
+ * acknowledgements, so don't call it on the robot loop.
+ *
+ * @author mk
+ */
+public class ScriptTransfer {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+    public static final int WINDOW = 8;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 500;
+    public static final int DEFAULT_RETRIES = 6;
+    public static final int MIN_CHUNK_SIZE = 64;
+
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 4 + 6 * 4;
+    static final int DEFLATED = 1;
+
+    /** Ack statuses */
+    static final int RECEIVING = 0, DONE = 1, CORRUPT = 2;
+
+    /**
+     * Something to send bytes by key over, and hear about them
+     */
+    public interface Link {
+        void send(String key, byte[] value);
+
+        void listen(String key, Consumer<byte[]> listener);
+
+        /** Send what's been set now, instead of at the next update */
+        default void flush() {}
+
+        /** Whether anyone is on the other end to hear it */
+        default boolean connected() {
+            return true;
+        }
+    }
+
+    /**
+     * A Link over a NetworkTable, with raw entries
+     */
+    public static class NetworkTableLink implements Link {
+        final NetworkTableInstance instance;
+        final NetworkTable table;
+
+        public NetworkTableLink(NetworkTableInstance instance, String table) {
+            this.instance = instance;
+            this.table = instance.getTable(table);
+        }
+
+        @Override
+        public void send(String key, byte[] value) {
+            table.getEntry(key).setRaw(value);
+        }
+
+        @Override
+        public void listen(String key, Consumer<byte[]> listener) {
+            table.addEntryListener(key, (table, k, entry, value, flags) -> listener.accept(value.getRaw()),
+                    EntryListenerFlags.kNew | EntryListenerFlags.kUpdate);
+        }
+
+        @Override
+        public void flush() {
+            instance.flush();
+        }
+
+        @Override
+        public boolean connected() {
+            return instance.isConnected();
+        }
+    }
+
+    /**
+     * How a transfer went
+     */
+    public static class Stats {
+        public int bytes;           // before deflating
+        public int sent;            // after
+        public int chunks;
+        public int resent;          // chunks sent again
+        public long nanos;          // first chunk to last ack (or last chunk, receiving)
+        public long maxAckNanos;    // longest a chunk waited for its ack
+        long ackNanos;
+        int acks;
+
+        /** Kilobytes a second of what was sent */
+        public double throughput() {
+            return nanos == 0 ? 0 : bytes / 1024.0 / (nanos / 1e9);
+        }
+
+        /** Mean time from sending a chunk to it being acknowledged */
+        public double meanAckMillis() {
+            return acks == 0 ? 0 : ackNanos / 1e6 / acks;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d bytes (%d sent) in %d chunks, %d resent, %.1f ms, %.1f KB/s, ack %.1f ms mean %.1f ms max",
+                    bytes, sent, chunks, resent, nanos / 1e6, throughput(), meanAckMillis(), maxAckNanos / 1e6);
+        }
+    }
+
+    static String chunkKey(String channel, int slot) {
+        return channel + "." + slot;
+    }
+
+    static String ackKey(String channel) {
+        return channel + ".ack";
+    }
+
+    /**
+     * Sends over one channel.  One send() at a time.
+     */
+    public static class Sender {
+        final Link link;
+        final String channel;
+        final int chunkSize;
+        final long timeoutMillis;
+        final int retries;
+
+        // from the ack listener
+        int ackId, acked, status;
+
+        public Sender(Link link, String channel) {
+            this(link, channel, DEFAULT_CHUNK_SIZE, DEFAULT_TIMEOUT_MILLIS, DEFAULT_RETRIES);
+        }
+
+        public Sender(Link link, String channel, int chunkSize, long timeoutMillis, int retries) {
+            if (chunkSize < MIN_CHUNK_SIZE) {
+                throw new IllegalArgumentException("Chunk size must be at least " + MIN_CHUNK_SIZE + ", not " + chunkSize);
+            }
+            this.link = link;
+            this.channel = channel;
+            this.chunkSize = chunkSize;
+            this.timeoutMillis = timeoutMillis;
+            this.retries = retries;
+            link.listen(ackKey(channel), this::ack);
+        }
+
+        synchronized void ack(byte[] value) {
+            if (value == null || value.length < 12) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(value);
+            ackId = buffer.getInt();
+            acked = buffer.getInt();
+            status = buffer.getInt();
+            notifyAll();
+        }
+
+        /**
+         * Whether there's a receiver to send to; if not, send() would only time out
+         */
+        public boolean connected() {
+            return link.connected();
+        }
+
+        /**
+         * Send and wait until it's all acknowledged
+         *
+         * @param deflate deflate it first, if that makes it smaller
+         * @throws TimeoutException if the receiver stopped acknowledging
+         * @throws IOException if the receiver got it all but it didn't check out
+         */
+        public Stats send(byte[] data, boolean deflate) throws IOException, InterruptedException, TimeoutException {
+            return send(ByteBuffer.wrap(data), deflate);
+        }
+
+        /**
+         * Send from a buffer's position to its limit, say a mapped file,
+         * without copying it (unless it's deflated).  Doesn't move the position.
+         */
+        public Stats send(ByteBuffer data, boolean deflate) throws IOException, InterruptedException, TimeoutException {
+            Stats stats = new Stats();
+            long start = System.nanoTime();
+            data = data.slice();
+            int length = data.remaining();
+            CRC32 crc = new CRC32();
+            crc.update(data.duplicate());
+            ByteBuffer payload = data;
+            int flags = 0;
+            if (deflate) {
+                byte[] deflated = deflate(data.duplicate());
+                if (deflated.length < length) {
+                    payload = ByteBuffer.wrap(deflated);
+                    flags = DEFLATED;
+                }
+            }
+            int count = Math.max(1, (payload.remaining() + chunkSize - 1) / chunkSize);
+            int id = ThreadLocalRandom.current().nextInt();
+            stats.bytes = length;
+            stats.sent = payload.remaining();
+            stats.chunks = count;
+            long[] sentAt = new long[WINDOW];
+
+            synchronized (this) {
+                int next = 0, tries = 0, done = 0, attempt = 0;
+                while (true) {
+                    int received = ackId == id ? acked : 0;
+                    for (; done < received; done++) {
+                        long waited = System.nanoTime() - sentAt[done % WINDOW];
+                        stats.ackNanos += waited;
+                        stats.acks++;
+                        stats.maxAckNanos = Math.max(stats.maxAckNanos, waited);
+                    }
+                    if (ackId == id && status == CORRUPT) {
+                        throw new IOException("Transfer on " + channel + " arrived corrupt, or was refused");
+                    }
+                    if (ackId == id && status == DONE) {
+                        break;
+                    }
+                    if (next < received) {
+                        next = received;    // a resend from before caught up
+                    }
+                    for (; next < count && next < received + WINDOW; next++) {
+                        link.send(chunkKey(channel, next % WINDOW), chunk(payload, id, next, count, flags, length, (int) crc.getValue(), attempt));
+                        sentAt[next % WINDOW] = System.nanoTime();
+                    }
+                    link.flush();
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                    long left;
+                    while ((ackId != id || acked == received && status == RECEIVING) && (left = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, left);
+                    }
+                    if (ackId == id && (acked > received || status != RECEIVING)) {
+                        tries = 0;
+                        continue;
+                    }
+                    if (++tries > retries) {
+                        throw new TimeoutException("No acknowledgement on " + channel + " after " + received + " of " + count + " chunks");
+                    }
+                    // nothing heard: send everything outstanding again
+                    stats.resent += next - received;
+                    next = received;
+                    attempt++;
+                }
+            }
+            stats.nanos = System.nanoTime() - start;
+            return stats;
+        }
+
+        byte[] chunk(ByteBuffer payload, int id, int seq, int count, int flags, int length, int crc, int attempt) {
+            int from = seq * chunkSize;
+            int size = Math.min(chunkSize, payload.remaining() - from);
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + size);
+            buffer.put((byte) 'S').put((byte) 'T').put((byte) VERSION).put((byte) flags);
+            buffer.putInt(id).putInt(seq).putInt(count).putInt(length).putInt(crc).putInt(attempt);
+            ByteBuffer piece = payload.duplicate();
+            piece.position(piece.position() + from).limit(piece.position() + size);
+            buffer.put(piece);
+            return buffer.array();
+        }
+    }
+
+    /**
+     * Receives on one channel, on the Link's listener thread, and hands each
+     * whole, checked transfer to the consumer there too.  The consumer can
+     * refuse one by throwing; the sender is told it arrived corrupt.  So is a
+     * sender whose header says it's sending more than maxBytes.
+     */
+    public static class Receiver {
+        final Link link;
+        final String channel;
+        final Consumer<byte[]> consumer;
+        final int maxBytes;
+
+        int id;
+        boolean started = false;    // any transfer yet
+        int status = RECEIVING;     // of the last one
+        byte[][] chunks = null;     // null between transfers
+        int flags, length, crc;
+        int received = 0;           // in order
+        int acks = 0;               // sent, so no two are the same
+        long startedAt;
+        Stats last = null;          // of the last transfer received
+
+        public Receiver(Link link, String channel, Consumer<byte[]> consumer) {
+            this(link, channel, consumer, Config.MAX_SCRIPT_BYTES);
+        }
+
+        /**
+         * @param maxBytes the most it takes in one transfer, before deflating
+         */
+        public Receiver(Link link, String channel, Consumer<byte[]> consumer, int maxBytes) {
+            this.link = link;
+            this.channel = channel;
+            this.consumer = consumer;
+            this.maxBytes = maxBytes;
+            for (int slot = 0; slot < WINDOW; slot++) {
+                link.listen(chunkKey(channel, slot), this::chunk);
+            }
+        }
+
+        synchronized void chunk(byte[] value) {
+            if (value == null || value.length < HEADER_SIZE || value[0] != 'S' || value[1] != 'T' || value[2] != VERSION) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(value);
+            buffer.position(3);
+            int flags = buffer.get();
+            int id = buffer.getInt(), seq = buffer.getInt(), count = buffer.getInt(), length = buffer.getInt(), crc = buffer.getInt();
+            buffer.getInt();    // the attempt; only there to make a resend a new value
+            if (count < 1 || seq < 0 || seq >= count || length < 0) {
+                return;
+            }
+            if (chunks == null || id != this.id) {
+                if (started && id == this.id) {
+                    ack(status);    // a late resend of the last one
+                    return;
+                }
+                // a new transfer; whatever was in progress is abandoned
+                this.id = id;
+                this.started = true;
+                this.received = 0;
+                if (length > maxBytes || count > Math.max(1, (length + MIN_CHUNK_SIZE - 1) / MIN_CHUNK_SIZE)) {
+                    Robot.LOG.warning("Transfer on " + channel + " refused: " + length + " bytes in " + count
+                            + " chunks, over the " + maxBytes + " byte limit");
+                    this.chunks = null;
+                    this.status = CORRUPT;
+                    ack(status);
+                    return;
+                }
+                this.chunks = new byte[count][];
+                this.flags = flags;
+                this.length = length;
+                this.crc = crc;
+                this.status = RECEIVING;
+                this.startedAt = System.nanoTime();
+            }
+            if (count != chunks.length) {
+                return;
+            }
+            if (chunks[seq] == null) {
+                chunks[seq] = new byte[buffer.remaining()];
+                buffer.get(chunks[seq]);
+            }
+            while (received < count && chunks[received] != null) {
+                received++;
+            }
+            if (received < count) {
+                ack(RECEIVING);
+                return;
+            }
+            byte[] data = assemble();
+            if (data == null) {
+                Robot.LOG.warning("Transfer on " + channel + " arrived corrupt");
+            } else {
+                try {
+                    consumer.accept(data);
+                } catch (RuntimeException e) {
+                    Robot.LOG.warning("Transfer on " + channel + " refused: " + e.getMessage());
+                    data = null;
+                }
+            }
+            // only once it's been taken, so the sender knows it's done with
+            status = data == null ? CORRUPT : DONE;
+            ack(status);
+        }
+
+        byte[] assemble() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+            int sent = 0;
+            for (byte[] chunk : chunks) {
+                out.write(chunk, 0, chunk.length);
+                sent += chunk.length;
+            }
+            chunks = null;
+            Stats stats = new Stats();
+            stats.bytes = length;
+            stats.sent = sent;
+            stats.chunks = received;
+            stats.nanos = System.nanoTime() - startedAt;
+            last = stats;
+            byte[] data = out.toByteArray();
+            try {
+                if ((flags & DEFLATED) != 0) {
+                    data = inflate(data, length);
+                }
+            } catch (DataFormatException e) {
+                return null;
+            }
+            CRC32 check = new CRC32();
+            check.update(data);
+            return data.length == length && (int) check.getValue() == crc ? data : null;
+        }
+
+        void ack(int status) {
+            link.send(ackKey(channel), ByteBuffer.allocate(16).putInt(id).putInt(received).putInt(status).putInt(++acks).array());
+            link.flush();
+        }
+
+        /**
+         * How the last whole transfer went, or null
+         */
+        public synchronized Stats lastStats() {
+            return last;
+        }
+    }
+
+    static byte[] deflate(ByteBuffer data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.remaining() / 2 + 64);
+            // a piece at a time, so a mapped file isn't copied onto the heap whole
+            byte[] input = new byte[Math.min(data.remaining(), 64 * 1024)];
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                if (deflater.needsInput()) {
+                    if (data.hasRemaining()) {
+                        int n = Math.min(input.length, data.remaining());
+                        data.get(input, 0, n);
+                        deflater.setInput(input, 0, n);
+                    } else {
+                        deflater.finish();
+                    }
+                }
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static byte[] inflate(byte[] data, int length) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] out = new byte[length];
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int read = inflater.inflate(out, n, length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Deflated data ends early");
+                }
+                n += read;
+            }
+            if (!inflater.finished()) {
+                throw new DataFormatException("More deflated data than the length says");
+            }
+            return n == length ? out : Arrays.copyOf(out, n);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package team3543.robot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A script you can only read: a tick count, and each tick's time and fields.
+ *
+ * RobotScript is one.  slice(), concat(), timeScale() and mirror() make
+ * others, which read through to the script(s) underneath instead of copying
+ * them, so an autonomous routine built out of pieces of recordings costs a
+ * few small objects however long the pieces are.  The Recorder plays a view
+ * just as it plays a RobotScript, sampling it by time, without allocating.
+ *
+ * <code>
+ * ScriptView routine = ScriptView.concat(
+ * 		leaveStart.slice(0, 150),
+ * 		toSwitch.timeScale(0.8),
+ * 		backUp);
+ * recorder.setScript(onTheRight ? routine.mirror() : routine);
+ * </code>
+ *
+ * The views don't copy, so don't change a RobotScript while there are views
+ * of it.  Scripts from the cache are never changed; the Recorder copies one
+ * before recording into it.
+ *
+ * A view's times are those of what it was made from, except that concat()
+ * starts each piece a period after the end of the last, and timeScale()
+ * stretches them from the first tick.  Playback goes from the first tick's
+ * time, whatever it is.
+ *
+ * @author mk
+ */
+public interface ScriptView {
+
+    int size();
+
+    /** When tick i was recorded; never less than the tick before's */
+    long millis(int i);
+
+    double magnitudeOrLeft(int i);
+
+    double curveOrRight(int i);
+
+    DriveLine.ShiftMode shiftMode(int i);
+
+    DriveLine.DriveMode driveMode(int i);
+
+    boolean squaredInputs(int i);
+
+    /**
+     * Milliseconds from the first tick to the end of the last one
+     */
+    default long duration() {
+        int size = size();
+        return size == 0 ? 0 : millis(size - 1) - millis(0) + RobotScript.PERIOD_MILLIS;
+    }
+
+    /**
+     * The last tick at or before a time (or the first, if the time is before it), by binary search
+     */
+    default int indexAt(long time) {
+        int low = 0, high = size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (millis(mid) <= time) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Copy tick i into an existing state, without allocating
+     *
+     * @return into
+     */
+    default Robot.State read(int i, Robot.State into) {
+        DriveLine.State d = into.driveLineState;
+        if (d == null) {
+            d = into.driveLineState = new DriveLine.State();
+        }
+        d.magnitudeOrLeft = magnitudeOrLeft(i);
+        d.curveOrRight = curveOrRight(i);
+        d.shiftMode = shiftMode(i);
+        d.driveMode = driveMode(i);
+        d.squaredInputs = squaredInputs(i);
+        return into;
+    }
+
+    /**
+     * The state at a time, without allocating, as RobotScript.sample() does it
+     *
+     * @return the tick it was taken from
+     */
+    default int sample(long time, Robot.State into) {
+        int i = indexAt(time);
+        read(i, into);
+        int next = i + 1;
+        long at = millis(i);
+        if (next < size() && time > at && shiftMode(i) == shiftMode(next) && driveMode(i) == driveMode(next)) {
+            double fraction = (double) (time - at) / (millis(next) - at);
+            DriveLine.State d = into.driveLineState;
+            d.magnitudeOrLeft += (magnitudeOrLeft(next) - d.magnitudeOrLeft) * fraction;
+            d.curveOrRight += (curveOrRight(next) - d.curveOrRight) * fraction;
+        }
+        return i;
+    }
+
+    /**
+     * Ticks from (inclusive) to to (exclusive), keeping their times
+     */
+    default ScriptView slice(int from, int to) {
+        if (from < 0 || to > size() || from > to) {
+            throw new IndexOutOfBoundsException("Can't slice " + from + " to " + to + " of " + size());
+        }
+        return new Slice(this, from, to);
+    }
+
+    /**
+     * The same ticks, taking factor times as long: 2 is half speed
+     */
+    default ScriptView timeScale(double factor) {
+        if (!(factor > 0) || Double.isInfinite(factor)) {
+            throw new IllegalArgumentException("Time scale must be positive, not " + factor);
+        }
+        return new TimeScale(this, factor);
+    }
+
+    /**
+     * The same ticks for the other side of the field: left and right swapped
+     * in tank drive, the curve the other way in arcade
+     */
+    default ScriptView mirror() {
+        return new Mirror(this);
+    }
+
+    /**
+     * One piece after another, each starting a period after the last one ends
+     */
+    static ScriptView concat(ScriptView... pieces) {
+        List<ScriptView> flat = new ArrayList<>();
+        for (ScriptView piece : pieces) {
+            if (piece instanceof Concat) {
+                for (ScriptView p : ((Concat) piece).pieces) {
+                    flat.add(p);
+                }
+            } else if (piece.size() > 0) {
+                flat.add(piece);
+            }
+        }
+        return new Concat(flat.toArray(new ScriptView[flat.size()]));
+    }
+
+    /**
+     * Copy it into a RobotScript, say to save it
+     */
+    default RobotScript toScript() {
+        RobotScript script = new RobotScript(size());
+        Robot.State state = new Robot.State();
+        for (int i = 0; i < size(); i++) {
+            script.append(read(i, state), millis(i));
+        }
+        return script;
+    }
+
+    /**
+     * Views of views read through to the one underneath
+     */
+    abstract class View implements ScriptView {
+        final ScriptView base;
+
+        View(ScriptView base) {
+            this.base = base;
+        }
+
+        @Override
+        public int size() {
+            return base.size();
+        }
+
+        @Override
+        public long millis(int i) {
+            return base.millis(i);
+        }
+
+        @Override
+        public double magnitudeOrLeft(int i) {
+            return base.magnitudeOrLeft(i);
+        }
+
+        @Override
+        public double curveOrRight(int i) {
+            return base.curveOrRight(i);
+        }
+
+        @Override
+        public DriveLine.ShiftMode shiftMode(int i) {
+            return base.shiftMode(i);
+        }
+
+        @Override
+        public DriveLine.DriveMode driveMode(int i) {
+            return base.driveMode(i);
+        }
+
+        @Override
+        public boolean squaredInputs(int i) {
+            return base.squaredInputs(i);
+        }
+    }
+
+    final class Slice extends View {
+        final int from, size;
+
+        Slice(ScriptView base, int from, int to) {
+            // a slice of a slice is a slice of the original
+            super(base instanceof Slice ? ((Slice) base).base : base);
+            this.from = from + (base instanceof Slice ? ((Slice) base).from : 0);
+            this.size = to - from;
+        }
+
+        int index(int i) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("Tick " + i + " of " + size);
+            }
+            return from + i;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public long millis(int i) {
+            return base.millis(index(i));
+        }
+
+        @Override
+        public double magnitudeOrLeft(int i) {
+            return base.magnitudeOrLeft(index(i));
+        }
+
+        @Override
+        public double curveOrRight(int i) {
+            return base.curveOrRight(index(i));
+        }
+
+        @Override
+        public DriveLine.ShiftMode shiftMode(int i) {
+            return base.shiftMode(index(i));
+        }
+
+        @Override
+        public DriveLine.DriveMode driveMode(int i) {
+            return base.driveMode(index(i));
+        }
+
+        @Override
+        public boolean squaredInputs(int i) {
+            return base.squaredInputs(index(i));
+        }
+    }
+
+    final class TimeScale extends View {
+        final double factor;
+
+        TimeScale(ScriptView base, double factor) {
+            super(base instanceof TimeScale ? ((TimeScale) base).base : base);
+            this.factor = factor * (base instanceof TimeScale ? ((TimeScale) base).factor : 1);
+        }
+
+        @Override
+        public long millis(int i) {
+            long first = base.millis(0);
+            return first + Math.round((base.millis(i) - first) * factor);
+        }
+    }
+
+    final class Mirror extends View {
+        Mirror(ScriptView base) {
+            super(base);
+        }
+
+        @Override
+        public ScriptView mirror() {
+            return base;
+        }
+
+        @Override
+        public double magnitudeOrLeft(int i) {
+            return base.driveMode(i) == DriveLine.DriveMode.TANK ? base.curveOrRight(i) : base.magnitudeOrLeft(i);
+        }
+
+        @Override
+        public double curveOrRight(int i) {
+            return base.driveMode(i) == DriveLine.DriveMode.TANK ? base.magnitudeOrLeft(i) : -base.curveOrRight(i);
+        }
+    }
+
+    final class Concat implements ScriptView {
+        final ScriptView[] pieces;
+        final int[] starts;         // index of each piece's first tick
+        final long[] offsets;       // added to each piece's times
+        final int size;
+
+        Concat(ScriptView[] pieces) {
+            this.pieces = pieces;
+            starts = new int[pieces.length];
+            offsets = new long[pieces.length];
+            int size = 0;
+            long end = 0;
+            for (int k = 0; k < pieces.length; k++) {
+                starts[k] = size;
+                long first = pieces[k].millis(0);
+                offsets[k] = (k == 0 ? first : end) - first;
+                end = pieces[k].millis(pieces[k].size() - 1) + offsets[k] + RobotScript.PERIOD_MILLIS;
+                size += pieces[k].size();
+            }
+            this.size = size;
+        }
+
+        /**
+         * The piece tick i is in
+         */
+        int piece(int i) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("Tick " + i + " of " + size);
+            }
+            int low = 0, high = pieces.length - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (starts[mid] <= i) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public long millis(int i) {
+            int k = piece(i);
+            return pieces[k].millis(i - starts[k]) + offsets[k];
+        }
+
+        @Override
+        public double magnitudeOrLeft(int i) {
+            int k = piece(i);
+            return pieces[k].magnitudeOrLeft(i - starts[k]);
+        }
+
+        @Override
+        public double curveOrRight(int i) {
+            int k = piece(i);
+            return pieces[k].curveOrRight(i - starts[k]);
+        }
+
+        @Override
+        public DriveLine.ShiftMode shiftMode(int i) {
+            int k = piece(i);
+            return pieces[k].shiftMode(i - starts[k]);
+        }
+
+        @Override
+        public DriveLine.DriveMode driveMode(int i) {
+            int k = piece(i);
+            return pieces[k].driveMode(i - starts[k]);
+        }
+
+        @Override
+        public boolean squaredInputs(int i) {
+            int k = piece(i);
+            return pieces[k].squaredInputs(i - starts[k]);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package team3543.robot;
+
+/**
+ * The time and tick count of the current robot loop.
+ *
+ * The robot calls tick() once at the start of each periodic.  That samples the
+ * clock once, and every time-based activity (delay, timeout, rateLimit, every)
+ * reads the sampled value, so they all agree on what time it is and none of
+ * them makes its own system call.
+ *
+ * It also owns the TimerWheel behind delay(), after() and at(), and advances it
+ * on each tick, so a pending delay costs nothing until it comes due, and the
+ * Arbiter that hands out subsystems to activities, whose claims last a tick.
+ *
+ * There is one current context, which activities look up when they loop.  Tests
+ * install one driven by a VirtualClock.
+ *
+ * @author mk
+ */
+public class TickContext {
+
+	static TickContext current = new TickContext(Clock.SYSTEM);
+
+	final Clock clock;
+	final TimerWheel timers;
+	final Arbiter arbiter = new Arbiter();
+	long now;			// milliseconds, as of the last tick()
+	long epoch;			// milliseconds, as of the last restart()
+	long ticks = 0;		// number of calls to tick()
+
+	public TickContext(Clock clock) {
+		this.clock = clock;
+		this.now = clock.millis();
+		this.epoch = now;
+		this.timers = new TimerWheel(now);
+	}
+
+	/**
+	 * The current context
+	 */
+	public static TickContext get() {
+		return current;
+	}
+
+	/**
+	 * Make a context the current one.
+	 *
+	 * @return the context, so you can keep a reference to it
+	 */
+	public static TickContext install(TickContext context) {
+		current = context;
+		return context;
+	}
+
+	/**
+	 * Start a new tick: sample the clock and count it.  Call once per robot loop.
+	 */
+	public void tick() {
+		now = clock.millis();
+		ticks++;
+		arbiter.nextTick(ticks);
+		timers.advance(now);
+	}
+
+	/**
+	 * Sample the clock and make this the zero time for at().  Call it at the
+	 * start of each mode, e.g. from autonomousInit().
+	 */
+	public void restart() {
+		now = clock.millis();
+		timers.advance(now);
+		epoch = now;
+	}
+
+	/**
+	 * Milliseconds from the last restart() to the start of this tick
+	 */
+	public long elapsed() {
+		return now - epoch;
+	}
+
+	/**
+	 * Clock time, in milliseconds, as of the start of this tick
+	 */
+	public long now() {
+		return now;
+	}
+
+	/**
+	 * Number of ticks so far
+	 */
+	public long ticks() {
+		return ticks;
+	}
+
+	public Clock getClock() {
+		return clock;
+	}
+
+	public TimerWheel getTimers() {
+		return timers;
+	}
+
+	public Arbiter getArbiter() {
+		return arbiter;
+	}
+}
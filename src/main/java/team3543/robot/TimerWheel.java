@@ -0,0 +1,198 @@
+package team3543.robot;
+
+/**
+ * A hierarchical timing wheel, with millisecond resolution.
+ *
+ * Timers are kept in linked lists in slots of four wheels of 64 slots each.
+ * The first wheel has a slot per millisecond, the next a slot per 64 ms, then
+ * per 4 s, then per 4.4 minutes.  Scheduling or cancelling a timer is O(1),
+ * and so is advancing by a millisecond: only the slot that comes due is looked
+ * at, and timers in the coarser wheels are moved down ("cascaded") into a
+ * finer one as their time gets near.  A pending timer costs nothing per tick.
+ *
+ * Timers are allocated by their owners (one per delay activity, say) and can be
+ * re-scheduled, so scheduling never allocates.
+ *
+ * The TickContext owns a wheel and advances it once per tick.
+ *
+ * @author mk
+ */
+public class TimerWheel {
+
+	static final int BITS = 6;
+	static final int SLOTS = 1 << BITS;
+	static final int MASK = SLOTS - 1;
+	static final int LEVELS = 4;
+	/** Timers further out than this go in the last slot of the last wheel, and are re-placed as it turns */
+	static final long SPAN = 1L << (BITS * LEVELS);
+
+	final Timer[] slots = new Timer[LEVELS * SLOTS];
+	final int[] levelCount = new int[LEVELS];
+	long current;		// the last millisecond processed
+	int count = 0;		// number of pending timers
+
+	public TimerWheel(long now) {
+		this.current = now;
+	}
+
+	/**
+	 * A timer: something that becomes fired once the wheel reaches its deadline.
+	 *
+	 * Override expired() to be told when that happens.
+	 */
+	public static class Timer {
+		long deadline;
+		boolean fired = false;
+		boolean pending = false;
+		int slot;
+		Timer next, prev;
+
+		/**
+		 * True once the deadline has passed
+		 */
+		public boolean fired() {
+			return fired;
+		}
+
+		public boolean pending() {
+			return pending;
+		}
+
+		public long deadline() {
+			return deadline;
+		}
+
+		/**
+		 * Called (from advance() or schedule()) when the timer fires
+		 */
+		protected void expired() {
+		}
+	}
+
+	/**
+	 * Schedule (or re-schedule) a timer to fire at the given time.
+	 *
+	 * If the deadline has already passed, it fires right away.
+	 */
+	public void schedule(Timer timer, long deadline) {
+		cancel(timer);
+		timer.deadline = deadline;
+		timer.fired = false;
+		if (deadline <= current) {
+			timer.fired = true;
+			timer.expired();
+			return;
+		}
+		place(timer);
+	}
+
+	/**
+	 * Stop a timer from firing (if it hasn't already).
+	 */
+	public void cancel(Timer timer) {
+		if (!timer.pending) {
+			return;
+		}
+		if (timer.prev == null) {
+			slots[timer.slot] = timer.next;
+		} else {
+			timer.prev.next = timer.next;
+		}
+		if (timer.next != null) {
+			timer.next.prev = timer.prev;
+		}
+		timer.next = timer.prev = null;
+		timer.pending = false;
+		levelCount[timer.slot >> BITS]--;
+		count--;
+	}
+
+	/**
+	 * Number of timers that haven't fired
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Put a timer in the slot for its deadline; one that is due now goes in the current slot.
+	 */
+	void place(Timer timer) {
+		long deadline = Math.max(timer.deadline, current);
+		long delta = deadline - current;
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+			level++;
+		}
+		if (delta >= SPAN) {
+			// too far out; park it as far as the last wheel goes, it will be re-placed from there
+			deadline = current + SPAN - 1;
+		}
+		int slot = (level << BITS) | (int) ((deadline >> (BITS * level)) & MASK);
+		Timer head = slots[slot];
+		timer.next = head;
+		timer.prev = null;
+		if (head != null) {
+			head.prev = timer;
+		}
+		slots[slot] = timer;
+		timer.slot = slot;
+		timer.pending = true;
+		levelCount[level]++;
+		count++;
+	}
+
+	/**
+	 * Advance the wheel to the given time, firing everything that has come due.
+	 */
+	public void advance(long now) {
+		while (current < now) {
+			if (count == 0) {
+				current = now;
+				return;
+			}
+			if (levelCount[0] == 0) {
+				// nothing can fire before the next cascade, so skip ahead to it
+				long next = (current | MASK) + 1;
+				if (next > now) {
+					current = now;
+					return;
+				}
+				current = next - 1;
+			}
+			current++;
+			// cascade from the coarsest wheel that turned over down to the finest
+			if ((current & MASK) == 0) {
+				int level = 1;
+				while (level < LEVELS - 1 && (current & ((1L << (BITS * (level + 1))) - 1)) == 0) {
+					level++;
+				}
+				for (; level >= 1; level--) {
+					cascade((level << BITS) | (int) ((current >> (BITS * level)) & MASK));
+				}
+			}
+			expire((int) (current & MASK));
+		}
+	}
+
+	void cascade(int slot) {
+		Timer timer = slots[slot];
+		while (timer != null) {
+			Timer next = timer.next;
+			cancel(timer);
+			place(timer);
+			timer = next;
+		}
+	}
+
+	void expire(int slot) {
+		Timer timer = slots[slot];
+		while (timer != null) {
+			Timer next = timer.next;
+			cancel(timer);
+			timer.fired = true;
+			timer.expired();
+			timer = next;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package team3543.robot;
+
+/**
+ * A clock that only moves when you tell it to.
+ *
+ * Use it in tests and simulations to run minutes of robot time in milliseconds:
+ * <code>
+ * VirtualClock clock = new VirtualClock();
+ * TickContext ticks = TickContext.install(new TickContext(clock));
+ * for (int i = 0; i < 3000; i++) {
+ * 		clock.advance(20);
+ * 		ticks.tick();
+ * 		activity.loop();
+ * }
+ * </code>
+ *
+ * @author mk
+ */
+public class VirtualClock implements Clock {
+	long now = 0;
+
+	public VirtualClock() { }
+
+	public VirtualClock(long startMillis) {
+		this.now = startMillis;
+	}
+
+	@Override
+	public long millis() {
+		return now;
+	}
+
+	/**
+	 * Move the clock forward
+	 *
+	 * @param millis
+	 * @return the new time
+	 */
+	public long advance(long millis) {
+		now += millis;
+		return now;
+	}
+
+	/**
+	 * Set the clock to some time
+	 */
+	public void set(long millis) {
+		now = millis;
+	}
+}
@@ -0,0 +1,98 @@
+package team3543.client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import team3543.robot.Robot;
+import team3543.robot.RobotScript;
+
+class ScriptArchiveTest {
+
+	Path directory;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		directory = Files.createTempDirectory("archive");
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+
+	static byte[] script(int ticks) {
+		RobotScript script = new RobotScript();
+		Robot.State state = new Robot.State();
+		for (int i = 0; i < ticks; i++) {
+			state.driveLineState.magnitudeOrLeft = i / (double) ticks;
+			script.append(state);
+		}
+		return script.toBinary();
+	}
+
+	@Test
+	void testKeepsEachRecordingOnce() throws IOException {
+		ScriptArchive archive = new ScriptArchive(directory);
+		Instant now = Instant.parse("2019-02-16T14:35:02Z");
+		ScriptArchive.Entry first = archive.archive(script(100), now);
+		assertNotNull(first);
+		assertTrue(first.name.endsWith("-" + first.hash.substring(0, 12) + ".rscr"), first.name);
+		assertEquals(100, first.ticks);
+		assertEquals(2000, first.durationMillis);
+		assertArrayEquals(script(100), Files.readAllBytes(archive.path(first)));
+
+		assertNull(archive.archive(script(100), now.plusSeconds(60)));
+		assertNotNull(archive.archive(script(200), now.plusSeconds(60)));
+		assertEquals(2, archive.entries().size());
+
+		List<String> index = Files.readAllLines(directory.resolve(ScriptArchive.INDEX), StandardCharsets.UTF_8);
+		assertEquals(2, index.size());
+		assertTrue(index.get(0).startsWith(first.name + "\t2019-02-16T14:35:02Z\t100\t2000\t"), index.get(0));
+
+		// no temporary files left behind
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, ".incoming-*")) {
+			assertFalse(files.iterator().hasNext());
+		}
+	}
+
+	@Test
+	void testReopensFromTheIndex() throws IOException {
+		ScriptArchive archive = new ScriptArchive(directory);
+		ScriptArchive.Entry kept = archive.archive(script(50), Instant.now());
+		ScriptArchive.Entry deleted = archive.archive(script(60), Instant.now());
+		Files.delete(archive.path(deleted));
+		Files.write(directory.resolve(ScriptArchive.INDEX), "not a line\n".getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.APPEND);
+
+		ScriptArchive reopened = new ScriptArchive(directory);
+		assertEquals(1, reopened.entries().size());
+		assertEquals(kept.hash, reopened.entries().get(0).hash);
+		assertNull(reopened.archive(script(50), Instant.now()));
+		// one that was lost can be kept again
+		assertNotNull(reopened.archive(script(60), Instant.now()));
+	}
+
+	@Test
+	void testRefusesWhatIsNotAScript() throws IOException {
+		ScriptArchive archive = new ScriptArchive(directory);
+		assertThrows(IllegalArgumentException.class, () -> archive.archive(new byte[] { 1, 2, 3 }, Instant.now()));
+		assertTrue(archive.entries().isEmpty());
+	}
+}
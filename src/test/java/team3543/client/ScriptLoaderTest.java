@@ -0,0 +1,97 @@
+package team3543.client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import team3543.robot.Robot;
+import team3543.robot.RobotScript;
+
+class ScriptLoaderTest {
+
+	Path file;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		file = Files.createTempFile("script", ".tmp");
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	static RobotScript script(int ticks) {
+		RobotScript script = new RobotScript();
+		Robot.State state = new Robot.State();
+		for (int i = 0; i < ticks; i++) {
+			state.driveLineState.magnitudeOrLeft = Math.round(100 * Math.sin(i / 50.0)) / 100.0;
+			script.append(state);
+		}
+		return script;
+	}
+
+	static void assertSameTicks(RobotScript expected, RobotScript actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.millis(i), actual.millis(i));
+			assertEquals(expected.magnitudeOrLeft(i), actual.magnitudeOrLeft(i), 1e-9);
+		}
+	}
+
+	static byte[] bytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	@Test
+	void testBinaryIsSentAsItIs() throws IOException {
+		byte[] binary = script(750).toBinary();
+		Files.write(file, binary);
+		assertArrayEquals(binary, bytes(ScriptLoader.load(file)));
+		assertArrayEquals(binary, bytes(ScriptLoader.load(new ByteArrayInputStream(binary))));
+	}
+
+	@Test
+	void testJSONIsConverted() throws IOException {
+		RobotScript script = script(750);
+		Files.write(file, script.toJSON().getBytes(StandardCharsets.UTF_8));
+		assertSameTicks(script, RobotScript.fromBinary(bytes(ScriptLoader.load(file))));
+		assertSameTicks(script, RobotScript.fromBinary(bytes(ScriptLoader.load(
+				new ByteArrayInputStream(script.toJSON().getBytes(StandardCharsets.UTF_8))))));
+	}
+
+	@Test
+	void testBigFilesAreMapped() throws IOException {
+		RobotScript script = script(20000);
+		Files.write(file, script.toJSON().getBytes(StandardCharsets.UTF_8));
+		assertTrue(Files.size(file) >= ScriptLoader.MAP_THRESHOLD);
+		assertTrue(ScriptLoader.read(file) instanceof MappedByteBuffer);
+		assertEquals(script.size(), RobotScript.fromBinary(bytes(ScriptLoader.load(file))).size());
+	}
+
+	@Test
+	void testBadScriptsAreRefused() throws IOException {
+		byte[] binary = script(750).toBinary();
+		binary[binary.length / 2] ^= 0x10;
+		Files.write(file, binary);
+		assertThrows(IOException.class, () -> ScriptLoader.load(file));
+		assertThrows(IOException.class, () -> ScriptLoader.load(new ByteArrayInputStream(binary)));
+
+		Files.write(file, "[{\"driveLineState\": ".getBytes(StandardCharsets.UTF_8));
+		assertThrows(IOException.class, () -> ScriptLoader.load(file));
+		Files.write(file, new byte[0]);
+		assertThrows(IOException.class, () -> ScriptLoader.load(file));
+	}
+}
@@ -0,0 +1,133 @@
+package team3543.robot;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static team3543.robot.Activity.*;
+
+/**
+ * Checks that a steady-state tick of the Activity combinators allocates nothing,
+ * using the per-thread allocated-bytes counter of the HotSpot ThreadMXBean.
+ */
+class ActivityAllocationTest {
+
+	static final int WARMUP_TICKS = 20000;
+	static final int MEASURED_TICKS = 1000;
+	static final int DEPTH = 8;
+
+	final com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	@BeforeEach
+	void setup() {
+		MockActivity.idCtr = 0;
+		threads.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	/**
+	 * Loops the activity until the JIT has settled, then returns the bytes allocated per tick.
+	 */
+	long bytesPerTick(Activity activity) {
+		for (int i = 0; i < WARMUP_TICKS; i++) {
+			activity.loop();
+		}
+		long id = Thread.currentThread().getId();
+		// account for anything the counter itself costs
+		long before = threads.getThreadAllocatedBytes(id);
+		long overhead = threads.getThreadAllocatedBytes(id) - before;
+		before = threads.getThreadAllocatedBytes(id);
+		for (int i = 0; i < MEASURED_TICKS; i++) {
+			activity.loop();
+		}
+		long allocated = threads.getThreadAllocatedBytes(id) - before - overhead;
+		return allocated / MEASURED_TICKS;
+	}
+
+	/**
+	 * Builds a tree DEPTH levels deep where every level mixes each/queue/all/stack and
+	 * the leaves never complete.
+	 */
+	Activity deepTree(int depth) {
+		if (depth == 0) {
+			return new MockActivity();
+		}
+		Activity.Stack stack = stack(new MockActivity(), deepTree(depth - 1));
+		return each(
+				queue(new MockActivity(), deepTree(depth - 1)),
+				all(new MockActivity(), stack),
+				any(new MockActivity(), new MockActivity()),
+				when(new MockActivity(), new MockActivity(), new MockActivity()),
+				unless(new MockActivity(), new MockActivity())
+		);
+	}
+
+	@Test
+	void testSteadyStateTreeAllocatesNothing() {
+		assertEquals(0, bytesPerTick(deepTree(DEPTH)));
+	}
+
+	@Test
+	void testInstrumentedTreeAllocatesNothing() {
+		Activity.Sequence tree = each(deepTree(DEPTH), deepTree(DEPTH)).instrument("tree");
+		assertEquals(0, bytesPerTick(instrumented("root", tree)));
+		assertEquals(0, bytesPerTick(compile(tree)));
+	}
+
+	@Test
+	void testQueueRemovalAllocatesNothing() {
+		// an activity at the head of the queue that completes every tick and re-queues
+		// itself at the tail, so every tick removes from the front and compacts
+		Activity.Sequence queue = queue();
+		Activity requeue = new Activity() {
+			@Override
+			public boolean loop() {
+				queue.push(this);
+				return true;
+			}
+		};
+		queue.push(requeue);
+		for (int i = 0; i < 15; i++) {
+			queue.push(new MockActivity());
+		}
+		assertEquals(0, bytesPerTick(queue));
+		assertEquals(16, queue.size());
+	}
+
+	@Test
+	void testInstrumentedRequeueAllocatesNothing() {
+		Activity.Sequence queue = queue().instrument("requeue");
+		Activity requeue = new Activity() {
+			@Override
+			public boolean loop() {
+				queue.push(this);
+				return true;
+			}
+		};
+		queue.push(requeue);
+		queue.push(new MockActivity());
+		assertEquals(0, bytesPerTick(queue));
+		assertEquals(2, queue.size());
+	}
+
+	@Test
+	void testStackPopAllocatesNothing() {
+		Activity.Stack stack = stack();
+		MockActivity bottom = new MockActivity();
+		MockActivity top = new MockActivity();
+		stack.push(bottom);
+		Activity pushAndComplete = new Activity() {
+			@Override
+			public boolean loop() {
+				top.completed = true;
+				stack.push(top);
+				return false;
+			}
+		};
+		assertEquals(0, bytesPerTick(each(pushAndComplete, stack)));
+		assertEquals(1, stack.size());
+		assertSame(bottom, stack.peek());
+	}
+}
@@ -0,0 +1,126 @@
+package team3543.robot;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import team3543.robot.ActivityScheduler.Priority;
+
+class ActivitySchedulerTest {
+
+	long nanos = 0;
+
+	@BeforeEach
+	void setup() {
+		MockActivity.idCtr = 0;
+	}
+
+	/**
+	 * A mock that takes the given time (on the fake clock) every loop
+	 */
+	MockActivity costs(long took) {
+		return new MockActivity() {
+			@Override
+			public boolean loop() {
+				nanos += took;
+				return super.loop();
+			}
+		};
+	}
+
+	ActivityScheduler scheduler(long budget) {
+		ActivityScheduler scheduler = new ActivityScheduler("Test", budget);
+		scheduler.nanoTime = () -> nanos;
+		return scheduler;
+	}
+
+	@Test
+	void testRunsByPriority() {
+		StringBuilder order = new StringBuilder();
+		ActivityScheduler scheduler = scheduler(1000)
+				.schedule("low", Priority.LOW, 0, () -> { order.append("L"); return false; })
+				.schedule("critical", Priority.CRITICAL, 0, () -> { order.append("C"); return false; })
+				.schedule("normal", Priority.NORMAL, 0, () -> { order.append("N"); return false; })
+				.schedule("critical2", Priority.CRITICAL, 0, () -> { order.append("c"); return false; });
+		scheduler.loop();
+		assertEquals("CcNL", order.toString());
+	}
+
+	@Test
+	void testDefersWhenOverBudget() {
+		MockActivity drive = costs(800);
+		MockActivity record = costs(100);
+		MockActivity telemetry = costs(300);
+		ActivityScheduler scheduler = scheduler(1000).ageAfter(1000)
+				.schedule("drive", Priority.CRITICAL, 800, drive)
+				.schedule("record", Priority.HIGH, 100, record)
+				.schedule("telemetry", Priority.LOW, 300, telemetry);
+		for (int i = 0; i < 10; i++) {
+			scheduler.loop();
+		}
+		// drive always runs, record fits, telemetry never does
+		assertEquals(10, drive.timesLooped);
+		assertEquals(10, record.timesLooped);
+		assertEquals(0, telemetry.timesLooped);
+		assertEquals(10, scheduler.entry("telemetry").deferrals());
+		assertEquals(10, scheduler.deferrals());
+		assertEquals(10, scheduler.ticksWithDeferrals());
+		assertEquals(0, scheduler.overBudget());
+	}
+
+	@Test
+	void testCriticalAlwaysRuns() {
+		MockActivity slow = costs(5000);
+		ActivityScheduler scheduler = scheduler(1000).schedule("slow", Priority.CRITICAL, 5000, slow);
+		scheduler.loop();
+		assertEquals(1, slow.timesLooped);
+		assertEquals(1, scheduler.overBudget());
+	}
+
+	@Test
+	void testAgingAndExpectedCost() {
+		MockActivity drive = costs(900);
+		MockActivity telemetry = costs(400);
+		// telemetry was guessed cheap, but isn't
+		ActivityScheduler scheduler = scheduler(1000).ageAfter(3)
+				.schedule("drive", Priority.CRITICAL, 900, drive)
+				.schedule("telemetry", Priority.LOW, 50, telemetry);
+		scheduler.loop();
+		assertEquals(1, telemetry.timesLooped);
+		assertTrue(scheduler.entry("telemetry").expectedNanos() > 50);
+		// once it has learned the cost, it is deferred, but runs every 4th tick
+		for (int i = 0; i < 40; i++) {
+			scheduler.loop();
+		}
+		assertEquals(41, drive.timesLooped);
+		assertTrue(telemetry.timesLooped >= 10 && telemetry.timesLooped <= 14, "ran " + telemetry.timesLooped);
+	}
+
+	@Test
+	void testCompletedAreRemoved() {
+		MockActivity once = new MockActivity().completeAfter(1);
+		MockActivity forever = new MockActivity();
+		ActivityScheduler scheduler = scheduler(1000)
+				.schedule("once", Priority.NORMAL, 0, once)
+				.schedule("forever", Priority.NORMAL, 0, forever);
+		assertFalse(scheduler.loop());
+		assertFalse(scheduler.loop());
+		assertEquals(1, once.timesLooped);
+		assertEquals(2, forever.timesLooped);
+		assertNull(scheduler.entry("once"));
+	}
+
+	@Test
+	void testSchedulersKeepTheirOwnHistograms() {
+		ActivityScheduler autonomous = new ActivityScheduler("Autonomous", 1000);
+		ActivityScheduler teleop = new ActivityScheduler("Teleop", 1000);
+		autonomous.schedule("Actuate", Priority.CRITICAL, 10, new MockActivity());
+		teleop.schedule("Actuate", Priority.CRITICAL, 10, new MockActivity());
+		autonomous.loop();
+		teleop.loop();
+		teleop.loop();
+		assertEquals(1, ActivityStats.histogram("Autonomous/Actuate").calls);
+		assertEquals(2, ActivityStats.histogram("Teleop/Actuate").calls);
+	}
+}
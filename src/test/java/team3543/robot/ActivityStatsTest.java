@@ -0,0 +1,118 @@
+package team3543.robot;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.ref.WeakReference;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static team3543.robot.Activity.*;
+
+class ActivityStatsTest {
+
+	@BeforeEach
+	void setup() {
+		MockActivity.idCtr = 0;
+		ActivityStats.HISTOGRAMS.clear();
+	}
+
+	@Test
+	void testPercentiles() {
+		ActivityStats.Histogram histogram = ActivityStats.histogram("test", 1000);
+		for (long nanos = 1; nanos <= 1000; nanos++) {
+			histogram.record(nanos);
+		}
+		histogram.record(5000);
+		assertEquals(1001, histogram.calls);
+		assertEquals(1, histogram.overruns);
+		assertEquals(5000, histogram.maxNanos);
+		// buckets are a quarter of a power of two wide
+		assertEquals(500, histogram.percentile(0.5), 500 / 4);
+		assertEquals(990, histogram.percentile(0.99), 990 / 4);
+		assertEquals(5000, histogram.percentile(1.0));
+	}
+
+	@Test
+	void testBuckets() {
+		// every value must land in a bucket whose bounds contain it
+		for (long nanos = 0; nanos < 100000; nanos += 7) {
+			int bucket = ActivityStats.Histogram.bucket(nanos);
+			assertTrue(nanos <= ActivityStats.Histogram.upperBound(bucket));
+			assertTrue(bucket == 0 || nanos > ActivityStats.Histogram.upperBound(bucket - 1));
+		}
+		assertTrue(ActivityStats.Histogram.bucket(Long.MAX_VALUE) < ActivityStats.Histogram.BUCKETS);
+	}
+
+	@Test
+	void testInstrumented() {
+		MockActivity mock = new MockActivity().completeAfter(3);
+		Activity a = instrumented("mock", mock);
+		assertFalse(a.loop());
+		assertFalse(a.loop());
+		assertTrue(a.loop());
+		ActivityStats.Snapshot snapshot = ActivityStats.histogram("mock").snapshot();
+		assertEquals(3, snapshot.calls);
+		assertEquals(1, snapshot.completions);
+		assertTrue(snapshot.maxNanos >= snapshot.p50Nanos);
+	}
+
+	@Test
+	void testInstrumentSequenceAndStack() {
+		MockActivity mock1 = new MockActivity();
+		MockActivity mock2 = new MockActivity();
+		MockActivity mock3 = new MockActivity();
+		Activity.Sequence seq = each(mock1).instrument("auto");
+		seq.push(mock2);
+		Activity.Stack stack = stack(mock3).instrument("macro");
+		seq.loop();
+		stack.loop();
+		assertEquals(1, ActivityStats.histogram("auto[0]").calls);
+		assertEquals(1, ActivityStats.histogram("auto[1]").calls);
+		assertEquals(1, ActivityStats.histogram("macro[0]").calls);
+		assertEquals(3, ActivityStats.snapshot().size());
+
+		// names stay with the activity, not the position
+		MockActivity mock4 = new MockActivity();
+		seq.remove(mock1);
+		seq.push(mock4);
+		seq.push(mock1);
+		seq.loop();
+		assertEquals(2, ActivityStats.histogram("auto[0]").calls);
+		assertEquals(2, ActivityStats.histogram("auto[1]").calls);
+		assertEquals(1, ActivityStats.histogram("auto[2]").calls);
+	}
+
+	@Test
+	void testFinishedActivitiesAreLetGo() throws Exception {
+		Activity.Sequence seq = queue().instrument("auto");
+		WeakReference<MockActivity> first = null;
+		for (int i = 0; i < 100; i++) {
+			MockActivity mock = new MockActivity().completeAfter(1);
+			if (first == null) {
+				first = new WeakReference<>(mock);
+			}
+			seq.push(mock);
+			seq.loop();
+		}
+		assertEquals(0, seq.size());
+		assertTrue(seq.instruments.wrapped.isEmpty());
+		// a histogram each for the first few, and one for the rest
+		assertEquals(Instruments.MAX_NAMES + 1, ActivityStats.snapshot().size());
+		assertEquals(100 - Instruments.MAX_NAMES, ActivityStats.histogram("auto[+]").calls);
+		for (int i = 0; i < 50 && first.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(first.get());
+	}
+
+	@Test
+	void testCompiledInstrumented() {
+		MockActivity mock = new MockActivity().completeAfter(2);
+		Activity program = compile(each(instrumented("compiled", mock), new MockActivity()));
+		program.loop();
+		program.loop();
+		assertEquals(2, ActivityStats.histogram("compiled").calls);
+		assertEquals(1, ActivityStats.histogram("compiled").completions);
+	}
+}
@@ -2,12 +2,20 @@ package team3543.robot;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import static team3543.robot.Activity.*;
 
 class ActivityTest {
 
+	final TickContext previousContext = TickContext.get();
+
+	@AfterEach
+	void restoreTickContext() {
+		TickContext.install(previousContext);
+	}
+
 	@BeforeEach
 	void setup() {
 		MockActivity.idCtr = 0;
@@ -47,6 +55,31 @@ class ActivityTest {
 		assertTrue(done);
 	}
 
+	@Test
+	void testQueueRemovesInOrder() {
+		MockActivity mock1 = new MockActivity();
+		MockActivity mock2 = new MockActivity().complete();
+		MockActivity mock3 = new MockActivity();
+		MockActivity mock4 = new MockActivity();
+
+		// stop on the first completed activity, so mock3 and mock4 are not visited
+		Activity.Sequence seq = queue(mock1, mock2, mock3, mock4).stopOnFirstTrue(true);
+		assertFalse(seq.loop());
+		assertEquals(3, seq.size());
+		assertEquals(0, mock3.timesLooped);
+		// the rest of the queue should still run, in the original order
+		seq.stopOnFirstTrue(false).stopOnFirstFalse(true);
+		assertFalse(seq.loop());
+		assertEquals(2, mock1.timesLooped);
+		assertEquals(1, mock2.timesLooped);
+		assertEquals(0, mock3.timesLooped);
+		mock1.complete();
+		assertFalse(seq.loop());
+		assertEquals(2, seq.size());
+		assertEquals(1, mock3.timesLooped);
+		assertEquals(0, mock4.timesLooped);
+	}
+
 	@Test
 	void testEach() {
 
@@ -293,15 +326,212 @@ class ActivityTest {
 		assertFalse(seq.loop());
 	}
 
-//	@Test
-	void testDelay() throws InterruptedException {
+	@Test
+	void testDelay() {
+		VirtualClock clock = new VirtualClock();
+		TickContext ticks = TickContext.install(new TickContext(clock));
 		MockActivity mock1 = new MockActivity();
 		mock1.complete();
 		Activity delayed = delay(1000, mock1);
+		// the delay starts when it is first looped, not when it is built
+		clock.advance(5000);
+		ticks.tick();
 		assertFalse(delayed.loop());
 		assertEquals(0, mock1.timesLooped);
-		Thread.sleep(1001);
+		clock.advance(999);
+		ticks.tick();
+		assertFalse(delayed.loop());
+		assertEquals(0, mock1.timesLooped);
+		clock.advance(1);
+		// the clock is only read at the start of a tick
+		assertFalse(delayed.loop());
+		ticks.tick();
 		assertTrue(delayed.loop());
 		assertEquals(1, mock1.timesLooped);
 	}
+
+	@Test
+	void testDelayCancelsOnItsOwnWheel() {
+		VirtualClock clock = new VirtualClock();
+		TickContext ticks = TickContext.install(new TickContext(clock));
+		MockActivity mock1 = new MockActivity();
+		Activity delayed = delay(1000, mock1);
+		assertFalse(delayed.loop());
+		assertEquals(1, ticks.timers.size());
+		// cancelled from somewhere with another context installed
+		TickContext other = TickContext.install(new TickContext(new VirtualClock()));
+		MockActivity elsewhere = new MockActivity();
+		Activity otherDelay = delay(1000, elsewhere);
+		otherDelay.loop();
+		delayed.cancel();
+		assertEquals(0, ticks.timers.size());
+		assertEquals(1, other.timers.size());
+		// and once it has fired, cancelling does nothing
+		TickContext.install(ticks);
+		MockActivity mock2 = new MockActivity();
+		mock2.complete();
+		Activity fired = delay(100, mock2);
+		assertFalse(fired.loop());
+		clock.advance(100);
+		ticks.tick();
+		assertTrue(fired.loop());
+		fired.cancel();
+		assertTrue(fired.loop());
+		assertEquals(1, other.timers.size());
+	}
+
+	@Test
+	void testRateLimitAndEveryPassOnCancel() {
+		TickContext.install(new TickContext(new VirtualClock()));
+		MockActivity limited = new MockActivity();
+		MockActivity periodic = new MockActivity();
+		Activity a = rateLimit(100, limited);
+		Activity b = every(50, periodic);
+		a.loop();
+		b.loop();
+		a.cancel();
+		b.cancel();
+		assertEquals(1, limited.timesCancelled);
+		assertEquals(1, periodic.timesCancelled);
+	}
+
+	@Test
+	void testTimeout() {
+		VirtualClock clock = new VirtualClock();
+		TickContext ticks = TickContext.install(new TickContext(clock));
+		MockActivity mock1 = new MockActivity();
+		MockActivity fallback = new MockActivity();
+		Activity a = timeout(100, mock1, fallback);
+		assertFalse(a.loop());
+		clock.advance(60);
+		ticks.tick();
+		assertFalse(a.loop());
+		assertEquals(2, mock1.timesLooped);
+		// time's up, run the fallback instead
+		clock.advance(40);
+		ticks.tick();
+		assertFalse(a.loop());
+		assertEquals(2, mock1.timesLooped);
+		assertEquals(1, fallback.timesLooped);
+		// and without a fallback, a timeout is just done
+		mock1 = new MockActivity();
+		a = timeout(100, mock1);
+		assertFalse(a.loop());
+		clock.advance(100);
+		ticks.tick();
+		assertTrue(a.loop());
+		assertEquals(1, mock1.timesLooped);
+		// completing in time is done too
+		mock1 = new MockActivity().completeAfter(2);
+		a = timeout(100, mock1);
+		assertFalse(a.loop());
+		assertTrue(a.loop());
+		assertTrue(a.loop());
+		assertEquals(2, mock1.timesLooped);
+	}
+
+	@Test
+	void testTimeoutBeforeTimeZero() {
+		// System.nanoTime(), and so Clock.SYSTEM, can be negative
+		VirtualClock clock = new VirtualClock(-1000);
+		TickContext ticks = TickContext.install(new TickContext(clock));
+		MockActivity mock1 = new MockActivity();
+		Activity a = timeout(100, mock1);
+		assertFalse(a.loop());
+		clock.advance(100);
+		ticks.tick();
+		assertTrue(a.loop());
+		assertEquals(1, mock1.timesLooped);
+	}
+
+	@Test
+	void testAtAndAfter() {
+		VirtualClock clock = new VirtualClock(100000);
+		TickContext ticks = TickContext.install(new TickContext(clock));
+		MockActivity atMock = new MockActivity();
+		MockActivity afterMock = new MockActivity();
+		Activity at = at(1000, atMock);
+		Activity after = after(1000, afterMock);
+		// at() counts from the restart, after() from when it is first looped
+		ticks.restart();
+		clock.advance(500);
+		ticks.tick();
+		assertFalse(at.loop());
+		assertFalse(after.loop());
+		clock.advance(500);
+		ticks.tick();
+		assertTrue(at.loop());
+		assertFalse(after.loop());
+		clock.advance(500);
+		ticks.tick();
+		assertTrue(at.loop());
+		assertTrue(after.loop());
+		assertTrue(after.loop());
+		// each runs its activity exactly once
+		assertEquals(1, atMock.timesLooped);
+		assertEquals(1, afterMock.timesLooped);
+	}
+
+	@Test
+	void testTimeline() {
+		VirtualClock clock = new VirtualClock();
+		TickContext ticks = TickContext.install(new TickContext(clock));
+		MockActivity now = new MockActivity().completeAfter(2);
+		MockActivity first = new MockActivity();
+		MockActivity second = new MockActivity().completeAfter(3);
+		Activity.Timeline timeline = timeline(now, at(100, first), delay(200, second));
+		ticks.restart();
+		int loops = 0;
+		while (!timeline.loop()) {
+			// nothing waiting is looped until its time comes
+			if (ticks.elapsed() < 100) assertEquals(0, first.timesLooped);
+			if (ticks.elapsed() < 200) assertEquals(0, second.timesLooped);
+			clock.advance(20);
+			ticks.tick();
+			assertTrue(++loops < 100);
+		}
+		assertEquals(0, timeline.pending());
+		assertEquals(2, now.timesLooped);
+		assertEquals(1, first.timesLooped);
+		assertEquals(3, second.timesLooped);
+	}
+
+	@Test
+	void testRateLimitAndEvery() {
+		VirtualClock clock = new VirtualClock();
+		TickContext ticks = TickContext.install(new TickContext(clock));
+		MockActivity limited = new MockActivity();
+		MockActivity everyThird = new MockActivity();
+		Activity a = all(rateLimit(100, limited), every(3, everyThird));
+		for (int i = 0; i < 30; i++) {
+			clock.advance(20);
+			ticks.tick();
+			a.loop();
+		}
+		// 30 ticks of 20 ms is 600 ms: once at the start, then every 100 ms
+		assertEquals(6, limited.timesLooped);
+		assertEquals(10, everyThird.timesLooped);
+	}
+
+	@Test
+	void testSimulatedMatch() {
+		// nearly an hour of 20 ms ticks, which should take milliseconds to run
+		VirtualClock clock = new VirtualClock();
+		TickContext ticks = TickContext.install(new TickContext(clock));
+		MockActivity first = new MockActivity().complete();
+		MockActivity second = new MockActivity().complete();
+		MockActivity third = new MockActivity();
+		Activity plan = untilFirstFalse(
+				delay(15000, first),
+				delay(3000 * 1000, second),
+				timeout(60000, third));
+		int tick = 0;
+		while (!plan.loop()) {
+			clock.advance(20);
+			ticks.tick();
+			tick++;
+		}
+		assertEquals((15000 + 3000 * 1000 + 60000) / 20, tick);
+		assertTrue(third.timesLooped > 0);
+	}
 }
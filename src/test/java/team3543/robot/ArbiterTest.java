@@ -0,0 +1,130 @@
+package team3543.robot;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static team3543.robot.Activity.*;
+
+class ArbiterTest {
+
+	final TickContext previousContext = TickContext.get();
+
+	@AfterEach
+	void restoreTickContext() {
+		TickContext.install(previousContext);
+	}
+
+	static class FakeSubsystem implements Actuated {
+		@Override
+		public void actuate() {
+		}
+	}
+
+	final Actuated driveLine = new FakeSubsystem();
+	final Actuated claw = new FakeSubsystem();
+	TickContext ticks;
+
+	@BeforeEach
+	void setup() {
+		MockActivity.idCtr = 0;
+		ticks = TickContext.install(new TickContext(new VirtualClock()));
+	}
+
+	@Test
+	void testFirstClaimantWins() {
+		MockActivity auto = new MockActivity().completeAfter(3);
+		MockActivity manual = new MockActivity();
+		MockActivity clawMock = new MockActivity();
+		Arbiter.Requires manualDrive = requires(manual, driveLine);
+		Activity.Sequence seq = queue(requires(auto, driveLine), manualDrive, requires(clawMock, claw));
+		for (int i = 0; i < 5; i++) {
+			ticks.tick();
+			seq.loop();
+		}
+		// manual driving waits for the autonomous drive, then resumes
+		assertEquals(3, auto.timesLooped);
+		assertEquals(2, manual.timesLooped);
+		// the claw is independent
+		assertEquals(5, clawMock.timesLooped);
+		assertEquals(3, ticks.getArbiter().conflicts());
+		assertEquals(0, manualDrive.interruptions());
+	}
+
+	@Test
+	void testStackInterruptsAndResumes() {
+		MockActivity bottom = new MockActivity();
+		MockActivity top = new MockActivity().completeAfter(2);
+		Arbiter.Requires below = requires(bottom, driveLine);
+		// something else claims the driveLine first, every tick, then goes away
+		MockActivity macro = new MockActivity().completeAfter(2);
+		Activity.Sequence seq = queue();
+		Activity.Stack stack = stack(below);
+		seq.push(stack);
+		ticks.tick();
+		seq.loop();
+		assertEquals(1, bottom.timesLooped);
+		// pushing onto the stack pre-empts the bottom until it's popped
+		stack.push(requires(top, driveLine));
+		for (int i = 0; i < 3; i++) {
+			ticks.tick();
+			seq.loop();
+		}
+		assertEquals(2, top.timesLooped);
+		assertEquals(2, bottom.timesLooped);
+		// an earlier activity in the sequence interrupts it
+		seq = queue(requires(macro, driveLine), below);
+		for (int i = 0; i < 3; i++) {
+			ticks.tick();
+			seq.loop();
+		}
+		assertEquals(1, below.interruptions());
+		assertEquals(3, bottom.timesLooped);
+	}
+
+	@Test
+	void testSharedActivityRunsTwiceInATick() {
+		MockActivity mock = new MockActivity();
+		Activity shared = requires(mock, driveLine, claw);
+		Activity seq = each(shared, shared);
+		ticks.tick();
+		seq.loop();
+		assertEquals(2, mock.timesLooped);
+		assertEquals(0, ticks.getArbiter().conflicts());
+	}
+
+	@Test
+	void testMasks() {
+		Arbiter arbiter = new Arbiter();
+		assertNotEquals(arbiter.bit(driveLine), arbiter.bit(claw));
+		assertEquals(arbiter.bit(driveLine), arbiter.bit(driveLine));
+		assertEquals(arbiter.bit(driveLine) | arbiter.bit(claw), arbiter.mask(claw, driveLine));
+		assertTrue(arbiter.claim(arbiter.bit(driveLine)));
+		assertFalse(arbiter.claim(arbiter.mask(claw, driveLine)));
+		// a failed claim claims nothing
+		assertFalse(arbiter.isClaimed(arbiter.bit(claw)));
+	}
+
+	@Test
+	void testBitsBelongToTheArbiter() {
+		Arbiter arbiter = new Arbiter();
+		for (int i = 0; i < Long.SIZE; i++) {
+			arbiter.bit(new FakeSubsystem());
+		}
+		assertThrows(IllegalStateException.class, () -> arbiter.bit(new FakeSubsystem()));
+		// another arbiter (a new TickContext) starts with them all free
+		assertEquals(1, new Arbiter().bit(claw));
+		// and an activity built against one context works in the next
+		MockActivity mock = new MockActivity();
+		Activity drive = requires(mock, driveLine);
+		ticks.tick();
+		drive.loop();
+		ticks = TickContext.install(new TickContext(new VirtualClock()));
+		ticks.tick();
+		drive.loop();
+		assertTrue(ticks.getArbiter().isClaimed(ticks.getArbiter().bit(driveLine)));
+		assertEquals(2, mock.timesLooped);
+	}
+}
@@ -0,0 +1,167 @@
+package team3543.robot;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static team3543.robot.Activity.*;
+
+class AsyncTest {
+
+	final TickContext previousContext = TickContext.get();
+
+	@AfterEach
+	void restoreTickContext() {
+		TickContext.install(previousContext);
+	}
+
+	VirtualClock clock;
+	TickContext ticks;
+
+	@BeforeEach
+	void setup() {
+		MockActivity.idCtr = 0;
+		clock = new VirtualClock();
+		ticks = TickContext.install(new TickContext(clock));
+	}
+
+	void tick() {
+		clock.advance(20);
+		ticks.tick();
+	}
+
+	@Test
+	void testResultIsHandedOverOnTheLoopThread() throws Exception {
+		CountDownLatch go = new CountDownLatch(1);
+		Thread loopThread = Thread.currentThread();
+		Thread[] handedOverOn = new Thread[1];
+		int[] result = new int[1];
+		Async<Integer> async = async(() -> {
+			try {
+				go.await();
+			} catch (InterruptedException e) {
+				return -1;
+			}
+			return 3543;
+		}, r -> {
+			result[0] = r;
+			handedOverOn[0] = Thread.currentThread();
+		});
+		// the loop never waits for the work
+		assertFalse(async.loop());
+		assertFalse(async.loop());
+		go.countDown();
+		for (int i = 0; i < 1000 && !async.loop(); i++) {
+			Thread.sleep(1);
+		}
+		assertTrue(async.succeeded());
+		assertEquals(3543, result[0]);
+		assertSame(loopThread, handedOverOn[0]);
+		assertTrue(async.loop());
+	}
+
+	/**
+	 * Work that sleeps until it is interrupted
+	 */
+	static Object sleepUntilInterrupted(CountDownLatch started, CountDownLatch interrupted) {
+		started.countDown();
+		try {
+			Thread.sleep(60000);
+		} catch (InterruptedException e) {
+			interrupted.countDown();
+		}
+		return null;
+	}
+
+	@Test
+	void testDeadlineRunsFallbackAndInterruptsWork() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch interrupted = new CountDownLatch(1);
+		MockActivity fallback = new MockActivity().completeAfter(2);
+		boolean[] handedOver = new boolean[1];
+		Async<Object> async = async(() -> sleepUntilInterrupted(started, interrupted), r -> handedOver[0] = true)
+				.deadline(100, fallback);
+		assertFalse(async.loop());
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		int loops = 0;
+		while (!async.loop()) {
+			tick();
+			loops++;
+		}
+		// 100 ms is 5 ticks, then the fallback takes 2 loops (the first on the 5th tick)
+		assertEquals(6, loops);
+		assertEquals(2, fallback.timesLooped);
+		assertFalse(async.succeeded());
+		assertFalse(handedOver[0]);
+		assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void testCancelledIsNotSuccess() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch interrupted = new CountDownLatch(1);
+		boolean[] handedOver = new boolean[1];
+		Async<Object> async = async(() -> sleepUntilInterrupted(started, interrupted), r -> handedOver[0] = true);
+		assertFalse(async.loop());
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		async.cancel();
+		assertTrue(async.cancelled());
+		assertFalse(async.loop());
+		assertFalse(async.succeeded());
+		assertFalse(handedOver[0]);
+		assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+		// but cancelling one that is done changes nothing
+		Async<String> done = async(() -> "done", null);
+		for (int i = 0; i < 1000 && !done.loop(); i++) {
+			Thread.sleep(1);
+		}
+		done.cancel();
+		assertFalse(done.cancelled());
+		assertTrue(done.succeeded());
+		assertTrue(done.loop());
+	}
+
+	@Test
+	void testFailureRunsFallback() throws Exception {
+		MockActivity fallback = new MockActivity();
+		Async<Object> async = async(() -> {
+			throw new IllegalStateException("no path");
+		}, r -> fail("should not be handed over")).otherwise(fallback);
+		for (int i = 0; i < 1000 && fallback.timesLooped == 0; i++) {
+			async.loop();
+			Thread.sleep(1);
+		}
+		assertTrue(async.error() instanceof IllegalStateException);
+		assertEquals(1, fallback.timesLooped);
+	}
+
+	@Test
+	void testClearingSequenceCancelsWork() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch interrupted = new CountDownLatch(1);
+		CompletableFuture<String> future = new CompletableFuture<>();
+		Activity.Sequence seq = all(
+				async(() -> sleepUntilInterrupted(started, interrupted), null),
+				future(future));
+		assertFalse(seq.loop());
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		seq.clear();
+		assertTrue(seq.isEmpty());
+		assertTrue(future.isCancelled());
+		assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void testFuture() {
+		CompletableFuture<String> future = new CompletableFuture<>();
+		Activity a = future(future);
+		assertFalse(a.loop());
+		future.complete("done");
+		assertTrue(a.loop());
+	}
+}
@@ -0,0 +1,158 @@
+package team3543.robot;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class BlackBoxTest {
+
+	Path directory;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		directory = Files.createTempDirectory("blackbox");
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+
+	static void record(BlackBox box, RobotScript script, int from, int to) {
+		Robot.State state = new Robot.State();
+		for (int i = from; i < to; i++) {
+			box.record(script.read(i, state), i * 20L, i, i * 0.01, -i * 0.01, 12.5, 5000000L);
+		}
+	}
+
+	static RobotScript slice(RobotScript script, int from, int to) {
+		RobotScript slice = new RobotScript();
+		slice.addAll(script.subList(from, to));
+		return slice;
+	}
+
+	static void awaitSaved(BlackBox box) throws InterruptedException {
+		for (int i = 0; i < 500 && !box.isSaved(); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(box.isSaved());
+	}
+
+	@Test
+	void testKeepsTheLastWindow() {
+		BlackBox box = new BlackBox(directory, 100);
+		RobotScript driving = ScriptCodecTest.driving(1000);
+		record(box, driving, 0, 40);
+		assertEquals(40, box.toScript().size());
+		record(box, driving, 40, 1000);
+		RobotScript window = box.toScript();
+		assertEquals(100, window.size());
+		ScriptCodecTest.assertSameScript(slice(driving, 900, 1000), window);
+		assertEquals(900 * 20, window.millis(0));
+		assertEquals(999 * 20, window.millis(99));
+	}
+
+	@Test
+	void testRecordDoesNotAllocate() {
+		BlackBox box = new BlackBox(directory, 750);
+		Robot.State state = ScriptCodecTest.state(DriveLine.ShiftMode.LOW, DriveLine.DriveMode.TANK, 0.5, -0.5, true);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		for (int i = 0; i < 20000; i++) {
+			box.record(state, i, 0, 0, 0, 12, 0);	// warm up
+		}
+		long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		for (int i = 0; i < 20000; i++) {
+			box.record(state, i, 0, 0, 0, 12, 0);
+		}
+		long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+		assertTrue(allocated < 1024, allocated + " bytes");
+	}
+
+	@Test
+	void testFreezeSavesAndCarriesOn() throws Exception {
+		BlackBox box = new BlackBox(directory, 200);
+		RobotScript driving = ScriptCodecTest.driving(1000);
+		assertFalse(box.freeze("empty"));
+		record(box, driving, 0, 300);
+		assertTrue(box.freeze("button"));
+		// recording carries on into a fresh window straight away
+		record(box, driving, 300, 310);
+		assertEquals(10, box.toScript().size());
+		awaitSaved(box);
+
+		Path saved = directory.resolve("blackbox-0001-button.rscr");
+		assertEquals(saved, box.lastSaved);
+		RobotScript script = RobotScript.fromBinary(Files.readAllBytes(saved));
+		ScriptCodecTest.assertSameScript(slice(driving, 100, 300), script);
+		assertEquals(100 * 20, script.millis(0));
+		List<String> csv = Files.readAllLines(directory.resolve("blackbox-0001-button.csv"), StandardCharsets.UTF_8);
+		assertEquals(201, csv.size());
+		assertTrue(csv.get(0).startsWith("millis,"), csv.get(0));
+		assertTrue(csv.get(1).startsWith("2000,HIGH,ARCADE,true,"), csv.get(1));
+		assertTrue(csv.get(1).endsWith(",100.0,1.0,-1.0,12.5,5.0"), csv.get(1));
+	}
+
+	@Test
+	void testTriggersDoNotPileUp() throws Exception {
+		BlackBox box = new BlackBox(directory, 100);
+		RobotScript driving = ScriptCodecTest.driving(1000);
+		record(box, driving, 0, 150);
+		assertTrue(box.trigger("overrun"));
+		awaitSaved(box);
+		record(box, driving, 150, 200);
+		// a run of long loops saves one window, not one each
+		assertFalse(box.trigger("overrun"));
+		record(box, driving, 200, 250);
+		assertTrue(box.trigger("brown out"));
+		awaitSaved(box);
+		assertTrue(Files.exists(directory.resolve("blackbox-0002-brown-out.rscr")));
+		assertEquals(2, box.saved);
+		assertEquals(0, box.errors);
+	}
+
+	@Test
+	void testOnlyTheNewestAreKept() throws Exception {
+		Files.write(directory.resolve("notes.txt"), new byte[] { 1 });
+		BlackBox box = new BlackBox(directory, 10, 3);
+		RobotScript driving = ScriptCodecTest.driving(100);
+		for (int i = 0; i < 5; i++) {
+			record(box, driving, i * 10, i * 10 + 10);
+			assertTrue(box.freeze("disabled"));
+			awaitSaved(box);
+		}
+		for (int i = 1; i <= 5; i++) {
+			boolean kept = i > 2;
+			assertEquals(kept, Files.exists(directory.resolve(String.format("blackbox-%04d-disabled.rscr", i))), "rscr " + i);
+			assertEquals(kept, Files.exists(directory.resolve(String.format("blackbox-%04d-disabled.csv", i))), "csv " + i);
+		}
+		assertTrue(Files.exists(directory.resolve("notes.txt")));
+		assertEquals(0, box.errors);
+	}
+
+	@Test
+	void testTimesKeepGoingAcrossModes() {
+		BlackBox box = new BlackBox(directory, 10);
+		Robot.State state = new Robot.State();
+		for (long millis : new long[] { 14900, 14920, 14940, 0, 20, 40 }) {
+			box.record(state, millis, 0, 0, 0, 12, 0);
+		}
+		RobotScript script = box.toScript();
+		assertEquals(14960, script.millis(3));
+		assertEquals(14980, script.millis(4));
+	}
+}
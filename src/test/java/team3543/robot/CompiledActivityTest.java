@@ -0,0 +1,165 @@
+package team3543.robot;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static team3543.robot.Activity.*;
+
+/**
+ * Checks that compiled activities behave exactly like the trees they were compiled from.
+ *
+ * Each scenario is built twice, over two identical sets of mocks.  One copy is looped
+ * as a tree, the other is compiled, and every tick the return values and the number
+ * of times each mock was looped must match.
+ */
+class CompiledActivityTest {
+
+	static final int TICKS = 12;
+
+	interface Scenario {
+		Activity build(MockActivity[] m);
+	}
+
+	@BeforeEach
+	void setup() {
+		MockActivity.idCtr = 0;
+	}
+
+	/**
+	 * Mocks that complete after 1 to 5 loops, with every fourth one never completing
+	 */
+	static MockActivity[] mocks(int count) {
+		MockActivity[] mocks = new MockActivity[count];
+		for (int i = 0; i < count; i++) {
+			mocks[i] = new MockActivity().completeAfter(i % 4 == 3 ? -1 : i % 5 + 1);
+		}
+		return mocks;
+	}
+
+	static void assertEquivalent(int mockCount, Scenario scenario) {
+		MockActivity[] treeMocks = mocks(mockCount);
+		MockActivity[] programMocks = mocks(mockCount);
+		Activity tree = scenario.build(treeMocks);
+		Activity program = compile(scenario.build(programMocks));
+		for (int tick = 0; tick < TICKS; tick++) {
+			assertEquals(tree.loop(), program.loop(), "return value at tick " + tick);
+			for (int i = 0; i < mockCount; i++) {
+				assertEquals(treeMocks[i].timesLooped, programMocks[i].timesLooped, "mock " + i + " at tick " + tick);
+			}
+		}
+	}
+
+	@Test
+	void testQueue() {
+		assertEquivalent(4, m -> queue(m[0], m[1], m[2], m[3]));
+	}
+
+	@Test
+	void testEach() {
+		assertEquivalent(4, m -> each(m[0], m[1], m[2], m[3]));
+		assertEquivalent(0, m -> each());
+	}
+
+	@Test
+	void testAll() {
+		assertEquivalent(3, m -> all(m[0], m[1], m[2]));
+	}
+
+	@Test
+	void testWhen() {
+		assertEquivalent(3, m -> when(m[0], m[1], m[2]));
+		assertEquivalent(2, m -> when(m[0], m[1]));
+		assertEquivalent(1, m -> when(m[0], noop(), noop()));
+		assertEquivalent(2, m -> when(noop(), m[0], m[1]));
+	}
+
+	@Test
+	void testUnless() {
+		assertEquivalent(2, m -> unless(m[0], m[1]));
+		assertEquivalent(1, m -> unless(m[0], noop()));
+		assertEquivalent(1, m -> unless(noop(), m[0]));
+	}
+
+	@Test
+	void testUntilFirstFalse() {
+		assertEquivalent(4, m -> untilFirstFalse(m[0], m[1], m[2], m[3]));
+	}
+
+	@Test
+	void testStopOnFirstTrue() {
+		assertEquivalent(4, m -> queue(m[3], m[0], m[1], m[2]).stopOnFirstTrue(true));
+	}
+
+	@Test
+	void testAlways() {
+		assertEquivalent(1, m -> always(m[0]));
+		assertEquivalent(1, m -> always(always(m[0])));
+		assertEquivalent(0, m -> always(noop()));
+	}
+
+	@Test
+	void testStack() {
+		assertEquivalent(3, m -> stack(m[0], m[1], m[2]));
+		assertEquivalent(0, m -> stack());
+	}
+
+	@Test
+	void testOnce() {
+		assertEquivalent(2, m -> each(once(m[0]), once(m[1])));
+		assertEquivalent(0, m -> once(noop()));
+	}
+
+	@Test
+	void testAny() {
+		assertEquivalent(3, m -> any(m[0], m[1], m[2]));
+		assertEquivalent(2, m -> any(noop(), m[0], noop(), m[1]));
+		assertEquivalent(0, m -> any());
+	}
+
+	@Test
+	void testNestedEach() {
+		assertEquivalent(5, m -> each(each(m[0], m[1]), m[2], each(each(m[3]), m[4])));
+		assertEquivalent(3, m -> each(each(), m[0], queue(m[1], m[2])));
+		assertEquivalent(4, m -> untilFirstFalse(each(m[0], m[1]), each(m[2], m[3])));
+		assertEquivalent(4, m -> each(untilFirstFalse(m[0], m[1]), each(m[2], m[3])));
+	}
+
+	@Test
+	void testSharedActivities() {
+		assertEquivalent(2, m -> {
+			Activity once = once(m[1]);
+			return each(m[0], m[0], once, when(m[0], once));
+		});
+	}
+
+	@Test
+	void testMixedTree() {
+		assertEquivalent(12, m -> queue(
+				each(m[0], when(m[1], stack(m[2], m[3]), always(m[4]))),
+				untilFirstFalse(unless(m[5], m[6]), any(m[7], noop(), m[8])),
+				stack(once(m[9]), each(each(m[10], m[11])))
+		));
+	}
+
+	@Test
+	void testFolding() {
+		MockActivity mock1 = new MockActivity();
+		MockActivity mock2 = new MockActivity();
+		MockActivity mock3 = new MockActivity();
+
+		// nested plain sequences are flattened into one
+		assertEquals(4, compile(each(each(mock1, mock2), each(mock3))).nodeCount());
+		// and a plain sequence of one is just that one
+		assertEquals(1, compile(each(each(each(mock1)))).nodeCount());
+		// noop branches go away
+		assertEquals(1, compile(any(noop(), mock1, noop())).nodeCount());
+		assertEquals(1, compile(when(noop(), mock2)).nodeCount());
+		assertEquals(1, compile(unless(noop(), mock2)).nodeCount());
+		assertEquals(1, compile(always(noop())).nodeCount());
+		// a test with two noop branches only needs to run the test
+		assertEquals(2, compile(when(mock1, noop(), noop())).nodeCount());
+		// but stopping sequences are not flattened
+		assertEquals(5, compile(each(untilFirstFalse(mock1, mock2), mock3)).nodeCount());
+	}
+}
@@ -0,0 +1,78 @@
+package team3543.robot;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import team3543.robot.DriveLine.DriveMode;
+import team3543.robot.DriveLine.ShiftMode;
+
+class KeyframesTest {
+
+	@Test
+	void testStaysWithinTheError() {
+		RobotScript script = ScriptCodecTest.driving(3000);
+		for (double maxError : new double[] { 0, 0.001, 0.01, 0.1 }) {
+			Keyframes keyframes = Keyframes.reduce(script, maxError);
+			assertTrue(keyframes.maxError <= maxError, keyframes.toString());
+			assertEquals(keyframes.maxError, Keyframes.error(script, keyframes.script));
+			assertEquals(3000, keyframes.ticks);
+			// and it plays for as long
+			assertEquals(script.duration(), keyframes.script.duration());
+		}
+		Keyframes keyframes = Keyframes.reduce(script, 0.01);
+		// a quarter of it is sitting still, and the rest is smooth
+		assertTrue(keyframes.ratio() > 5, keyframes.toString());
+		assertTrue(keyframes.script.toBinary().length * 3 < script.toBinary().length, keyframes.toString());
+	}
+
+	@Test
+	void testKeepsDiscreteChangesExactly() {
+		RobotScript script = new RobotScript();
+		Random random = new Random(3543);
+		ShiftMode shift = ShiftMode.HIGH;
+		DriveMode drive = DriveMode.ARCADE;
+		boolean squared = false;
+		for (int i = 0; i < 2000; i++) {
+			if (random.nextInt(100) == 0) shift = ShiftMode.values()[random.nextInt(3)];
+			if (random.nextInt(150) == 0) drive = DriveMode.values()[random.nextInt(2)];
+			if (random.nextInt(200) == 0) squared = !squared;
+			// a still stick, so only the discrete changes make keyframes
+			script.append(ScriptCodecTest.state(shift, drive, 0.5, -0.25, squared), i * 20 + random.nextInt(3));
+		}
+		Keyframes keyframes = Keyframes.reduce(script, 0.05);
+		assertEquals(0.0, keyframes.maxError);
+		assertTrue(keyframes.ratio() > 5, keyframes.toString());
+		Robot.State expected = new Robot.State(), actual = new Robot.State();
+		for (int i = 0; i < script.size(); i++) {
+			script.sample(script.millis(i), expected);
+			keyframes.script.sample(script.millis(i), actual);
+			assertEquals(expected.driveLineState.shiftMode, actual.driveLineState.shiftMode, "tick " + i);
+			assertEquals(expected.driveLineState.driveMode, actual.driveLineState.driveMode, "tick " + i);
+			assertEquals(expected.driveLineState.squaredInputs, actual.driveLineState.squaredInputs, "tick " + i);
+		}
+	}
+
+	@Test
+	void testEdgeCases() {
+		assertEquals(0, Keyframes.reduce(new RobotScript(), 0.01).script.size());
+		RobotScript one = new RobotScript();
+		one.append(ScriptCodecTest.state(ShiftMode.LOW, DriveMode.TANK, 0.3, 0.3, true), 40);
+		assertEquals(1, Keyframes.reduce(one, 0.01).script.size());
+		assertEquals(40, Keyframes.reduce(one, 0.01).script.millis(0));
+
+		// several ticks at the same time, and a NaN, survive
+		RobotScript odd = new RobotScript();
+		odd.append(ScriptCodecTest.state(ShiftMode.LOW, DriveMode.TANK, 0, 0, false), 0);
+		odd.append(ScriptCodecTest.state(ShiftMode.LOW, DriveMode.TANK, 0.9, 0, false), 20);
+		odd.append(ScriptCodecTest.state(ShiftMode.LOW, DriveMode.TANK, 0.1, 0, false), 20);
+		odd.append(ScriptCodecTest.state(ShiftMode.LOW, DriveMode.TANK, Double.NaN, 0, false), 40);
+		odd.append(ScriptCodecTest.state(ShiftMode.LOW, DriveMode.TANK, 0.2, 0, false), 60);
+		odd.append(ScriptCodecTest.state(ShiftMode.LOW, DriveMode.TANK, 0.3, 0, false), 80);
+		Keyframes keyframes = Keyframes.reduce(odd, 0.01);
+		assertEquals(0.0, keyframes.maxError);
+		assertThrows(IllegalArgumentException.class, () -> Keyframes.reduce(odd, -1));
+	}
+}
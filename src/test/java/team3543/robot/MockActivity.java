@@ -2,6 +2,7 @@ package team3543.robot;
 
 public class MockActivity implements Activity {
 	public int timesLooped = 0;
+	public int timesCancelled = 0;
 	boolean completed = false;	
 	int completeAfter = -1;
 	int id = 0;
@@ -23,6 +24,11 @@ public class MockActivity implements Activity {
 		return completed;
 	}
 	
+	@Override
+	public void cancel() {
+		timesCancelled++;
+	}
+	
 	public MockActivity complete() {
 		this.completed = true;
 		return this;
@@ -0,0 +1,241 @@
+package team3543.robot;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import edu.wpi.first.networktables.NetworkTableInstance;
+import team3543.client.PlaybackClient;
+import team3543.client.ScriptArchive;
+import team3543.robot.DriveLine.DriveMode;
+import team3543.robot.DriveLine.ShiftMode;
+
+/**
+ * A NetworkTables server (the robot) and client (the PlaybackClient) in this
+ * JVM, talking over loopback, timing scripts both ways: recordings saved from
+ * the Recorder through OI's connection into the client's archive, and scripts
+ * loaded from the client through OI's connection to the Recorder.  Prints p50/p99 round trip latency and
+ * throughput for a 15 s autonomous routine and a whole 150 s match.
+ *
+ * Needs the desktop NetworkTables natives, which the test task puts on
+ * java.library.path (see build.gradle).
+ */
+class NetworkTablesLoopbackTest {
+
+	static final int[] TICKS = { 750, 7500 };
+	static final int TRIPS = 20;
+
+	NetworkTableInstance server, client;
+	Path persist, directory;
+	Thread archiver;
+	Level logLevel;
+	final TickContext previousContext = TickContext.get();
+
+	/**
+	 * Notes when each recording is archived
+	 */
+	static class TimedArchive extends ScriptArchive {
+		final BlockingQueue<Long> archivedAt = new LinkedBlockingQueue<>();
+
+		TimedArchive(Path directory) throws IOException {
+			super(directory);
+		}
+
+		@Override
+		public synchronized Entry archive(byte[] script, Instant received) throws IOException {
+			Entry entry = super.archive(script, received);
+			archivedAt.add(System.nanoTime());
+			return entry;
+		}
+	}
+
+	@BeforeEach
+	void setUp() throws Exception {
+		// the whole recording is logged as JSON each time, which would swamp the timings
+		logLevel = Robot.LOG.getLevel();
+		Robot.LOG.setLevel(Level.WARNING);
+		int port;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		persist = Files.createTempFile("networktables", ".ini");
+		directory = Files.createTempDirectory("loopback");
+		try {
+			server = NetworkTableInstance.create();
+			client = NetworkTableInstance.create();
+		} catch (UnsatisfiedLinkError | ExceptionInInitializerError e) {
+			assumeTrue(false, "No NetworkTables natives for this platform: " + e);
+		}
+		server.startServer(persist.toString(), "127.0.0.1", port);
+		client.startClient("127.0.0.1", port);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!client.isConnected() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(client.isConnected(), "Client didn't connect to the loopback server");
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		if (archiver != null) {
+			archiver.interrupt();
+			archiver.join(1000);
+		}
+		Robot.LOG.setLevel(logLevel);
+		TickContext.install(previousContext);
+		if (client != null) {
+			client.stopClient();
+			client.close();
+		}
+		if (server != null) {
+			server.stopServer();
+			server.close();
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+		Files.deleteIfExists(persist);
+	}
+
+	/**
+	 * Sticks that are different for each trip, so the archive keeps every one
+	 */
+	static RobotScript driving(int ticks, int trip) {
+		RobotScript script = new RobotScript(ticks);
+		for (int i = 0; i < ticks; i++) {
+			double t = i * 0.02 + trip;
+			script.append(ScriptCodecTest.state(ShiftMode.HIGH, DriveMode.ARCADE,
+					Math.round(0.8 * Math.sin(t / 3) * 127) / 127.0, Math.round(0.4 * Math.sin(t * 1.7) * 128) / 128.0, true),
+					i * 20L);
+		}
+		return script;
+	}
+
+	static long percentile(long[] sorted, double p) {
+		return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+	}
+
+	static String report(String what, int ticks, int bytes, long[] nanos) {
+		long[] sorted = nanos.clone();
+		Arrays.sort(sorted);
+		long total = 0;
+		for (long n : nanos) {
+			total += n;
+		}
+		return String.format("%s, %d ticks (%d bytes): p50 %.1f ms, p99 %.1f ms, %.0f KB/s",
+				what, ticks, bytes, percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.99) / 1e6,
+				(double) bytes * nanos.length / 1024 / (total / 1e9));
+	}
+
+	@Test
+	void testSaveToArchive() throws Exception {
+		VirtualClock clock = new VirtualClock(1000);
+		TickContext ticks = TickContext.install(new TickContext(clock));
+		Robot.State live = new Robot.State();
+		Recorder recorder = new Recorder(new Recordable() {
+			@Override
+			public Robot.State getState() {
+				return live;
+			}
+
+			@Override
+			public void setState(Robot.State state) {
+			}
+		});
+		OI.connect(recorder, server);
+
+		TimedArchive archive = new TimedArchive(directory);
+		PlaybackClient playbackClient = new PlaybackClient(client);
+		archiver = new Thread(() -> {
+			try {
+				playbackClient.archive(archive);
+			} catch (InterruptedException e) {
+				// done
+			}
+		}, "archiver");
+		archiver.setDaemon(true);
+		archiver.start();
+
+		for (int size : TICKS) {
+			long[] nanos = new long[TRIPS];
+			int bytes = 0;
+			for (int trip = 0; trip < TRIPS; trip++) {
+				RobotScript script = driving(size, trip);
+				recorder.resetRecording();
+				recorder.startRecording();
+				for (int i = 0; i < size; i++) {
+					script.read(i, live);
+					recorder.record();
+					clock.advance(20);
+					ticks.tick();
+				}
+				recorder.stopRecording();
+				bytes = recorder.getScript().toBinary().length;
+				long start = System.nanoTime();
+				assertTrue(recorder.dumpRecording());
+				Long archivedAt = archive.archivedAt.poll(10, TimeUnit.SECONDS);
+				assertNotNull(archivedAt, "Recording " + trip + " of " + size + " ticks never arrived");
+				nanos[trip] = archivedAt - start;
+			}
+			System.out.println(report("save", size, bytes, nanos));
+		}
+		assertEquals(TICKS.length * TRIPS, archive.entries().size());
+		ScriptArchive.Entry last = archive.entries().get(archive.entries().size() - 1);
+		ScriptViewTest.assertSameTicks(recorder.getScript(), RobotScript.fromBinary(Files.readAllBytes(archive.path(last))));
+	}
+
+	@Test
+	void testLoadToRobot() throws Exception {
+		Recorder recorder = new Recorder(new Recordable() {
+			@Override
+			public Robot.State getState() {
+				return new Robot.State();
+			}
+
+			@Override
+			public void setState(Robot.State state) {
+			}
+		});
+		OI.connect(recorder, server);
+		PlaybackClient playbackClient = new PlaybackClient(client);
+
+		for (int size : TICKS) {
+			long[] nanos = new long[TRIPS];
+			byte[] binary = null;
+			for (int trip = 0; trip < TRIPS; trip++) {
+				binary = driving(size, trip).toBinary();
+				long start = System.nanoTime();
+				// returns once the robot has it all, checked, parsed and handed to the recorder
+				playbackClient.play(ByteBuffer.wrap(binary));
+				nanos[trip] = System.nanoTime() - start;
+				assertTrue(recorder.swapInLoaded());
+				assertEquals(size, recorder.getScript().size());
+			}
+			System.out.println(report("load", size, binary.length, nanos));
+		}
+		// and a bad one is refused, and the client told
+		byte[] corrupt = driving(750, 0).toBinary();
+		corrupt[corrupt.length / 2] ^= 0x10;
+		assertThrows(IOException.class, () -> playbackClient.play(ByteBuffer.wrap(corrupt)));
+		assertFalse(recorder.swapInLoaded());
+	}
+}
@@ -0,0 +1,186 @@
+package team3543.robot;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static team3543.robot.Activity.*;
+
+class ParallelTest {
+
+	@BeforeEach
+	void setup() {
+		MockActivity.idCtr = 0;
+	}
+
+	/**
+	 * A subsystem, as far as the safety rule is concerned
+	 */
+	static class FakeSubsystem implements Actuated {
+		Thread loopedOn;
+
+		@Override
+		public void actuate() {
+		}
+
+		Activity activity() {
+			return () -> {
+				loopedOn = Thread.currentThread();
+				return false;
+			};
+		}
+	}
+
+	@Test
+	void testSameResultsAsAll() {
+		MockActivity[] treeMocks = new MockActivity[4];
+		MockActivity[] parallelMocks = new MockActivity[4];
+		for (int i = 0; i < 4; i++) {
+			treeMocks[i] = new MockActivity().completeAfter(i + 1);
+			parallelMocks[i] = new MockActivity().completeAfter(i + 1);
+		}
+		Activity tree = all(treeMocks);
+		// a long join, so nothing is late on a slow machine
+		Activity parallel = parallel(pure(parallelMocks[0]), pure(parallelMocks[1]), parallelMocks[2], pure(parallelMocks[3]))
+				.joinWithin(5000);
+		for (int tick = 0; tick < 6; tick++) {
+			assertEquals(tree.loop(), parallel.loop(), "tick " + tick);
+			for (int i = 0; i < 4; i++) {
+				assertEquals(treeMocks[i].timesLooped, parallelMocks[i].timesLooped, "mock " + i + " at tick " + tick);
+			}
+		}
+		assertTrue(parallel(/* nothing */).loop());
+	}
+
+	@Test
+	void testActuatedChildrenStayOnRobotThread() {
+		FakeSubsystem subsystem = new FakeSubsystem();
+		Thread[] pureRanOn = new Thread[1];
+		Activity computation = () -> {
+			pureRanOn[0] = Thread.currentThread();
+			return false;
+		};
+		Parallel parallel = parallel(
+				pure(computation),
+				pure(subsystem.activity()),			// marked pure, but captures the subsystem
+				pure(each(noop(), subsystem.activity()))	// and here, further down
+		).joinWithin(5000);
+		assertEquals(1, parallel.forkedCount());
+		parallel.loop();
+		assertNotSame(Thread.currentThread(), pureRanOn[0]);
+		assertSame(Thread.currentThread(), subsystem.loopedOn);
+	}
+
+	@Test
+	void testActuatedInContainersAndLibraryLambdas() {
+		FakeSubsystem subsystem = new FakeSubsystem();
+		List<Activity> list = new ArrayList<>();
+		list.add(subsystem.activity());
+		Map<String, Actuated> map = new HashMap<>();
+		map.put("drive", subsystem);
+		AtomicReference<FakeSubsystem> reference = new AtomicReference<>(subsystem);
+		// made by the library, and capturing our lambda, which captures the subsystem
+		Function<Boolean, Boolean> composed = ((Function<Boolean, Boolean>) done -> subsystem.loopedOn == null).andThen(done -> done);
+		Parallel parallel = parallel(
+				pure(() -> list.get(0).loop()),
+				pure(() -> map.isEmpty()),
+				pure(() -> reference.get() == null),
+				pure(() -> composed.apply(false)),
+				pure(() -> Collections.singletonList("no subsystem").isEmpty())
+		);
+		assertEquals(1, parallel.forkedCount());
+	}
+
+	@Test
+	void testCancelWaitsForTheLoopOnThePool() throws Exception {
+		CountDownLatch looping = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch cancelled = new CountDownLatch(1);
+		boolean[] overlapped = new boolean[1];
+		boolean[] inLoop = new boolean[1];
+		boolean[] complete = new boolean[1];
+		Activity slow = new Activity() {
+			@Override
+			public boolean loop() {
+				inLoop[0] = true;
+				looping.countDown();
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					// done anyway
+				}
+				inLoop[0] = false;
+				return complete[0];
+			}
+
+			@Override
+			public void cancel() {
+				overlapped[0] = inLoop[0];
+				cancelled.countDown();
+			}
+		};
+		Parallel parallel = parallel(pure(slow)).joinWithin(1);
+		assertFalse(parallel.loop());
+		assertTrue(looping.await(5, TimeUnit.SECONDS));
+		parallel.cancel();
+		assertEquals(1, cancelled.getCount());
+		release.countDown();
+		assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+		assertFalse(overlapped[0]);
+		// and it can be looped again, with no CancellationException
+		complete[0] = true;
+		boolean done = false;
+		for (int i = 0; i < 1000 && !done; i++) {
+			done = parallel.loop();
+			Thread.sleep(1);
+		}
+		assertTrue(done);
+	}
+
+	@Test
+	void testCancelBeforeTheLoopStarts() {
+		MockActivity mock = new MockActivity().completeAfter(1);
+		Parallel parallel = parallel(pure(mock)).joinWithin(5000);
+		parallel.cancel();
+		assertEquals(1, mock.timesCancelled);
+		assertTrue(parallel.loop());
+		assertEquals(1, mock.timesLooped);
+	}
+
+	@Test
+	void testLateChildIsJoinedOnALaterTick() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		MockActivity fast = new MockActivity().completeAfter(1);
+		Activity slow = () -> {
+			try {
+				return release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		};
+		Parallel parallel = parallel(pure(slow), fast).joinWithin(1);
+		assertFalse(parallel.loop());
+		assertEquals(1, parallel.lateJoins());
+		// still running, so not started again, but the others keep going
+		assertFalse(parallel.loop());
+		assertEquals(2, parallel.lateJoins());
+		assertEquals(2, fast.timesLooped);
+		release.countDown();
+		boolean done = false;
+		for (int i = 0; i < 1000 && !done; i++) {
+			done = parallel.loop();
+			Thread.sleep(1);
+		}
+		assertTrue(done);
+	}
+}
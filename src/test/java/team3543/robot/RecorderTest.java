@@ -0,0 +1,294 @@
+package team3543.robot;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import team3543.robot.DriveLine.DriveMode;
+import team3543.robot.DriveLine.ShiftMode;
+
+class RecorderTest {
+
+	final TickContext previousContext = TickContext.get();
+
+	@AfterEach
+	void restoreTickContext() {
+		TickContext.install(previousContext);
+	}
+
+	VirtualClock clock;
+	TickContext ticks;
+	Robot.State live;
+	List<DriveLine.State> played;
+	Recorder recorder;
+
+	@BeforeEach
+	void setUp() {
+		clock = new VirtualClock(1000);
+		ticks = TickContext.install(new TickContext(clock));
+		live = ScriptCodecTest.state(ShiftMode.HIGH, DriveMode.ARCADE, 0, 0, false);
+		played = new ArrayList<>();
+		recorder = new Recorder(new Recordable() {
+			@Override
+			public Robot.State getState() {
+				return live;
+			}
+
+			@Override
+			public void setState(Robot.State state) {
+				played.add(state.driveLineState.copy());
+			}
+		});
+	}
+
+	void tick(long millis) {
+		clock.advance(millis);
+		ticks.tick();
+	}
+
+	/**
+	 * A ramp: magnitude goes up 0.01 per 20 ms of clock time, however late the ticks are
+	 */
+	RobotScript recordRamp(long[] gaps) {
+		recorder.resetRecording();
+		recorder.startRecording();
+		long t = 0;
+		for (long gap : gaps) {
+			live.driveLineState.magnitudeOrLeft = t / 2000.0;
+			recorder.record();
+			tick(gap);
+			t += gap;
+		}
+		recorder.stopRecording();
+		return recorder.getScript();
+	}
+
+	static long[] jittery(int count, long seed) {
+		Random random = new Random(seed);
+		long[] gaps = new long[count];
+		for (int i = 0; i < count; i++) {
+			// mostly on time, a bit of jitter, and now and then a long overrun
+			gaps[i] = i % 50 == 49 ? 80 : 18 + random.nextInt(5);
+		}
+		return gaps;
+	}
+
+	@Test
+	void testRecordsTimes() {
+		RobotScript script = recordRamp(new long[] { 20, 20, 60, 20 });
+		assertEquals(4, script.size());
+		assertEquals(0, script.millis(0));
+		assertEquals(20, script.millis(1));
+		assertEquals(40, script.millis(2));
+		assertEquals(100, script.millis(3));
+		assertEquals(120, script.duration());
+
+		// carrying on after a pause picks up a period after the last tick
+		tick(5000);
+		recorder.startRecording();
+		recorder.record();
+		assertEquals(120, script.millis(4));
+	}
+
+	@Test
+	void testPlaybackFollowsTheClockNotTheTicks() {
+		RobotScript script = recordRamp(jittery(500, 3543));
+		recorder.setScript(script);
+		recorder.startPlayback();
+		// play back with different jitter: what's played depends only on how long it has been
+		long elapsed = 0;
+		for (long gap : jittery(1000, 1)) {
+			recorder.playback();
+			if (!recorder.playingBack) {
+				break;
+			}
+			DriveLine.State state = played.get(played.size() - 1);
+			assertEquals(elapsed / 2000.0, state.magnitudeOrLeft, 1e-9, "at " + elapsed + " ms");
+			tick(gap);
+			elapsed += gap;
+		}
+		assertFalse(recorder.playingBack);
+		assertTrue(elapsed >= script.duration(), elapsed + " ms");
+		assertTrue(elapsed < script.duration() + 80, elapsed + " ms");
+	}
+
+	@Test
+	void testRate() {
+		RobotScript script = recordRamp(jittery(500, 3543));
+		recorder.setScript(script);
+		recorder.setRate(2);
+		recorder.startPlayback();
+		int count = 0;
+		while (recorder.playingBack) {
+			recorder.playback();
+			tick(20);
+			count++;
+		}
+		// twice as fast, give or take a tick
+		assertEquals(script.duration() / 40.0, count, 2);
+		assertEquals(0.0, played.get(0).magnitudeOrLeft);
+		assertEquals(0.02, played.get(1).magnitudeOrLeft, 1e-9);
+
+		// changing it part way carries on from where it had got to
+		recorder.resetPlayback();
+		recorder.setRate(1);
+		recorder.startPlayback();
+		tick(1000);
+		recorder.setRate(0.5);
+		tick(1000);
+		recorder.playback();
+		assertEquals(1.5 / 2, played.get(played.size() - 1).magnitudeOrLeft, 1e-9);
+		assertThrows(IllegalArgumentException.class, () -> recorder.setRate(0));
+	}
+
+	@Test
+	void testPauseAndResume() {
+		RobotScript script = recordRamp(jittery(200, 7));
+		recorder.setScript(script);
+		recorder.startPlayback();
+		tick(500);
+		recorder.playback();
+		recorder.stopPlayback();
+		tick(10000);
+		recorder.startPlayback();
+		tick(100);
+		recorder.playback();
+		assertEquals(0.3, played.get(1).magnitudeOrLeft, 1e-9);
+	}
+
+	@Test
+	void testNoInterpolationAcrossModes() {
+		RobotScript script = new RobotScript();
+		script.append(ScriptCodecTest.state(ShiftMode.HIGH, DriveMode.ARCADE, 0, 0, false), 0);
+		script.append(ScriptCodecTest.state(ShiftMode.HIGH, DriveMode.ARCADE, 1, -1, false), 100);
+		script.append(ScriptCodecTest.state(ShiftMode.LOW, DriveMode.ARCADE, 0, 0, false), 200);
+		Robot.State into = new Robot.State();
+		assertEquals(0, script.sample(25, into));
+		assertEquals(0.25, into.driveLineState.magnitudeOrLeft);
+		assertEquals(-0.25, into.driveLineState.curveOrRight);
+		assertEquals(1, script.sample(150, into));
+		assertEquals(1.0, into.driveLineState.magnitudeOrLeft);
+		assertEquals(ShiftMode.HIGH, into.driveLineState.shiftMode);
+		assertEquals(2, script.sample(5000, into));
+		assertEquals(0, script.sample(-5, into));
+		assertThrows(IllegalArgumentException.class,
+				() -> script.append(ScriptCodecTest.state(ShiftMode.LOW, DriveMode.ARCADE, 0, 0, false), 199));
+	}
+
+	@Test
+	void testStreamingMatchesTheScript() throws Exception {
+		RobotScript script = recordRamp(jittery(300, 5));
+		MappedScript mapped = new MappedScript(null, java.nio.ByteBuffer.wrap(script.toBinary()));
+		for (Object source : new Object[] { script, mapped }) {
+			played.clear();
+			if (source == script) recorder.setScript(script); else recorder.setScript(mapped);
+			recorder.startPlayback();
+			while (recorder.playingBack) {
+				recorder.playback();
+				tick(13);
+			}
+			assertEquals(script.duration() / 13.0, played.size(), 1);
+			// the last tick is held for its period, the rest follow the ramp
+			long last = script.millis(script.size() - 1);
+			for (int i = 0; i * 13 <= last; i++) {
+				assertEquals(i * 13 / 2000.0, played.get(i).magnitudeOrLeft, 1e-9, source.getClass().getSimpleName() + " " + i);
+			}
+		}
+	}
+
+	@Test
+	void testTimesSurviveTheBinaryFormat() {
+		RobotScript script = recordRamp(jittery(3000, 11));
+		RobotScript decoded = RobotScript.fromBinary(script.toBinary());
+		ScriptCodecTest.assertSameScript(script, decoded);
+		for (int i = 0; i < script.size(); i++) {
+			assertEquals(script.millis(i), decoded.millis(i));
+		}
+		// about a byte a tick for the times
+		RobotScript untimed = new RobotScript();
+		untimed.addAll(new ArrayList<>(script));	// through the List view, so at the nominal period
+		int cost = script.toBinary().length - untimed.toBinary().length;
+		assertTrue(cost < script.size() * 1.5, cost + " bytes for " + script.size() + " times");
+	}
+
+	@Test
+	void testLoadedScriptWaitsForTheLoop() throws Exception {
+		RobotScript first = recordRamp(jittery(100, 1));
+		RobotScript[] loads = { recordRamp(jittery(50, 2)), recordRamp(jittery(60, 3)) };
+		recorder.setScript(first);
+		recorder.startPlayback();
+		// loaded from another thread, while this one plays
+		Thread loader = new Thread(() -> {
+			for (RobotScript script : loads) {
+				recorder.load(script);
+			}
+		});
+		loader.start();
+		for (int i = 0; i < 10; i++) {
+			recorder.playback();
+			tick(20);
+		}
+		loader.join();
+		assertSame(first, recorder.getScript());
+		assertTrue(recorder.playingBack);
+		// the last one wins, once, at the start of a tick
+		assertTrue(recorder.swapInLoaded());
+		assertSame(loads[1], recorder.getScript());
+		assertFalse(recorder.playingBack);
+		assertFalse(recorder.swapInLoaded());
+		// and it's copied before being recorded into
+		recorder.startRecording();
+		recorder.record();
+		assertEquals(60, loads[1].size());
+	}
+
+	@Test
+	void testLoadedScriptWaitsForRecordingToStop() throws Exception {
+		RobotScript loaded = recordRamp(jittery(50, 4));
+		recorder.resetRecording();
+		recorder.startRecording();
+		for (int i = 0; i < 5; i++) {
+			recorder.record();
+			tick(20);
+		}
+		recorder.load(loaded);
+		// the recording isn't thrown away under the driver
+		assertFalse(recorder.swapInLoaded());
+		assertTrue(recorder.isRecording());
+		recorder.record();
+		assertEquals(6, recorder.getScript().size());
+		RobotScript recorded = recorder.getScript();
+		recorder.stopRecording();
+		assertTrue(recorder.swapInLoaded());
+		assertSame(loaded, recorder.getScript());
+		assertEquals(6, recorded.size());
+	}
+
+	@Test
+	void testReadsVersion1() throws Exception {
+		// one tick in HIGH, then two more the same, as version 1 wrote them
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(new byte[] { 'R', 'S', 'C', 'R', 1, 0 });
+		out.write(ShiftMode.HIGH.ordinal());
+		out.write(ScriptCodec.RUN | 2 << 2);
+		out.write(ScriptCodec.END);
+		out.write(new byte[] { 0, 0, 0, 3 });
+		CRC32 crc = new CRC32();
+		crc.update(out.toByteArray());
+		long value = crc.getValue();
+		out.write(new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value });
+		RobotScript script = RobotScript.fromBinary(out.toByteArray());
+		assertEquals(3, script.size());
+		assertEquals(ShiftMode.HIGH, script.get(2).driveLineState.shiftMode);
+		assertEquals(0, script.millis(0));
+		assertEquals(40, script.millis(2));
+	}
+}
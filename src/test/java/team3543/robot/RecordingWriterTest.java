@@ -0,0 +1,222 @@
+package team3543.robot;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class RecordingWriterTest {
+
+	final TickContext previousContext = TickContext.get();
+
+	@AfterEach
+	void restoreTickContext() {
+		TickContext.install(previousContext);
+	}
+
+	Path directory;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		directory = Files.createTempDirectory("recordings");
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+
+	static RobotScript write(RecordingWriter writer, RobotScript script) {
+		Robot.State state = new Robot.State();
+		for (int i = 0; i < script.size(); i++) {
+			while (!writer.offer(script.read(i, state), script.millis(i))) {
+				Thread.yield();		// only a test would wait
+			}
+		}
+		return script;
+	}
+
+	@Test
+	void testWritesWhatIsOffered() throws Exception {
+		RecordingWriter writer = new RecordingWriter(directory, 64, 10).start();
+		RobotScript script = write(writer, ScriptCodecTest.driving(3000));
+		writer.close();
+		assertEquals(3000, writer.written);
+		assertTrue(writer.syncs > 0);
+		assertEquals(0, writer.errors);
+		Path file = directory.resolve("recording-0001.rrec");
+		assertEquals(file, writer.getFile());
+		assertEquals(5 + 3000 * RecordingWriter.FRAME_SIZE, Files.size(file));
+		RobotScript read = RecordingWriter.read(file);
+		ScriptCodecTest.assertSameScript(script, read);
+		for (int i = 0; i < script.size(); i++) {
+			assertEquals(script.millis(i), read.millis(i));
+		}
+	}
+
+	@Test
+	void testDropsRatherThanWaits() {
+		// not started, so nothing drains it
+		RecordingWriter writer = new RecordingWriter(directory, 100, 10);
+		assertEquals(127, writer.mask);
+		Robot.State state = new Robot.State();
+		for (int i = 0; i < 128; i++) {
+			assertTrue(writer.offer(state, i * 20));
+		}
+		assertFalse(writer.offer(state, 128 * 20));
+		assertEquals(1, writer.dropped);
+		// draining makes room
+		writer.drain();
+		assertTrue(writer.offer(state, 129 * 20));
+		writer.closeFile();
+		assertEquals(128, writer.written);
+	}
+
+	@Test
+	void testEachResetStartsAFile() throws Exception {
+		Files.write(directory.resolve("recording-0041.rrec"), new byte[0]);
+		RecordingWriter writer = new RecordingWriter(directory, 64, 1000).start();
+		write(writer, ScriptCodecTest.driving(10));
+		writer.reset();
+		writer.reset();		// nothing recorded in between, so no file
+		write(writer, ScriptCodecTest.driving(20));
+		writer.close();
+		assertEquals(10, RecordingWriter.read(directory.resolve("recording-0042.rrec")).size());
+		assertEquals(20, RecordingWriter.read(directory.resolve("recording-0043.rrec")).size());
+		assertFalse(Files.exists(directory.resolve("recording-0044.rrec")));
+	}
+
+	@Test
+	void testKeepsOnlyTheNewestFiles() throws Exception {
+		Files.write(directory.resolve("recording-0007.rrec"), new byte[0]);
+		Files.write(directory.resolve("notes.txt"), new byte[0]);
+		RecordingWriter writer = new RecordingWriter(directory, 64, 1000, 3).start();
+		for (int i = 0; i < 5; i++) {
+			write(writer, ScriptCodecTest.driving(10));
+			writer.reset();
+		}
+		writer.close();
+		// 0008 to 0012 were written, and the last three kept
+		for (int sequence = 7; sequence <= 12; sequence++) {
+			Path file = directory.resolve(String.format("recording-%04d.rrec", sequence));
+			assertEquals(sequence >= 10, Files.exists(file), file.toString());
+		}
+		assertTrue(Files.exists(directory.resolve("notes.txt")));
+	}
+
+	@Test
+	void testResetThatDoesNotFitIsRetried() {
+		// not started, so nothing drains it until we say
+		RecordingWriter writer = new RecordingWriter(directory, 4, 10);
+		Robot.State state = new Robot.State();
+		for (int i = 0; i < 4; i++) {
+			assertTrue(writer.offer(state, i * 20));
+		}
+		assertFalse(writer.reset());
+		// nothing goes in ahead of the reset, even once there's room
+		writer.drain();
+		Path first = writer.getFile();
+		assertTrue(writer.offer(state, 100));
+		assertFalse(writer.resetPending);
+		writer.drain();
+		writer.closeFile();
+		assertNotEquals(first, writer.getFile());
+		assertEquals(4 + 1, writer.written);
+		// and while it's full, ticks are dropped rather than going in the old file
+		for (int i = 0; i < 4; i++) {
+			assertTrue(writer.offer(state, 200 + i * 20));
+		}
+		assertFalse(writer.reset());
+		assertFalse(writer.offer(state, 300));
+		assertTrue(writer.resetPending);
+	}
+
+	@Test
+	void testWriterSleepsUntilThereIsSomethingToWrite() throws Exception {
+		RecordingWriter writer = new RecordingWriter(directory, 64, 10).start();
+		write(writer, ScriptCodecTest.driving(10));
+		// written and synced, so it parks with no timeout
+		for (int i = 0; i < 5000 && writer.thread.getState() != Thread.State.WAITING; i++) {
+			Thread.sleep(1);
+		}
+		assertEquals(Thread.State.WAITING, writer.thread.getState());
+		assertEquals(10, writer.written);
+		write(writer, ScriptCodecTest.driving(5));
+		for (int i = 0; i < 5000 && writer.written < 15; i++) {
+			Thread.sleep(1);
+		}
+		assertEquals(15, writer.written);
+		writer.close();
+	}
+
+	@Test
+	void testRecoversATornFile() throws Exception {
+		RecordingWriter writer = new RecordingWriter(directory, 64, 1000).start();
+		RobotScript script = write(writer, ScriptCodecTest.driving(100));
+		writer.close();
+		byte[] bytes = Files.readAllBytes(writer.getFile());
+
+		// cut off part way through the last frame, as a brownout might
+		Path torn = directory.resolve("torn.rrec");
+		Files.write(torn, Arrays.copyOf(bytes, bytes.length - 7));
+		RobotScript read = RecordingWriter.read(torn);
+		assertEquals(99, read.size());
+		RobotScript head = new RobotScript();
+		head.addAll(script.subList(0, 99));
+		ScriptCodecTest.assertSameScript(head, read);
+
+		// a bad frame ends it too, rather than playing garbage
+		bytes[5 + 50 * RecordingWriter.FRAME_SIZE + 3] ^= 0x40;
+		Files.write(torn, bytes);
+		assertEquals(50, RecordingWriter.read(torn).size());
+
+		Files.write(torn, new byte[] { 'R', 'S', 'C', 'R', 1 });
+		assertThrows(IOException.class, () -> RecordingWriter.read(torn));
+	}
+
+	@Test
+	void testRecorderWritesAsItRecords() throws Exception {
+		VirtualClock clock = new VirtualClock(1000);
+		TickContext ticks = TickContext.install(new TickContext(clock));
+		RobotScript driving = ScriptCodecTest.driving(200);
+		int[] next = { 0 };
+		Robot.State state = new Robot.State();
+		Recorder recorder = new Recorder(new Recordable() {
+			@Override
+			public Robot.State getState() {
+				return driving.read(next[0]++, state);
+			}
+
+			@Override
+			public void setState(Robot.State state) {
+			}
+		});
+		RecordingWriter writer = new RecordingWriter(directory, 256, 1000).start();
+		recorder.setWriter(writer);
+		recorder.resetRecording();
+		recorder.startRecording();
+		for (int i = 0; i < 200; i++) {
+			recorder.record();
+			clock.advance(i % 10 == 0 ? 45 : 20);
+			ticks.tick();
+		}
+		writer.close();
+		RobotScript read = RecordingWriter.read(writer.getFile());
+		ScriptCodecTest.assertSameScript(recorder.getScript(), read);
+		for (int i = 0; i < read.size(); i++) {
+			assertEquals(recorder.getScript().millis(i), read.millis(i));
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package team3543.robot;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class RecordingsTest {
+
+	final TickContext previousContext = TickContext.get();
+
+	@AfterEach
+	void restoreTickContext() {
+		TickContext.install(previousContext);
+	}
+
+	Path directory;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		directory = Files.createTempDirectory("recordings");
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+
+	@Test
+	void testIndexReadsOnlyTheTrailer() throws IOException {
+		RobotScript left = ScriptCodecTest.driving(750);
+		byte[] bytes = left.toBinary();
+		Files.write(directory.resolve("left.rscr"), bytes);
+		Files.write(directory.resolve("right.json"), ScriptCodecTest.driving(10).toJSON().getBytes(StandardCharsets.UTF_8));
+		byte[] corrupt = bytes.clone();
+		corrupt[0] = 'X';
+		Files.write(directory.resolve("corrupt.rscr"), corrupt);
+		Files.write(directory.resolve("short.rscr"), new byte[] { 'R', 'S' });
+		Files.write(directory.resolve("notes.txt"), new byte[] { 1, 2, 3 });
+
+		Map<String, Recordings.Entry> index = Recordings.index(directory);
+		assertEquals(2, index.size(), index.toString());
+		Recordings.Entry entry = index.get("left");
+		assertEquals(bytes.length, entry.length);
+		assertEquals(750, entry.ticks);
+		assertEquals(15000, entry.durationMillis());
+		assertEquals(ScriptCodec.readInt(bytes, bytes.length - 4), entry.checksum);
+		assertNull(entry.mapped);
+
+		ScriptCodecTest.assertSameScript(left, entry.load());
+		assertEquals(10, index.get("right").load().size());
+		assertEquals(-1, index.get("right").ticks);
+
+		assertTrue(Recordings.index(directory.resolve("missing")).isEmpty());
+	}
+
+	@Test
+	void testBinaryWinsOverJSONOfTheSameName() throws IOException {
+		RobotScript binary = ScriptCodecTest.driving(20);
+		Files.write(directory.resolve("auto.json"), ScriptCodecTest.driving(10).toJSON().getBytes(StandardCharsets.UTF_8));
+		Files.write(directory.resolve("auto.rscr"), binary.toBinary());
+		// a binary script with the wrong extension is taken for JSON, and fails to parse as it
+		Files.write(directory.resolve("odd.json"), binary.toBinary());
+		Map<String, Recordings.Entry> index = Recordings.index(directory);
+		assertEquals(2, index.size());
+		assertTrue(index.get("auto").isBinary());
+		ScriptCodecTest.assertSameScript(binary, index.get("auto").load());
+		assertFalse(index.get("odd").isBinary());
+		assertThrows(RuntimeException.class, () -> index.get("odd").load());
+	}
+
+	@Test
+	void testDeployedScriptsPlayLosslessFromTheMapping() throws IOException {
+		RobotScript script = ScriptCodecTest.driving(100);
+		Files.write(directory.resolve("mapped-auto.rscr"), script.toBinary());
+		Recordings.INDEX.putAll(Recordings.index(directory));
+		Recorder recorder = new Recorder(new Recordable() {
+			@Override
+			public Robot.State getState() {
+				return new Robot.State();
+			}
+
+			@Override
+			public void setState(Robot.State state) {
+			}
+		});
+		try {
+			// nothing is cut by default, so there's no need to decode it
+			assertEquals(0, Config.RECORDING_KEYFRAME_ERROR);
+			RobotScript.ScriptSource source = Recordings.source("mapped-auto");
+			source.prefetch();
+			assertFalse(Recordings.CACHE.contains("mapped-auto"));
+			source.playOn(recorder);
+			assertNotNull(recorder.mapped);
+			// one pasted in with the same name wins, and goes through the cache
+			Recordings.add("mapped-auto", "[]");
+			Recordings.source("mapped-auto").playOn(recorder);
+			assertNull(recorder.mapped);
+			assertEquals(0, recorder.getScript().size());
+		} finally {
+			Recordings.RECORDINGS.remove("mapped-auto");
+			Recordings.INDEX.remove("mapped-auto");
+			Recordings.CACHE.invalidate("mapped-auto");
+		}
+	}
+
+	@Test
+	void testCorruptDeployedScriptsAreNotPlayedFromTheMapping() throws IOException {
+		byte[] bytes = ScriptCodecTest.driving(100).toBinary();
+		bytes[bytes.length / 2] ^= 0x10;
+		Files.write(directory.resolve("corrupt-auto.rscr"), bytes);
+		Recordings.INDEX.putAll(Recordings.index(directory));
+		Recorder recorder = new Recorder(new Recordable() {
+			@Override
+			public Robot.State getState() {
+				return new Robot.State();
+			}
+
+			@Override
+			public void setState(Robot.State state) {
+			}
+		});
+		try {
+			RobotScript.ScriptSource source = Recordings.source("corrupt-auto");
+			// checked while disabled, and the cache is asked instead
+			source.prefetch();
+			Recordings.Entry entry = Recordings.INDEX.get("corrupt-auto");
+			assertNotNull(entry.corrupt);
+			assertNull(entry.mapped);
+			IOException again = assertThrows(IOException.class, entry::map);
+			assertSame(entry.corrupt, again);
+			// which has the decoder's complaint for whoever plays it
+			assertThrows(RuntimeException.class, () -> source.playOn(recorder));
+			assertNull(recorder.mapped);
+		} finally {
+			Recordings.INDEX.remove("corrupt-auto");
+			Recordings.CACHE.invalidate("corrupt-auto");
+		}
+	}
+
+	@Test
+	void testMappedScript() throws IOException {
+		RobotScript script = ScriptCodecTest.driving(3000);
+		Path file = directory.resolve("auto.rscr");
+		Files.write(file, script.toBinary());
+		MappedScript mapped = MappedScript.map(file);
+		assertEquals(3000, mapped.tickCount());
+		mapped.verify();
+		ScriptCodecTest.assertSameScript(script, mapped.decode());
+		// decoding again starts from the beginning
+		ScriptCodecTest.assertSameScript(script, mapped.decode());
+
+		byte[] corrupt = script.toBinary();
+		corrupt[corrupt.length / 2] ^= 0x10;
+		Path bad = directory.resolve("bad.rscr");
+		Files.write(bad, corrupt);
+		assertThrows(IOException.class, () -> MappedScript.map(bad).verify());
+	}
+
+	@Test
+	void testRecorderStreamsFromTheMapping() throws IOException {
+		RobotScript script = ScriptCodecTest.driving(500);
+		Path file = directory.resolve("auto.rscr");
+		Files.write(file, script.toBinary());
+		List<Double> played = new ArrayList<>();
+		Recorder recorder = new Recorder(new Recordable() {
+			@Override
+			public Robot.State getState() {
+				return new Robot.State();
+			}
+
+			@Override
+			public void setState(Robot.State state) {
+				played.add(state.driveLineState.magnitudeOrLeft);
+			}
+		});
+		VirtualClock clock = new VirtualClock();
+		TickContext ticks = TickContext.install(new TickContext(clock));
+		recorder.setScript(MappedScript.map(file));
+		recorder.startPlayback();
+		for (int i = 0; i < 600; i++) {
+			recorder.playback();
+			clock.advance(20);
+			ticks.tick();
+		}
+		assertFalse(recorder.playingBack);
+		assertEquals(500, played.size());
+		Robot.State state = new Robot.State();
+		for (int i = 0; i < 500; i++) {
+			assertEquals(script.read(i, state).driveLineState.magnitudeOrLeft, played.get(i).doubleValue());
+		}
+
+		// and again from the top
+		recorder.resetPlayback();
+		recorder.startPlayback();
+		recorder.playback();
+		assertEquals(501, played.size());
+		assertEquals(played.get(0).doubleValue(), played.get(500).doubleValue());
+	}
+}
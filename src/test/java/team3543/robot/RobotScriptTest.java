@@ -0,0 +1,233 @@
+package team3543.robot;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import team3543.robot.DriveLine.DriveMode;
+import team3543.robot.DriveLine.ShiftMode;
+
+class RobotScriptTest {
+
+	final TickContext previousContext = TickContext.get();
+
+	@AfterEach
+	void restoreTickContext() {
+		TickContext.install(previousContext);
+	}
+
+	static Robot.State state(int i) {
+		Robot.State state = new Robot.State();
+		state.driveLineState = new DriveLine.State(
+				ShiftMode.values()[i % 3], DriveMode.values()[i % 2], i / 127.0, -i / 128.0, i % 5 == 0);
+		return state;
+	}
+
+	static void assertSameState(Robot.State expected, Robot.State actual) {
+		DriveLine.State e = expected.driveLineState, a = actual.driveLineState;
+		assertEquals(e.shiftMode, a.shiftMode);
+		assertEquals(e.driveMode, a.driveMode);
+		assertEquals(e.magnitudeOrLeft, a.magnitudeOrLeft);
+		assertEquals(e.curveOrRight, a.curveOrRight);
+		assertEquals(e.squaredInputs, a.squaredInputs);
+	}
+
+	@Test
+	void testListView() {
+		RobotScript script = new RobotScript(4);
+		List<Robot.State> expected = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			script.add(state(i));
+			expected.add(state(i));
+		}
+		// grows past its capacity
+		assertEquals(200, script.size());
+		script.add(0, state(500));
+		expected.add(0, state(500));
+		script.remove(70);
+		expected.remove(70);
+		script.set(130, state(501));
+		expected.set(130, state(501));
+		assertEquals(expected.size(), script.size());
+		Robot.State into = new Robot.State();
+		for (int i = 0; i < expected.size(); i++) {
+			assertSameState(expected.get(i), script.get(i));
+			assertSameState(expected.get(i), script.read(i, into));
+		}
+		assertThrows(IndexOutOfBoundsException.class, () -> script.get(script.size()));
+	}
+
+	@Test
+	void testJSONUnchanged() throws Exception {
+		RobotScript script = new RobotScript();
+		List<Robot.State> list = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			script.append(state(i));
+			list.add(state(i));
+		}
+		String json = new ObjectMapper().writeValueAsString(list);
+		assertEquals(json, script.toJSON());
+		RobotScript parsed = RobotScript.fromJSON(json);
+		assertEquals(100, parsed.size());
+		for (int i = 0; i < 100; i++) {
+			assertSameState(list.get(i), parsed.get(i));
+		}
+		assertEquals("[]", new RobotScript().toJSON());
+	}
+
+	@Test
+	void testGeneratedCodecsMatchJackson() throws Exception {
+		ObjectMapper mapper = new ObjectMapper();
+		for (boolean open : new boolean[] { false, true }) {
+			Claw.State claw = new Claw.State(open);
+			StringWriter out = new StringWriter();
+			try (JsonGenerator g = mapper.getFactory().createGenerator(out)) {
+				ClawStateCodec.write(g, claw);
+			}
+			assertEquals(mapper.writeValueAsString(claw), out.toString());
+			try (JsonParser p = mapper.getFactory().createParser(out.toString())) {
+				assertEquals(open, ClawStateCodec.read(p, null).open);
+			}
+		}
+		// nulls are read as the default, and fields it doesn't know about are skipped
+		Robot.State state = state(7);
+		state.driveLineState.shiftMode = null;
+		String json = mapper.writeValueAsString(state);
+		StringWriter out = new StringWriter();
+		try (JsonGenerator g = mapper.getFactory().createGenerator(out)) {
+			RobotStateCodec.write(g, state);
+		}
+		assertEquals(json, out.toString());
+		String extra = json.replace("{\"driveLineState\":{", "{\"armState\":{\"up\":[1,{}]},\"driveLineState\":{\"gear\":3,");
+		try (JsonParser p = mapper.getFactory().createParser(extra)) {
+			Robot.State read = RobotStateCodec.read(p, new Robot.State());
+			assertEquals(new DriveLine.State().shiftMode, read.driveLineState.shiftMode);
+			assertEquals(state.driveLineState.magnitudeOrLeft, read.driveLineState.magnitudeOrLeft);
+			assertEquals(state.driveLineState.curveOrRight, read.driveLineState.curveOrRight);
+		}
+		assertThrows(RuntimeException.class, () -> RobotScript.fromJSON("[{\"driveLineState\":"));
+		assertThrows(IllegalArgumentException.class, () -> RobotScript.fromJSON("[null]"));
+	}
+
+	@Test
+	void testMissingAndNullFieldsAreDefaults() {
+		// nothing carries over from the tick before
+		RobotScript parsed = RobotScript.fromJSON("["
+				+ "{\"driveLineState\":{\"shiftMode\":\"LOW\",\"driveMode\":\"TANK\",\"magnitudeOrLeft\":0.5,\"curveOrRight\":-0.5,\"squaredInputs\":true}},"
+				+ "{\"driveLineState\":{\"magnitudeOrLeft\":0.25}},"
+				+ "{\"driveLineState\":null},"
+				+ "{},"
+				+ "{\"driveLineState\":{\"shiftMode\":null,\"curveOrRight\":null}}"
+				+ "]");
+		assertEquals(5, parsed.size());
+		Robot.State defaults = new Robot.State();
+		defaults.driveLineState.magnitudeOrLeft = 0.25;
+		assertSameState(defaults, parsed.get(1));
+		defaults.driveLineState.magnitudeOrLeft = 0;
+		for (int i = 2; i < 5; i++) {
+			assertSameState(defaults, parsed.get(i));
+		}
+	}
+
+	@Test
+	void testAddAllCopiesColumns() {
+		RobotScript a = new RobotScript(), b = new RobotScript();
+		for (int i = 0; i < 70; i++) a.append(state(i));
+		for (int i = 70; i < 150; i++) b.append(state(i));
+		a.addAll(b);
+		assertEquals(150, a.size());
+		for (int i = 0; i < 150; i++) {
+			assertSameState(state(i), a.get(i));
+		}
+	}
+
+	@Test
+	void testStartsSmallAndGrows() {
+		RobotScript script = new RobotScript();
+		assertEquals(RobotScript.DEFAULT_CAPACITY, script.capacity());
+		for (int i = 0; i < 1000; i++) {
+			script.append(state(i));
+		}
+		assertEquals(1000, script.size());
+		assertEquals(999 / 127.0, script.magnitudeOrLeft(999));
+		// only the recorder's live script is sized for a match
+		assertEquals(RobotScript.MATCH_TICKS, new Recorder(null).getScript().capacity());
+	}
+
+	@Test
+	void testPlayedStateIsCopied() {
+		DriveLine.State driving = new DriveLine.State();
+		Robot.State played = state(3);
+		driving.set(played.driveLineState);
+		Robot.State copied = new Robot.State();
+		copied.driveLineState = driving;
+		assertSameState(state(3), copied);
+		// the next tick played into the same state doesn't change what's driving
+		played.driveLineState.magnitudeOrLeft = 4;
+		assertEquals(3 / 127.0, driving.magnitudeOrLeft);
+	}
+
+	@Test
+	void testRecordAndPlaybackAllocateNothing() {
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		threads.setThreadAllocatedMemoryEnabled(true);
+		Robot.State live = state(1);
+		Robot.State[] played = new Robot.State[1];
+		Recordable robot = new Recordable() {
+			@Override
+			public Robot.State getState() {
+				return state(0);
+			}
+
+			@Override
+			public Robot.State currentState() {
+				return live;
+			}
+
+			@Override
+			public void setState(Robot.State state) {
+				played[0] = state;
+			}
+		};
+		Recorder recorder = new Recorder(robot);
+		VirtualClock clock = new VirtualClock();
+		TickContext ticks = TickContext.install(new TickContext(clock));
+		long id = Thread.currentThread().getId();
+		for (int round = 0; round < 20; round++) {
+			long before = threads.getThreadAllocatedBytes(id);
+			recorder.resetRecording();
+			recorder.startRecording();
+			for (int i = 0; i < RobotScript.MATCH_TICKS; i++) {
+				live.driveLineState.magnitudeOrLeft = i;
+				recorder.record();
+				clock.advance(20);
+				ticks.tick();
+			}
+			recorder.stopRecording();
+			recorder.resetPlayback();
+			recorder.startPlayback();
+			for (int i = 0; i < RobotScript.MATCH_TICKS; i++) {
+				recorder.playback();
+				clock.advance(20);
+				ticks.tick();
+			}
+			long allocated = threads.getThreadAllocatedBytes(id) - before;
+			if (round == 19) {
+				// a little slack for the counter itself
+				assertTrue(allocated < 1024, "allocated " + allocated);
+			}
+		}
+		assertEquals(RobotScript.MATCH_TICKS - 1, played[0].driveLineState.magnitudeOrLeft);
+	}
+}
@@ -0,0 +1,187 @@
+package team3543.robot;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class ScriptCacheTest {
+
+	static RobotScript script(int ticks) {
+		RobotScript script = new RobotScript();
+		for (int i = 0; i < ticks; i++) {
+			script.append(RobotScriptTest.state(i));
+		}
+		return script;
+	}
+
+	@Test
+	void testHitsAndMisses() {
+		AtomicInteger parsed = new AtomicInteger();
+		ScriptCache cache = new ScriptCache("Test", ScriptCache.DEFAULT_MAX_BYTES, name -> {
+			parsed.incrementAndGet();
+			return script(name.length());
+		});
+		RobotScript a = cache.get("abc");
+		assertEquals(3, a.size());
+		// trimmed, so it's charged for what it holds
+		assertEquals(3, a.capacity());
+		assertSame(a, cache.get("abc"));
+		assertEquals(1, parsed.get());
+		assertEquals(1, cache.hits);
+		assertEquals(1, cache.misses);
+		assertEquals(a.sizeInBytes(), cache.bytes());
+
+		cache.invalidate("abc");
+		assertNotSame(a, cache.get("abc"));
+		assertEquals(2, parsed.get());
+
+		ScriptCache failing = new ScriptCache("Test", 1000, name -> {
+			throw new IllegalArgumentException("No such script");
+		});
+		assertThrows(IllegalArgumentException.class, () -> failing.get("x"));
+		assertFalse(failing.contains("x"));
+		assertTrue(failing.parsing.isEmpty());
+	}
+
+	@Test
+	void testFailuresAreRememberedUntilInvalidated() throws Exception {
+		AtomicInteger parsed = new AtomicInteger();
+		ScriptCache cache = new ScriptCache("Test", 1000, name -> {
+			parsed.incrementAndGet();
+			throw new IllegalArgumentException("No such script");
+		});
+		IllegalArgumentException first = assertThrows(IllegalArgumentException.class, () -> cache.get("x"));
+		assertTrue(cache.failed("x"));
+		// a bad script on the chooser is prefetched every loop, but only parsed once
+		for (int i = 0; i < 10; i++) {
+			assertTrue(cache.prefetch("x"));
+		}
+		assertSame(first, assertThrows(IllegalArgumentException.class, () -> cache.get("x")));
+		assertEquals(1, parsed.get());
+		cache.invalidate("x");
+		assertFalse(cache.failed("x"));
+		assertThrows(IllegalArgumentException.class, () -> cache.get("x"));
+		assertEquals(2, parsed.get());
+	}
+
+	@Test
+	void testInvalidatedParseIsDropped() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger version = new AtomicInteger(1);
+		ScriptCache cache = new ScriptCache("Test", ScriptCache.DEFAULT_MAX_BYTES, name -> {
+			int ticks = version.get();
+			if (ticks == 1) {
+				started.countDown();
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			return script(ticks);
+		});
+		assertTrue(cache.prefetch("a"));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		// the file changes while the old one is being parsed
+		version.set(2);
+		cache.invalidate("a");
+		release.countDown();
+		assertEquals(2, cache.get("a").size());
+		// and the old parse finishing doesn't replace it
+		for (int i = 0; i < 1000 && Async.EXECUTOR.getActiveCount() > 0; i++) {
+			Thread.sleep(1);
+		}
+		assertEquals(2, cache.get("a").size());
+		assertEquals(1, cache.parses);
+	}
+
+	@Test
+	void testEvictsLeastRecentlyUsed() {
+		RobotScript trimmed = script(100);
+		trimmed.trimToSize();
+		long each = trimmed.sizeInBytes();
+		ScriptCache cache = new ScriptCache("Test", each * 3, name -> script(100));
+		cache.get("a");
+		cache.get("b");
+		cache.get("c");
+		cache.get("a");		// b is now the least recently used
+		cache.get("d");
+		assertTrue(cache.contains("a"));
+		assertFalse(cache.contains("b"));
+		assertTrue(cache.contains("c"));
+		assertTrue(cache.contains("d"));
+		assertEquals(1, cache.evictions);
+		assertEquals(each * 3, cache.bytes());
+
+		// one too big to fit still gets cached, on its own
+		ScriptCache small = new ScriptCache("Test", each / 2, name -> script(100));
+		small.get("a");
+		small.get("b");
+		assertFalse(small.contains("a"));
+		assertTrue(small.contains("b"));
+	}
+
+	@Test
+	void testPrefetchParsesInTheBackground() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		String[] thread = new String[1];
+		ScriptCache cache = new ScriptCache("Test", ScriptCache.DEFAULT_MAX_BYTES, name -> {
+			thread[0] = Thread.currentThread().getName();
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return script(10);
+		});
+		assertTrue(cache.prefetch("a"));
+		// returns straight away, and asking again doesn't start another parse
+		assertFalse(cache.contains("a"));
+		assertTrue(cache.prefetch("a"));
+		assertEquals(1, cache.prefetches);
+		release.countDown();
+		// waits for the background parse rather than parsing again
+		RobotScript a = cache.get("a");
+		assertEquals(10, a.size());
+		assertEquals("Async activity", thread[0]);
+		assertEquals(1, cache.parses);
+		assertEquals(0, cache.misses);
+		assertSame(a, cache.get("a"));
+	}
+
+	@Test
+	void testRecorderCopiesBeforeRecording() {
+		RobotScript cached = script(5);
+		Robot.State live = RobotScriptTest.state(99);
+		Recorder recorder = new Recorder(new Recordable() {
+			@Override
+			public Robot.State getState() {
+				return live;
+			}
+
+			@Override
+			public void setState(Robot.State state) {
+			}
+		});
+		recorder.setScript(cached);
+		// no copy just to play it back
+		assertSame(cached, recorder.getScript());
+		recorder.startRecording();
+		recorder.record();
+		assertEquals(5, cached.size());
+		assertEquals(6, recorder.getScript().size());
+		RobotScriptTest.assertSameState(RobotScriptTest.state(4), recorder.getScript().get(4));
+
+		recorder.setScript(cached);
+		recorder.resetRecording();
+		recorder.startRecording();
+		recorder.record();
+		assertEquals(5, cached.size());
+		assertEquals(1, recorder.getScript().size());
+	}
+}
@@ -0,0 +1,144 @@
+package team3543.robot;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import team3543.robot.DriveLine.DriveMode;
+import team3543.robot.DriveLine.ShiftMode;
+
+class ScriptCodecTest {
+
+	static Robot.State state(ShiftMode shift, DriveMode drive, double magnitude, double curve, boolean squared) {
+		Robot.State state = new Robot.State();
+		state.driveLineState = new DriveLine.State(shift, drive, magnitude, curve, squared);
+		return state;
+	}
+
+	/**
+	 * Sticks quantized like the driver station does, with stretches of sitting still
+	 */
+	static RobotScript driving(int ticks) {
+		RobotScript script = new RobotScript();
+		for (int i = 0; i < ticks; i++) {
+			double t = i * 0.02;
+			boolean still = (i / 250) % 4 == 3;
+			double magnitude = still ? 0 : Math.round(0.8 * Math.sin(t / 3) * 127) / 127.0;
+			double curve = still ? 0 : Math.round(0.4 * Math.sin(t * 1.7) * 128) / 128.0;
+			script.append(state(ShiftMode.HIGH, DriveMode.ARCADE, magnitude, curve, true));
+		}
+		return script;
+	}
+
+	static void assertSameScript(RobotScript expected, RobotScript actual) {
+		assertEquals(expected.size(), actual.size());
+		Robot.State e = new Robot.State(), a = new Robot.State();
+		for (int i = 0; i < expected.size(); i++) {
+			expected.read(i, e);
+			actual.read(i, a);
+			assertEquals(e.driveLineState.shiftMode, a.driveLineState.shiftMode, "tick " + i);
+			assertEquals(e.driveLineState.driveMode, a.driveLineState.driveMode, "tick " + i);
+			assertEquals(e.driveLineState.squaredInputs, a.driveLineState.squaredInputs, "tick " + i);
+			assertEquals(Double.doubleToRawLongBits(e.driveLineState.magnitudeOrLeft),
+					Double.doubleToRawLongBits(a.driveLineState.magnitudeOrLeft), "tick " + i);
+			assertEquals(Double.doubleToRawLongBits(e.driveLineState.curveOrRight),
+					Double.doubleToRawLongBits(a.driveLineState.curveOrRight), "tick " + i);
+		}
+	}
+
+	@Test
+	void testLossless() {
+		RobotScript script = new RobotScript();
+		// off-grid, awkward and identical values, every enum, and long and short runs
+		double[] values = { 0, -0.0, 1, -1, 0.1, 1 / 3.0, 1e300, -1e-300, Double.NaN, Double.POSITIVE_INFINITY, 5 / 127.0, -7 / 128.0 };
+		for (ShiftMode shift : ShiftMode.values()) {
+			for (DriveMode drive : DriveMode.values()) {
+				for (double m : values) {
+					script.append(state(shift, drive, m, -m, m > 0));
+				}
+			}
+		}
+		for (int i = 0; i < 1000; i++) {
+			script.append(state(ShiftMode.LOW, DriveMode.TANK, 0.5, 0.5, false));
+		}
+		for (int run = 1; run < 70; run++) {
+			for (int i = 0; i < run; i++) {
+				script.append(state(ShiftMode.OFF, DriveMode.TANK, run / 127.0, 0, false));
+			}
+		}
+		Random random = new Random(3543);
+		for (int i = 0; i < 1000; i++) {
+			script.append(state(ShiftMode.HIGH, DriveMode.ARCADE, random.nextDouble() * 2 - 1, random.nextInt(255) / 127.0 - 1, random.nextBoolean()));
+		}
+		byte[] bytes = script.toBinary();
+		assertEquals(script.size(), ScriptCodec.tickCount(bytes));
+		assertSameScript(script, RobotScript.fromBinary(bytes));
+		assertSameScript(new RobotScript(), RobotScript.fromBinary(new RobotScript().toBinary()));
+	}
+
+	@Test
+	void testJSONRoundTrip() {
+		RobotScript script = driving(750);
+		String json = script.toJSON();
+		byte[] bytes = RobotScript.fromJSON(json).toBinary();
+		assertEquals(json, RobotScript.fromBinary(bytes).toJSON());
+		// and it is a good deal smaller
+		assertTrue(bytes.length * 10 < json.length(), bytes.length + " bytes vs " + json.length());
+	}
+
+	@Test
+	void testStreaming() throws Exception {
+		RobotScript script = driving(3000);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ScriptCodec.Encoder encoder = new ScriptCodec.Encoder(out);
+		Robot.State state = new Robot.State();
+		for (int i = 0; i < script.size(); i++) {
+			encoder.write(script.read(i, state));
+		}
+		encoder.finish();
+		ScriptCodec.Decoder decoder = new ScriptCodec.Decoder(new ByteArrayInputStream(out.toByteArray()));
+		RobotScript decoded = new RobotScript();
+		while (decoder.read(state)) {
+			decoded.append(state);
+		}
+		assertFalse(decoder.read(state));
+		assertSameScript(script, decoded);
+	}
+
+	@Test
+	void testCorruptionIsDetected() {
+		byte[] bytes = driving(750).toBinary();
+		for (int i = 0; i < bytes.length; i += 7) {
+			byte[] corrupt = bytes.clone();
+			corrupt[i] ^= 0x10;
+			assertThrows(IllegalArgumentException.class, () -> ScriptCodec.decode(corrupt), "flipped byte " + i);
+		}
+		byte[] truncated = java.util.Arrays.copyOf(bytes, bytes.length - 1);
+		assertThrows(IllegalArgumentException.class, () -> ScriptCodec.decode(truncated));
+		assertThrows(IllegalArgumentException.class, () -> ScriptCodec.decode("[]".getBytes()));
+		// a huge count is refused before anything is allocated for it
+		byte[] count = bytes.clone();
+		count[count.length - ScriptCodec.TRAILER_SIZE] = 0x7f;
+		assertThrows(IllegalArgumentException.class, () -> ScriptCodec.decode(count));
+		assertThrows(IllegalArgumentException.class, () -> MappedScript.wrap(null, ByteBuffer.wrap(count)).decode());
+	}
+
+	@Test
+	void testCountOnlySizesWhatTheBytesHold() {
+		// runs: many ticks in few bytes, so the script grows into them
+		RobotScript still = new RobotScript();
+		Robot.State state = state(ShiftMode.LOW, DriveMode.TANK, 0.5, 0.5, false);
+		for (int i = 0; i < 5000; i++) {
+			still.append(state);
+		}
+		byte[] bytes = still.toBinary();
+		assertTrue(ScriptCodec.capacity(5000, bytes.length) < 5000);
+		assertSameScript(still, ScriptCodec.decode(bytes));
+		assertEquals(0, ScriptCodec.capacity(Integer.MAX_VALUE, ScriptCodec.HEADER_SIZE + ScriptCodec.TRAILER_SIZE));
+	}
+}
@@ -0,0 +1,204 @@
+package team3543.robot;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ScriptTransferTest {
+
+	/**
+	 * Entries in memory, each listener told on its own thread as NetworkTables does,
+	 * and only of a value that changed, losing some of the sends if asked
+	 */
+	static class MemoryLink implements ScriptTransfer.Link {
+		final ExecutorService listenerThread = Executors.newSingleThreadExecutor();
+		final Map<String, List<Consumer<byte[]>>> listeners = new HashMap<>();
+		final Map<String, byte[]> values = new HashMap<>();
+		final Random random = new Random(3543);
+		double loss = 0;
+		boolean connected = true;
+
+		@Override
+		public synchronized void send(String key, byte[] value) {
+			if (Arrays.equals(values.put(key, value), value) || random.nextDouble() < loss) {
+				return;
+			}
+			for (Consumer<byte[]> listener : listeners.getOrDefault(key, new ArrayList<>())) {
+				listenerThread.execute(() -> listener.accept(value));
+			}
+		}
+
+		@Override
+		public synchronized void listen(String key, Consumer<byte[]> listener) {
+			listeners.computeIfAbsent(key, k -> new ArrayList<>()).add(listener);
+		}
+
+		@Override
+		public boolean connected() {
+			return connected;
+		}
+	}
+
+	final MemoryLink link = new MemoryLink();
+
+	@AfterEach
+	void tearDown() {
+		link.listenerThread.shutdownNow();
+	}
+
+	static byte[] random(int length, long seed) {
+		byte[] bytes = new byte[length];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+	@Test
+	void testScriptArrivesWhole() throws Exception {
+		List<byte[]> received = new ArrayList<>();
+		ScriptTransfer.Receiver receiver = new ScriptTransfer.Receiver(link, "save", received::add);
+		ScriptTransfer.Sender sender = new ScriptTransfer.Sender(link, "save");
+		RobotScript script = ScriptCodecTest.driving(7500);
+		byte[] binary = script.toBinary();
+		ScriptTransfer.Stats stats = sender.send(binary, true);
+		assertEquals(1, received.size());
+		assertArrayEquals(binary, received.get(0));
+		ScriptCodecTest.assertSameScript(script, RobotScript.fromBinary(received.get(0)));
+		assertTrue(stats.sent < binary.length, stats.toString());
+		assertEquals((stats.sent + 1023) / 1024, stats.chunks);
+		assertEquals(0, stats.resent);
+		assertEquals(stats.chunks, receiver.lastStats().chunks);
+		assertTrue(stats.throughput() > 0);
+
+		// and the next one replaces it
+		byte[] noise = random(5000, 1);
+		stats = sender.send(noise, true);
+		assertEquals(stats.bytes, stats.sent);		// noise doesn't deflate, so it goes as it is
+		assertArrayEquals(noise, received.get(1));
+		assertEquals(5, stats.chunks);
+	}
+
+	@Test
+	void testEmpty() throws Exception {
+		List<byte[]> received = new ArrayList<>();
+		new ScriptTransfer.Receiver(link, "save", received::add);
+		assertEquals(1, new ScriptTransfer.Sender(link, "save").send(new byte[0], true).chunks);
+		assertEquals(0, received.get(0).length);
+	}
+
+	@Test
+	void testResendsWhatIsLost() throws Exception {
+		List<byte[]> received = new ArrayList<>();
+		new ScriptTransfer.Receiver(link, "save", received::add);
+		ScriptTransfer.Sender sender = new ScriptTransfer.Sender(link, "save", 256, 50, 10);
+		link.loss = 0.15;
+		byte[] data = random(20000, 2);
+		ScriptTransfer.Stats stats = sender.send(data, false);
+		assertArrayEquals(data, received.get(0));
+		assertTrue(stats.resent > 0, stats.toString());
+	}
+
+	@Test
+	void testGivesUpWithNoReceiver() {
+		ScriptTransfer.Sender sender = new ScriptTransfer.Sender(link, "save", 256, 20, 2);
+		assertThrows(TimeoutException.class, () -> sender.send(random(1000, 3), false));
+	}
+
+	@Test
+	void testReceiverCanRefuse() {
+		new ScriptTransfer.Receiver(link, "load", bytes -> RobotScript.fromBinary(bytes));
+		ScriptTransfer.Sender sender = new ScriptTransfer.Sender(link, "load", 256, 200, 2);
+		assertThrows(IOException.class, () -> sender.send(random(1000, 5), true));
+	}
+
+	@Test
+	void testCorruptIsRefused() {
+		List<byte[]> received = new ArrayList<>();
+		new ScriptTransfer.Receiver(link, "save", received::add);
+		ScriptTransfer.Sender sender = new ScriptTransfer.Sender(link, "save", 256, 200, 2) {
+			@Override
+			byte[] chunk(ByteBuffer payload, int id, int seq, int count, int flags, int length, int crc, int attempt) {
+				byte[] chunk = super.chunk(payload, id, seq, count, flags, length, crc, attempt);
+				if (seq == 2) {
+					chunk[chunk.length - 1] ^= 1;
+				}
+				return chunk;
+			}
+		};
+		assertThrows(IOException.class, () -> sender.send(random(1000, 4), false));
+		assertTrue(received.isEmpty());
+	}
+
+	@Test
+	void testHeadersOverTheLimitAreRefused() throws Exception {
+		List<byte[]> received = new ArrayList<>();
+		new ScriptTransfer.Receiver(link, "load", received::add, 4096);
+		ScriptTransfer.Sender sender = new ScriptTransfer.Sender(link, "load", 256, 200, 2);
+		assertThrows(IOException.class, () -> sender.send(random(5000, 6), false));
+		byte[] data = random(4000, 7);
+		sender.send(data, false);
+		assertArrayEquals(data, received.get(0));
+
+		// a header can't make the receiver allocate what it doesn't have room for
+		ScriptTransfer.Receiver receiver = new ScriptTransfer.Receiver(link, "forged", received::add, 4096);
+		for (int[] header : new int[][] { { 1, 0, 1, Integer.MAX_VALUE }, { 2, 0, Integer.MAX_VALUE, 1000 }, { 3, 0, 17, 1000 } }) {
+			byte[] chunk = ByteBuffer.allocate(ScriptTransfer.HEADER_SIZE + 1)
+					.put((byte) 'S').put((byte) 'T').put((byte) ScriptTransfer.VERSION).put((byte) 0)
+					.putInt(header[0]).putInt(header[1]).putInt(header[2]).putInt(header[3]).putInt(0).putInt(0).array();
+			receiver.chunk(chunk);
+			assertNull(receiver.chunks);
+			assertEquals(ScriptTransfer.CORRUPT, receiver.status);
+		}
+		assertEquals(1, received.size());
+	}
+
+	@Test
+	void testResendsAreNewValues() throws Exception {
+		List<byte[]> received = new ArrayList<>();
+		// every chunk for the first 100 ms is lost, so the first round goes again; unchanged, it would never arrive
+		ScriptTransfer.Link late = new ScriptTransfer.Link() {
+			final long from = System.nanoTime() + 100000000L;
+
+			@Override
+			public void send(String key, byte[] value) {
+				if (key.endsWith(".ack") || System.nanoTime() > from) {
+					link.send(key, value);
+				} else {
+					link.values.put(key, value);
+				}
+			}
+
+			@Override
+			public void listen(String key, Consumer<byte[]> listener) {
+				link.listen(key, listener);
+			}
+		};
+		new ScriptTransfer.Receiver(link, "save", received::add);
+		ScriptTransfer.Sender sender = new ScriptTransfer.Sender(late, "save", 256, 50, 10);
+		byte[] data = random(1000, 8);
+		ScriptTransfer.Stats stats = sender.send(data, false);
+		assertArrayEquals(data, received.get(0));
+		assertTrue(stats.resent > 0, stats.toString());
+	}
+
+	@Test
+	void testConnected() {
+		ScriptTransfer.Sender sender = new ScriptTransfer.Sender(link, "save");
+		assertTrue(sender.connected());
+		link.connected = false;
+		assertFalse(sender.connected());
+	}
+}
@@ -0,0 +1,143 @@
+package team3543.robot;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import team3543.robot.DriveLine.DriveMode;
+import team3543.robot.DriveLine.ShiftMode;
+
+class ScriptViewTest {
+
+	final TickContext previousContext = TickContext.get();
+
+	@AfterEach
+	void restoreTickContext() {
+		TickContext.install(previousContext);
+	}
+
+	static RobotScript ramp(int ticks, DriveMode mode, double from) {
+		RobotScript script = new RobotScript();
+		for (int i = 0; i < ticks; i++) {
+			script.append(ScriptCodecTest.state(ShiftMode.HIGH, mode, from + i / 100.0, -(from + i / 100.0) / 2, false), i * 20L);
+		}
+		return script;
+	}
+
+	static void assertSameTicks(ScriptView expected, ScriptView actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.millis(i), actual.millis(i), "millis " + i);
+			assertEquals(expected.magnitudeOrLeft(i), actual.magnitudeOrLeft(i), "magnitudeOrLeft " + i);
+			assertEquals(expected.curveOrRight(i), actual.curveOrRight(i), "curveOrRight " + i);
+			assertEquals(expected.shiftMode(i), actual.shiftMode(i));
+			assertEquals(expected.driveMode(i), actual.driveMode(i));
+			assertEquals(expected.squaredInputs(i), actual.squaredInputs(i));
+		}
+	}
+
+	@Test
+	void testSlice() {
+		RobotScript script = ramp(100, DriveMode.ARCADE, 0);
+		ScriptView slice = script.slice(10, 30);
+		assertEquals(20, slice.size());
+		assertEquals(200, slice.millis(0));
+		assertEquals(0.1, slice.magnitudeOrLeft(0), 1e-9);
+		assertEquals(400, slice.duration());
+		// a slice of a slice reads straight from the script
+		ScriptView inner = slice.slice(5, 10);
+		assertSame(script, ((ScriptView.Slice) inner).base);
+		assertEquals(0.15, inner.magnitudeOrLeft(0), 1e-9);
+		assertThrows(IndexOutOfBoundsException.class, () -> inner.millis(5));
+		assertThrows(IndexOutOfBoundsException.class, () -> script.slice(90, 101));
+		assertEquals(0, script.slice(50, 50).size());
+	}
+
+	@Test
+	void testConcat() {
+		RobotScript a = ramp(10, DriveMode.ARCADE, 0), b = ramp(5, DriveMode.TANK, 1);
+		ScriptView ab = ScriptView.concat(a, b.slice(0, 0), b);
+		assertEquals(15, ab.size());
+		assertEquals(180, ab.millis(9));
+		assertEquals(200, ab.millis(10));		// a period after the end of a
+		assertEquals(280, ab.millis(14));
+		assertEquals(a.duration() + b.duration(), ab.duration());
+		assertEquals(DriveMode.TANK, ab.driveMode(10));
+		assertEquals(1.04, ab.magnitudeOrLeft(14), 1e-9);
+		// joining joins flat, not nested
+		ScriptView aba = ScriptView.concat(ab, a);
+		assertEquals(3, ((ScriptView.Concat) aba).pieces.length);
+		assertEquals(a.duration() * 2 + b.duration(), aba.duration());
+		assertSameTicks(aba, aba.toScript());
+		assertEquals(0, ScriptView.concat().size());
+	}
+
+	@Test
+	void testTimeScale() {
+		RobotScript script = ramp(50, DriveMode.ARCADE, 0);
+		ScriptView slow = script.slice(10, 50).timeScale(2);
+		assertEquals(200, slow.millis(0));
+		assertEquals(240, slow.millis(1));
+		assertEquals(200 + 39 * 40 + 20, slow.millis(39) + 20);
+		// at half speed the ramp is half as steep, by the clock
+		Robot.State into = new Robot.State();
+		slow.sample(200 + 100, into);
+		assertEquals(0.1 + 0.025, into.driveLineState.magnitudeOrLeft, 1e-9);
+		assertEquals(4.0, ((ScriptView.TimeScale) slow.timeScale(2)).factor);
+		assertThrows(IllegalArgumentException.class, () -> script.timeScale(0));
+	}
+
+	@Test
+	void testMirror() {
+		RobotScript arcade = ramp(3, DriveMode.ARCADE, 0.5), tank = ramp(3, DriveMode.TANK, 0.5);
+		ScriptView mirrored = ScriptView.concat(arcade, tank).mirror();
+		assertEquals(0.51, mirrored.magnitudeOrLeft(1), 1e-9);
+		assertEquals(0.255, mirrored.curveOrRight(1), 1e-9);		// the curve the other way
+		assertEquals(-0.255, mirrored.magnitudeOrLeft(4), 1e-9);	// left and right swapped
+		assertEquals(0.51, mirrored.curveOrRight(4), 1e-9);
+		assertSameTicks(ScriptView.concat(arcade, tank), mirrored.mirror());
+	}
+
+	@Test
+	void testRecorderPlaysViews() {
+		VirtualClock clock = new VirtualClock(1000);
+		TickContext ticks = TickContext.install(new TickContext(clock));
+		List<DriveLine.State> played = new ArrayList<>();
+		Recorder recorder = new Recorder(new Recordable() {
+			@Override
+			public Robot.State getState() {
+				return new Robot.State();
+			}
+
+			@Override
+			public void setState(Robot.State state) {
+				played.add(state.driveLineState.copy());
+			}
+		});
+		RobotScript script = ramp(100, DriveMode.TANK, 0);
+		ScriptView routine = ScriptView.concat(script.slice(50, 100), script.slice(0, 50).mirror());
+		recorder.setScript(routine);
+		recorder.startPlayback();
+		while (recorder.playingBack) {
+			recorder.playback();
+			clock.advance(20);
+			ticks.tick();
+		}
+		assertEquals(100, played.size());
+		assertEquals(0.5, played.get(0).magnitudeOrLeft, 1e-9);
+		assertEquals(-0.005, played.get(51).magnitudeOrLeft, 1e-9);
+		assertEquals(0.01, played.get(51).curveOrRight, 1e-9);
+		// and the script it was made from is untouched, and not what gets recorded into
+		assertEquals(100, script.size());
+		assertNotSame(script, recorder.getScript());
+
+		// a RobotScript passed as a view is played as a script
+		recorder.setScript((ScriptView) script);
+		assertSame(script, recorder.getScript());
+		assertNull(recorder.view);
+	}
+}
@@ -0,0 +1,81 @@
+package team3543.robot;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class TimerWheelTest {
+
+	@Test
+	void testFiresOnDeadline() {
+		TimerWheel wheel = new TimerWheel(1000);
+		TimerWheel.Timer soon = new TimerWheel.Timer();
+		TimerWheel.Timer later = new TimerWheel.Timer();
+		TimerWheel.Timer past = new TimerWheel.Timer();
+		wheel.schedule(soon, 1010);
+		wheel.schedule(later, 1000 + 70000);
+		wheel.schedule(past, 999);
+		assertTrue(past.fired());
+		assertEquals(2, wheel.size());
+		wheel.advance(1009);
+		assertFalse(soon.fired());
+		wheel.advance(1010);
+		assertTrue(soon.fired());
+		wheel.advance(1000 + 69999);
+		assertFalse(later.fired());
+		wheel.advance(1000 + 70020);
+		assertTrue(later.fired());
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	void testCancelAndReschedule() {
+		TimerWheel wheel = new TimerWheel(0);
+		TimerWheel.Timer timer = new TimerWheel.Timer();
+		wheel.schedule(timer, 100);
+		wheel.cancel(timer);
+		wheel.advance(200);
+		assertFalse(timer.fired());
+		assertEquals(0, wheel.size());
+		wheel.schedule(timer, 300);
+		wheel.schedule(timer, 5000);
+		assertEquals(1, wheel.size());
+		wheel.advance(4999);
+		assertFalse(timer.fired());
+		wheel.advance(5000);
+		assertTrue(timer.fired());
+	}
+
+	@Test
+	void testMatchesBruteForce() {
+		// random deadlines from 0 ms to beyond the span of the wheels, advanced
+		// in random steps, must each fire exactly on the first advance past them
+		Random random = new Random(3543);
+		long start = 123456;
+		TimerWheel wheel = new TimerWheel(start);
+		TimerWheel.Timer[] timers = new TimerWheel.Timer[5000];
+		for (int i = 0; i < timers.length; i++) {
+			timers[i] = new TimerWheel.Timer();
+			long wait = (long) Math.pow(2, random.nextDouble() * 26);
+			wheel.schedule(timers[i], start + wait);
+		}
+		long now = start;
+		while (wheel.size() > 0) {
+			long previous = now;
+			now += 1 + random.nextInt(random.nextBoolean() ? 30 : 100000);
+			wheel.advance(now);
+			for (TimerWheel.Timer timer : timers) {
+				if (timer.deadline() <= now) {
+					assertTrue(timer.fired(), "timer at " + timer.deadline() + " should fire by " + now);
+				} else {
+					assertFalse(timer.fired(), "timer at " + timer.deadline() + " fired early, at " + now);
+				}
+				if (timer.deadline() > previous && timer.deadline() <= now) {
+					assertFalse(timer.pending());
+				}
+			}
+		}
+	}
+}